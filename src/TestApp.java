@@ -1,19 +1,53 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 
+import peer.OperationListener;
+import peer.OperationProgress;
 import peer.PeerInterface;
 
 public class TestApp {
+    /**
+     * Waits for an operation of the peer to finish
+     */
+    private static class OperationWaiter implements OperationListener {
+        private final int operationId;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile OperationProgress progress;
+
+        OperationWaiter(int operationId) {
+            this.operationId = operationId;
+        }
+
+        @Override
+        public void operationFinished(OperationProgress progress) {
+            if (progress.getId() != this.operationId)
+                return;
+
+            this.progress = progress;
+            this.finished.countDown();
+        }
+    }
+
     public static void logUsage() {
         System.out.println("Usage: java TestApp <rmi_ap> <operation> <opnd_1> <opnd_2>");
         System.out.println("                              BACKUP <path> <rep_degree>");
+        System.out.println("                              BACKUPTREE <path> <rep_degree> [<options>]");
+        System.out.println("                              PROGRESS <operation_id>");
+        System.out.println("                              CANCEL <operation_id>");
+        System.out.println("                              WAIT <operation_id>");
         System.out.println("                              RESTORE <path>");
+        System.out.println("                              READ <path> <offset> <length> [<output_path>]");
         System.out.println("                              DELETE <path>");
         System.out.println("                              RECLAIM <max_space_kb>");
         System.out.println("                              STATE");
+        System.out.println("                              HEALTH [<top_n>]");
     }
     public static void main(String[] args) {
         if (args.length < 2) {
@@ -29,7 +63,8 @@ public class TestApp {
             PeerInterface peerStub = (PeerInterface) registry.lookup(accessPoint);
 
             String path;
-            int maxSpace, repDegree, result;
+            int maxSpace, repDegree, result, operationId;
+            OperationProgress progress;
 
             switch (protocol) {
                 case "BACKUP":
@@ -42,6 +77,63 @@ public class TestApp {
                     result = peerStub.backup(path, repDegree);
                     System.out.println("TestApp :: BACKUP " + path + " " + repDegree + " :: " + result);
                     break;
+                case "BACKUPTREE":
+                    if (operands.length != 2 && operands.length != 3) {
+                        System.out.println("Usage: java TestApp <peer_ap> BACKUPTREE <path> <rep_degree> [<options>]");
+                        System.exit(-1);
+                    }
+                    path = operands[0];
+                    repDegree = Integer.parseInt(operands[1]);
+                    String options = operands.length == 3 ? operands[2] : null;
+                    result = peerStub.backupTree(path, repDegree, options);
+                    System.out.println("TestApp :: BACKUPTREE " + path + " " + repDegree + " :: " + result);
+                    break;
+                case "PROGRESS":
+                    if (operands.length != 1) {
+                        System.out.println("Usage: java TestApp <peer_ap> PROGRESS <operation_id>");
+                        System.exit(-1);
+                    }
+                    operationId = Integer.parseInt(operands[0]);
+                    progress = peerStub.progress(operationId);
+                    System.out.println("TestApp :: PROGRESS " + operationId + "\n\n"
+                            + (progress == null ? "Unknown operation\n" : progress));
+                    break;
+                case "CANCEL":
+                    if (operands.length != 1) {
+                        System.out.println("Usage: java TestApp <peer_ap> CANCEL <operation_id>");
+                        System.exit(-1);
+                    }
+                    operationId = Integer.parseInt(operands[0]);
+                    result = peerStub.cancel(operationId);
+                    System.out.println("TestApp :: CANCEL " + operationId + " :: " + result);
+                    break;
+                case "WAIT":
+                    if (operands.length != 1) {
+                        System.out.println("Usage: java TestApp <peer_ap> WAIT <operation_id>");
+                        System.exit(-1);
+                    }
+                    operationId = Integer.parseInt(operands[0]);
+                    OperationWaiter waiter = new OperationWaiter(operationId);
+                    OperationListener callback = (OperationListener) UnicastRemoteObject.exportObject(waiter, 0);
+                    peerStub.subscribe(callback);
+
+                    try {
+                        // the operation may have finished before subscribing
+                        progress = peerStub.progress(operationId);
+                        if (progress != null && ! progress.isFinished()) {
+                            waiter.finished.await();
+                            progress = waiter.progress;
+                        }
+                    } catch (InterruptedException e) {
+                        progress = null;
+                    } finally {
+                        peerStub.unsubscribe(callback);
+                        UnicastRemoteObject.unexportObject(waiter, true);
+                    }
+
+                    System.out.println("TestApp :: WAIT " + operationId + "\n\n"
+                            + (progress == null ? "Unknown operation\n" : progress));
+                    break;
                 case "RESTORE":
                     if (operands.length != 1) {
                         System.out.println("Usage: java TestApp <peer_ap> RESTORE <path>");
@@ -51,6 +143,26 @@ public class TestApp {
                     result = peerStub.restore(path);
                     System.out.println("TestApp :: RESTORE " + path + " :: " + result);
                     break;
+                case "READ":
+                    if (operands.length != 3 && operands.length != 4) {
+                        System.out.println("Usage: java TestApp <peer_ap> READ <path> <offset> <length> [<output_path>]");
+                        System.exit(-1);
+                    }
+                    path = operands[0];
+                    long offset = Long.parseLong(operands[1]);
+                    int length = Integer.parseInt(operands[2]);
+                    byte[] content = peerStub.read(path, offset, length);
+                    System.out.println("TestApp :: READ " + path + " " + offset + " " + length + " :: "
+                            + (content == null ? -1 : content.length));
+
+                    if (content != null && operands.length == 4) {
+                        try (FileOutputStream out = new FileOutputStream(operands[3])) {
+                            out.write(content);
+                        } catch (IOException e) {
+                            System.out.println("Unable to write " + operands[3]);
+                        }
+                    }
+                    break;
                 case "DELETE":
                     if (operands.length != 1) {
                         System.out.println("Usage: java TestApp <peer_ap> DELETE <path>");
@@ -77,6 +189,15 @@ public class TestApp {
                     String state = peerStub.state();
                     System.out.println("TestApp :: STATE\n\n" + state);
                     break;
+                case "HEALTH":
+                    if (operands.length > 1) {
+                        System.out.println("Usage: java TestApp <peer_ap> HEALTH [<top_n>]");
+                        System.exit(-1);
+                    }
+                    int topN = operands.length == 1 ? Integer.parseInt(operands[0]) : 10;
+                    String health = peerStub.health(topN);
+                    System.out.println("TestApp :: HEALTH\n\n" + health);
+                    break;
                 default:
                     logUsage();
             }
@@ -10,6 +10,7 @@ import handler.factory.HandlerFactory;
 import message.Message;
 import peer.Peer;
 import util.Log;
+import util.Metrics;
 
 public class MulticastChannel implements Runnable {
     private MulticastSocket socket;
@@ -44,6 +45,9 @@ public class MulticastChannel implements Runnable {
         byte[] buf = msg.toBytes();
         DatagramPacket packet = new DatagramPacket(buf, buf.length, this.address, this.port);
         socket.send(packet);
+
+        Metrics.increment("messages.sent." + msg.getType().toString().toLowerCase());
+        Metrics.add("messages.sent.bytes", buf.length);
     }
 
     @Override
@@ -0,0 +1,83 @@
+package channel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import handler.Handler;
+import handler.factory.HandlerFactory;
+import message.Message;
+import peer.Peer;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Datagram channel for messages sent to a single peer, used in place of multicast when the peers
+ * a message is meant for are known
+ */
+public class UnicastChannel implements Runnable {
+    private DatagramSocket socket;
+    private boolean close;
+    private HandlerFactory handlerFactory;
+
+    private final int MAX_BUF_LEN = 65507;
+    private Peer peer;
+
+    /**
+     * @param port  port to bind to, 0 for any available port
+     */
+    public UnicastChannel(int port) throws IOException {
+        this.socket = new DatagramSocket(port);
+
+        this.handlerFactory = null;
+        this.peer = null;
+
+        this.close = false;
+    }
+
+    public void setHandlerFactory(HandlerFactory handlerFactory) {
+        this.handlerFactory = handlerFactory;
+        this.peer = handlerFactory.getPeer();
+    }
+
+    public int getPort() {
+        return this.socket.getLocalPort();
+    }
+
+    public void send(Message msg, InetAddress address, int port) throws IOException {
+        byte[] buf = msg.toBytes();
+        DatagramPacket packet = new DatagramPacket(buf, buf.length, address, port);
+        socket.send(packet);
+
+        Metrics.increment("messages.sent." + msg.getType().toString().toLowerCase());
+        Metrics.add("messages.sent.bytes", buf.length);
+    }
+
+    @Override
+    public void run() {
+        while (! this.close) {
+            byte[] buf = new byte[this.MAX_BUF_LEN];
+            DatagramPacket packet = new DatagramPacket(buf, MAX_BUF_LEN);
+
+            try {
+                this.socket.receive(packet);
+            } catch (IOException e) {
+                if (! this.close)
+                    Log.logError("Failed receiving packet from unicast socket");
+                continue;
+            }
+
+            if (this.handlerFactory == null)
+                continue;
+
+            Handler handler = this.handlerFactory.getHandler(packet);
+            this.peer.submitWorker(handler);
+        }
+    }
+
+    public void close() {
+        this.close = true;
+        this.socket.close();
+    }
+}
@@ -1,13 +1,25 @@
 package file;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
 public class Chunk implements Comparable<Chunk> {
     public static final int MAX_SIZE = 64000;
+    private static final byte[] ZEROS = new byte[MAX_SIZE];
     private ChunkKey key;
     private byte[] content;
+    private Codec codec; // encoding of the content
 
     public Chunk(String fileId, int number, byte[] content) {
+        this(fileId, number, content, Codec.RAW);
+    }
+
+    public Chunk(String fileId, int number, byte[] content, Codec codec) {
         this.key = new ChunkKey(fileId, number);
         this.content = content;
+        this.codec = codec;
     }
 
     public String getFileID() {
@@ -26,10 +38,70 @@ public class Chunk implements Comparable<Chunk> {
         return this.content;
     }
 
+    /**
+     * @return size of the content, as encoded
+     */
     public int getSize() {
         return this.content.length;
     }
 
+    public Codec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Compares the content against a shared zeroed array, stopping at the first byte that isn't zero
+     * @return true if the chunk isn't empty and every byte of its content, as encoded, is zero
+     */
+    public boolean isZero() {
+        if (this.content.length == 0)
+            return false;
+
+        for (int i = 0; i < this.content.length; i += ZEROS.length) {
+            int len = Math.min(ZEROS.length, this.content.length - i);
+            if (Arrays.mismatch(this.content, i, i + len, ZEROS, 0, len) != -1)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes a raw chunk with the given codec
+     * @param level     compression level
+     * @return the encoded chunk, or this chunk if the encoding doesn't make it smaller
+     */
+    public Chunk encode(Codec codec, int level) {
+        if (this.codec != Codec.RAW || codec == Codec.RAW)
+            return this;
+
+        byte[] encoded = codec.encode(this.content, level);
+        return encoded == null ? this : new Chunk(this.getFileID(), this.getNumber(), encoded, codec);
+    }
+
+    /**
+     * @return the chunk with its original content
+     * @throws IOException if the content isn't valid for its codec
+     */
+    public Chunk decode() throws IOException {
+        if (this.codec == Codec.RAW)
+            return this;
+
+        return new Chunk(this.getFileID(), this.getNumber(), this.codec.decode(this.content));
+    }
+
+    /**
+     * @return SHA-256 hash of the chunk's content, as encoded, in hex
+     */
+    public String getContentHash() {
+        try {
+            return FileIDGenerator.bytesToHex(MessageDigest.getInstance("SHA-256").digest(this.content));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public int hashCode() {
         return key.hashCode();
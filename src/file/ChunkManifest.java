@@ -0,0 +1,186 @@
+package file;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chunks a file was split into, in order, with the offset, size and content hash (SHA-256) of each. A chunk with
+ * the same content as one backed up before is not sent again: the manifest records the file and chunk number
+ * under which it is already stored, and the chunk is fetched from there when the file is restored. Chunks with
+ * only zeros are recorded as holes, which aren't backed up at all and are left unwritten when the file is restored.
+ */
+public class ChunkManifest implements Serializable {
+
+    private static final long serialVersionUID = 2816384517259044531L;
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = -6052094139925410827L;
+
+        private final long offset;
+        private final int size;
+        private final String hash;
+        // file id and chunk number under which the chunk is stored, if it is stored as part of another file
+        private String sourceFileId;
+        private int sourceChunkNo;
+        // true if every byte of the chunk is zero, in which case it isn't backed up
+        private boolean hole;
+
+        Entry(long offset, int size, String hash) {
+            this.offset = offset;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private final boolean contentDefined;
+    private final List<Entry> entries;
+    // digests of the leaves of the tree hash of the file, see TreeHash, null if its content wasn't hashed
+    private byte[][] leaves;
+
+    public ChunkManifest(boolean contentDefined) {
+        this.contentDefined = contentDefined;
+        this.entries = new ArrayList<>();
+    }
+
+    public void add(long offset, int size, String hash) {
+        this.entries.add(new Entry(offset, size, hash));
+    }
+
+    /**
+     * Records that a chunk doesn't have to be backed up, because it is stored as another chunk
+     */
+    public void reuse(int chunkNo, ChunkKey source) {
+        Entry entry = this.entries.get(chunkNo);
+        entry.sourceFileId = source.getFileID();
+        entry.sourceChunkNo = source.getNumber();
+    }
+
+    public void setLeaves(byte[][] leaves) {
+        this.leaves = leaves;
+    }
+
+    public byte[][] getLeaves() {
+        return this.leaves;
+    }
+
+    /**
+     * Records that a chunk only has zeros, so it doesn't have to be backed up
+     */
+    public void markHole(int chunkNo) {
+        this.entries.get(chunkNo).hole = true;
+    }
+
+    public boolean isHole(int chunkNo) {
+        return this.entries.get(chunkNo).hole;
+    }
+
+    public boolean isContentDefined() {
+        return this.contentDefined;
+    }
+
+    public int getNumChunks() {
+        return this.entries.size();
+    }
+
+    public long getOffset(int chunkNo) {
+        return this.entries.get(chunkNo).offset;
+    }
+
+    public int getSize(int chunkNo) {
+        return this.entries.get(chunkNo).size;
+    }
+
+    public String getHash(int chunkNo) {
+        return this.entries.get(chunkNo).hash;
+    }
+
+    public boolean isReused(int chunkNo) {
+        return this.entries.get(chunkNo).sourceFileId != null;
+    }
+
+    /**
+     * @param fileId    id of the file this manifest belongs to
+     * @return key under which a chunk is stored, null for a hole
+     */
+    public ChunkKey getSource(String fileId, int chunkNo) {
+        Entry entry = this.entries.get(chunkNo);
+        if (entry.hole)
+            return null;
+
+        if (entry.sourceFileId == null)
+            return new ChunkKey(fileId, chunkNo);
+
+        return new ChunkKey(entry.sourceFileId, entry.sourceChunkNo);
+    }
+
+    /**
+     * @return ids of the other files whose chunks are reused
+     */
+    public List<String> getSourceFiles() {
+        List<String> fileIds = new ArrayList<>();
+        for (Entry entry : this.entries)
+            if (entry.sourceFileId != null && ! fileIds.contains(entry.sourceFileId))
+                fileIds.add(entry.sourceFileId);
+
+        return fileIds;
+    }
+
+    /**
+     * @return chunk numbers of the chunks that are backed up as part of the file
+     */
+    public List<Integer> getOwnChunks() {
+        List<Integer> chunkNos = new ArrayList<>();
+        for (int chunkNo = 0; chunkNo < this.entries.size(); chunkNo++)
+            if (this.entries.get(chunkNo).sourceFileId == null && ! this.entries.get(chunkNo).hole)
+                chunkNos.add(chunkNo);
+
+        return chunkNos;
+    }
+
+    /**
+     * @return number of chunks whose content isn't in any of the given manifests, e.g. of previous versions of the file
+     */
+    public int countChangedChunks(Collection<ChunkManifest> others) {
+        Set<String> hashes = new HashSet<>();
+        for (ChunkManifest other : others)
+            for (Entry entry : other.entries)
+                hashes.add(entry.hash);
+
+        int changed = 0;
+        for (Entry entry : this.entries)
+            if (! hashes.contains(entry.hash))
+                changed++;
+
+        return changed;
+    }
+
+    public long getReusedBytes() {
+        long bytes = 0;
+        for (Entry entry : this.entries)
+            if (entry.sourceFileId != null)
+                bytes += entry.size;
+
+        return bytes;
+    }
+
+    public long getHoleBytes() {
+        long bytes = 0;
+        for (Entry entry : this.entries)
+            if (entry.hole)
+                bytes += entry.size;
+
+        return bytes;
+    }
+
+    public long getTotalBytes() {
+        long bytes = 0;
+        for (Entry entry : this.entries)
+            bytes += entry.size;
+
+        return bytes;
+    }
+}
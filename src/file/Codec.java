@@ -0,0 +1,73 @@
+package file;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding of a chunk's content, on the wire and at rest
+ */
+public enum Codec {
+    RAW, DEFLATE;
+
+    /**
+     * @param content   content to encode
+     * @param level     compression level, from 1 (fastest) to 9
+     * @return the encoded content, null if it wouldn't be smaller than the original
+     */
+    public byte[] encode(byte[] content, int level) {
+        if (this == RAW)
+            return content;
+
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+
+            byte[] buf = new byte[content.length];
+            int length = 0;
+            while (! deflater.finished() && length < buf.length)
+                length += deflater.deflate(buf, length, buf.length - length);
+
+            return deflater.finished() && length < buf.length ? Arrays.copyOf(buf, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param content   encoded content, of a chunk with at most Chunk.MAX_SIZE bytes
+     * @return the original content
+     * @throws IOException if the content isn't valid for the codec
+     */
+    public byte[] decode(byte[] content) throws IOException {
+        if (this == RAW)
+            return content;
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(content);
+
+            // one byte more than allowed, so that the end of the stream is read after a full chunk
+            byte[] buf = new byte[Chunk.MAX_SIZE + 1];
+            int length = 0;
+            while (! inflater.finished() && length < buf.length) {
+                int n = inflater.inflate(buf, length, buf.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += n;
+            }
+
+            if (! inflater.finished() || length > Chunk.MAX_SIZE)
+                throw new IOException("Truncated or oversized " + this + " content");
+
+            return Arrays.copyOf(buf, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid " + this + " content", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package file;
+
+import java.util.Random;
+
+/**
+ * Splits data into chunks at boundaries chosen by its content (FastCDC), so that inserting or removing bytes
+ * only changes the chunks around the edit. A Gear rolling hash is computed over the bytes after the min chunk size,
+ * and a chunk ends where the hash has all the bits of a mask set to 0. Before the average size a mask with more bits
+ * is used and after it one with less bits, which keeps the chunk sizes close to the average.
+ */
+public class ContentDefinedChunker {
+
+    public static final int DEFAULT_MIN_SIZE = 8192;
+    public static final int DEFAULT_AVG_SIZE = 32768;
+
+    // random values for each byte, always generated from the same seed so that the boundaries never change
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x43444331L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    public ContentDefinedChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, Chunk.MAX_SIZE);
+    }
+
+    /**
+     * @param minSize   min chunk size, except for the last chunk
+     * @param avgSize   average chunk size, a power of 2
+     * @param maxSize   max chunk size, at most Chunk.MAX_SIZE
+     */
+    public ContentDefinedChunker(int minSize, int avgSize, int maxSize) {
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = Math.min(maxSize, Chunk.MAX_SIZE);
+
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        // the highest bits of the hash depend on the most bytes
+        this.smallMask = -1L << (64 - (bits + 1));
+        this.largeMask = -1L << (64 - (bits - 1));
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Finds the end of the chunk starting at an offset
+     * @param data      data buffer
+     * @param offset    offset of the chunk in the buffer
+     * @param length    number of bytes available from the offset; if less than the max size, they are the end of the data
+     * @return length of the chunk
+     */
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= this.minSize)
+            return length;
+
+        int end = Math.min(length, this.maxSize);
+        int normal = Math.min(end, this.avgSize);
+        long hash = 0;
+        int i = this.minSize;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & this.smallMask) == 0)
+                return i + 1;
+        }
+
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & this.largeMask) == 0)
+                return i + 1;
+        }
+
+        return end;
+    }
+}
@@ -3,35 +3,79 @@ package file;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileHandler {
     public static final long MAX_NUM_CHUNKS = 1000000;
 
+    // time, in ms, a content id checked by readChunk is trusted while the file's modified time and size stay the
+    // same, so that reading the chunks of a file one by one doesn't hash the whole file each time
+    private static final long CHECKED_ID_TTL_MS = 30000;
+    private static final int MAX_CHECKED_IDS = 1024;
+
+    // content ids checked by readChunk, by absolute path
+    private static final ConcurrentHashMap<String, CheckedID> checkedIDs = new ConcurrentHashMap<>();
+
+    private static class CheckedID {
+        private final String id;
+        private final long lastModified;
+        private final long length;
+        private final long time;
+
+        CheckedID(String id, long lastModified, long length, long time) {
+            this.id = id;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
     private File file;
     private String id;
     private List<Chunk> chunks = new ArrayList<Chunk>();
+    private ChunkManifest manifest;
+    // hash of the content of the file, null if its id isn't derived from its content
+    private TreeHash treeHash;
 
     public FileHandler(String path) throws IOException, FileSizeException, NoSuchAlgorithmException {
+        this(path, false);
+    }
+
+    /**
+     * @param contentDefined    true to split the file with content defined chunking, false for fixed size chunks
+     */
+    public FileHandler(String path, boolean contentDefined) throws IOException, FileSizeException, NoSuchAlgorithmException {
         this.file = new File(path);
+        this.manifest = new ChunkManifest(contentDefined);
 
         if (file.length() > Chunk.MAX_SIZE * MAX_NUM_CHUNKS) {
             throw new FileSizeException(path);
         }
 
-        this.id = FileIDGenerator.generateID(file);
+        if (FileIDGenerator.usesContentIDs()) {
+            this.treeHash = TreeHash.compute(file);
+            this.id = FileIDGenerator.generateID(this.treeHash);
+            this.manifest.setLeaves(this.treeHash.getLeaves());
+        } else {
+            this.id = FileIDGenerator.generateID(file);
+        }
 
-        this.generateChunks();
+        if (contentDefined)
+            this.generateContentDefinedChunks();
+        else
+            this.generateChunks();
     }
 
     public String getAbsolutePath() {
         return this.file.getAbsolutePath();
     }
 
-    public void generateChunks() throws IOException {
+    public void generateChunks() throws IOException, NoSuchAlgorithmException {
         boolean requiresChunk0Len = (file.length() % Chunk.MAX_SIZE) == 0;
 
         FileInputStream input = new FileInputStream(file);
@@ -39,19 +83,153 @@ public class FileHandler {
         int chunkNo = 0, chunkLen = 0;
         byte[] chunkBuf = new byte[Chunk.MAX_SIZE];
 
-        while ((chunkLen = input.read(chunkBuf)) != -1) {
-            chunks.add(new Chunk(this.id, chunkNo, Arrays.copyOfRange(chunkBuf, 0, chunkLen)));
+        while ((chunkLen = input.readNBytes(chunkBuf, 0, chunkBuf.length)) > 0) {
+            this.addChunk(chunkNo, (long) chunkNo * Chunk.MAX_SIZE, Arrays.copyOfRange(chunkBuf, 0, chunkLen));
             chunkNo++;
         }
 
         // if last chunk has 64k, add chunk of size 0
         if (requiresChunk0Len) {
-            chunks.add(new Chunk(this.id, chunkNo, new byte[0]));
+            this.addChunk(chunkNo, (long) chunkNo * Chunk.MAX_SIZE, new byte[0]);
         }
 
         input.close();
     }
 
+    /**
+     * Splits the file into chunks with boundaries defined by its content, see ContentDefinedChunker
+     */
+    public void generateContentDefinedChunks() throws IOException, NoSuchAlgorithmException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker();
+
+        FileInputStream input = new FileInputStream(file);
+
+        byte[] buf = new byte[4 * chunker.getMaxSize()];
+        int start = 0, end = 0, chunkNo = 0;
+        long offset = 0;
+        boolean eof = false;
+
+        try {
+            while (true) {
+                // keep at least a max size chunk in the buffer, so that boundaries don't depend on the reads
+                if (end - start < chunker.getMaxSize() && ! eof) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+
+                    int read = input.readNBytes(buf, end, buf.length - end);
+                    end += read;
+                    eof = end < buf.length;
+                }
+
+                if (start == end)
+                    break;
+
+                int length = chunker.nextChunkLength(buf, start, end - start);
+                this.addChunk(chunkNo++, offset, Arrays.copyOfRange(buf, start, start + length));
+
+                start += length;
+                offset += length;
+            }
+        } finally {
+            input.close();
+        }
+
+        // an empty file still has one chunk
+        if (chunkNo == 0)
+            this.addChunk(0, 0, new byte[0]);
+    }
+
+    private void addChunk(int chunkNo, long offset, byte[] content) {
+        Chunk chunk = new Chunk(this.id, chunkNo, content);
+
+        this.chunks.add(chunk);
+        this.manifest.add(offset, content.length, chunk.getContentHash());
+    }
+
+
+    /**
+     * Reads a single chunk of a file, checking that the file hasn't changed since its id was generated
+     * @param path      file path
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     * @param manifest  chunks the file was split into, null if it was split into fixed size chunks
+     * @return the chunk, null if the file has changed or doesn't have the chunk
+     */
+    public static Chunk readChunk(String path, String fileId, int chunkNo, ChunkManifest manifest)
+            throws IOException, NoSuchAlgorithmException {
+        return readChunk(path, fileId, chunkNo, manifest, true);
+    }
+
+    /**
+     * Reads a single chunk of a file
+     * @param path      file path
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     * @param manifest  chunks the file was split into, null if it was split into fixed size chunks
+     * @param checkID   whether to check that the file hasn't changed since its id was generated, false for files
+     *                  whose id isn't generated from them, such as packs of small files
+     * @return the chunk, null if the file has changed or doesn't have the chunk
+     */
+    public static Chunk readChunk(String path, String fileId, int chunkNo, ChunkManifest manifest, boolean checkID)
+            throws IOException, NoSuchAlgorithmException {
+        File file = new File(path);
+
+        if (! file.exists() || (checkID && ! hasID(file, fileId)))
+            return null;
+
+        if (manifest != null && chunkNo >= manifest.getNumChunks())
+            return null;
+
+        long offset = manifest != null ? manifest.getOffset(chunkNo) : (long) chunkNo * Chunk.MAX_SIZE;
+        if (offset > file.length())
+            return null;
+
+        int size = manifest != null ? manifest.getSize(chunkNo) : Chunk.MAX_SIZE;
+        byte[] content = new byte[(int) Math.min(size, file.length() - offset)];
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            input.readFully(content);
+        } finally {
+            input.close();
+        }
+
+        return new Chunk(fileId, chunkNo, content);
+    }
+
+    /**
+     * @return true if the file still has the given id
+     */
+    private static boolean hasID(File file, String fileId) throws IOException, NoSuchAlgorithmException {
+        // ids derived from the metadata are cheap to generate
+        if (! FileIDGenerator.usesContentIDs())
+            return FileIDGenerator.generateID(file).equals(fileId);
+
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        long now = System.currentTimeMillis();
+
+        CheckedID checked = checkedIDs.get(path);
+        if (checked != null && checked.id.equals(fileId) && checked.lastModified == lastModified
+                && checked.length == length && now - checked.time < CHECKED_ID_TTL_MS)
+            return true;
+
+        if (! FileIDGenerator.generateID(file).equals(fileId))
+            return false;
+
+        if (checkedIDs.size() >= MAX_CHECKED_IDS)
+            checkedIDs.clear();
+        checkedIDs.put(path, new CheckedID(fileId, lastModified, length, now));
+
+        return true;
+    }
+
+    public ChunkManifest getManifest() {
+        return this.manifest;
+    }
 
     public List<Chunk> getChunks() {
         return this.chunks;
@@ -60,4 +238,8 @@ public class FileHandler {
     public String getID() {
         return this.id;
     }
+
+    public TreeHash getTreeHash() {
+        return this.treeHash;
+    }
 }
@@ -1,12 +1,31 @@
 package file;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class FileIDGenerator {
-    public static String generateID(File file) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    // mixed into the ids derived from the content of the files, null while they are derived from the path and
+    // metadata
+    private static volatile String contentSalt;
+
+    /**
+     * Derives the ids of the files from their content, see TreeHash, instead of their path and metadata
+     * @param peerID    id of the peer, mixed into the ids so that peers backing up the same content don't share them
+     */
+    public static void useContentIDs(int peerID) {
+        contentSalt = "peer" + peerID;
+    }
+
+    public static boolean usesContentIDs() {
+        return contentSalt != null;
+    }
+
+    public static String generateID(File file) throws NoSuchAlgorithmException, IOException {
+        if (contentSalt != null)
+            return generateID(TreeHash.compute(file));
+
         String data = file.getAbsolutePath() + file.lastModified() + file.length();
 
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
@@ -15,6 +34,13 @@ public class FileIDGenerator {
         return bytesToHex(id);
     }
 
+    /**
+     * @return id of a file whose content has been hashed, when ids are derived from the content
+     */
+    public static String generateID(TreeHash hash) throws NoSuchAlgorithmException {
+        return hash.getID(contentSalt);
+    }
+
     public static String bytesToHex(byte[] hex) {
 
         StringBuilder ret = new StringBuilder();
@@ -23,4 +49,12 @@ public class FileIDGenerator {
         }
         return ret.toString();
     }
+
+    public static byte[] hexToBytes(String hex) {
+        byte[] ret = new byte[hex.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return ret;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 tree hash of the content of a file. The file is split into leaves of fixed size, hashed in parallel from a
+ * memory mapping of the file, and the leaf digests are hashed in pairs, level by level, up to the root. The leaf
+ * digests identify which parts of a copy of the file differ from the original.
+ */
+public class TreeHash {
+
+    public static final int LEAF_SIZE = 1 << 20;
+
+    // the file is mapped in regions of whole leaves, each of them at most 2GB
+    private static final long REGION_SIZE = 1024L * LEAF_SIZE;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[][] leaves;
+    private final byte[] root;
+    private final long length;
+    private final long elapsed; // ns
+
+    private TreeHash(byte[][] leaves, long length, long elapsed) throws NoSuchAlgorithmException {
+        this.leaves = leaves;
+        this.length = length;
+        this.elapsed = elapsed;
+        this.root = computeRoot(leaves);
+    }
+
+    /**
+     * Hashes the content of a file
+     */
+    public static TreeHash compute(File file) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        long length = file.length();
+        byte[][] leaves = hashLeaves(file);
+
+        return new TreeHash(leaves, length, System.nanoTime() - start);
+    }
+
+    /**
+     * @return digests of the leaves of a file, in order, a single one for an empty file
+     */
+    public static byte[][] hashLeaves(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest.getInstance("SHA-256");
+
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            int numLeaves = (int) Math.max(1, (length + LEAF_SIZE - 1) / LEAF_SIZE);
+
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long offset = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, length - offset));
+            }
+
+            byte[][] leaves = new byte[numLeaves][];
+            ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(TreeHash::newDigest);
+
+            IntStream.range(0, numLeaves).parallel().forEach((leaf) -> {
+                MessageDigest digest = digests.get();
+                digest.update(LEAF_PREFIX);
+
+                if (length > 0) {
+                    long offset = (long) leaf * LEAF_SIZE;
+                    // each thread works on its own view of the region
+                    ByteBuffer view = regions[(int) (offset / REGION_SIZE)].duplicate();
+                    int position = (int) (offset % REGION_SIZE);
+                    view.limit(Math.min(view.capacity(), position + LEAF_SIZE));
+                    view.position(position);
+                    digest.update(view);
+                }
+
+                leaves[leaf] = digest.digest();
+            });
+
+            return leaves;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // checked before hashing
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] computeRoot(byte[][] leaves) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[][] level = leaves;
+
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                // a node without a pair is carried up as it is
+                if (2 * i + 1 == level.length) {
+                    next[i] = level[2 * i];
+                    continue;
+                }
+
+                digest.update(NODE_PREFIX);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                next[i] = digest.digest();
+            }
+            level = next;
+        }
+
+        return level[0];
+    }
+
+    /**
+     * @param salt  mixed into the id, so that different peers backing up the same content get different ids
+     * @return file id derived from the root of the tree
+     */
+    public String getID(String salt) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(salt.getBytes(StandardCharsets.UTF_8));
+        digest.update(this.root);
+
+        return FileIDGenerator.bytesToHex(digest.digest());
+    }
+
+    public byte[][] getLeaves() {
+        return this.leaves;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return time taken to hash the file, in ns
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    /**
+     * @return numbers of the leaves that differ between two lists of leaf digests, including the ones only in one
+     */
+    public static List<Integer> compareLeaves(byte[][] expected, byte[][] actual) {
+        List<Integer> different = new ArrayList<>();
+
+        for (int leaf = 0; leaf < Math.max(expected.length, actual.length); leaf++) {
+            if (leaf >= expected.length || leaf >= actual.length
+                    || ! MessageDigest.isEqual(expected[leaf], actual[leaf]))
+                different.add(leaf);
+        }
+
+        return different;
+    }
+}
@@ -0,0 +1,698 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import file.Codec;
+import file.FileIDGenerator;
+
+/**
+ * Index of the chunks stored by a peer, kept in a memory-mapped file so that it survives restarts without being
+ * deserialized. While it is in use it holds the metadata of the stored chunks in place of the state file, which
+ * is then saved without them, and it answers the queries made while handling protocol messages. PeerState still
+ * keeps a copy on the heap, rebuilt from the index when the peer starts, for the reclaim and content indexes.
+ * It is an open-addressing hash table keyed by (file handle, chunk number), where file handles are small integers
+ * assigned to file ids by a separate table in the same file. Queries share a read lock, changes take the write
+ * lock.
+ *
+ * The generation in the header is written with the state each time it is saved, so that an index that wasn't
+ * kept up to date with the state, e.g. because the peer ran without it, isn't trusted.
+ *
+ * Layout of the index file:
+ *   header      : magic, version, slot capacity, live slots, used slots (live + deleted), file capacity, file count,
+ *                 generation
+ *   file table  : fileCapacity entries of { file id (32 bytes), desired RD, number of chunks }
+ *   slot table  : capacity entries of { file handle, chunk number, size, desired RD, peer bitmap (128 bits),
+ *                 number of other peers, codec, content hash known, last access, content hash (32 bytes) }
+ *
+ * File ids and content hashes must be SHA-256 hex strings. Peers with ids in [0, 128) are kept in the peer bitmap,
+ * the others are only counted, and so are forgotten when the heap copy is rebuilt.
+ */
+public class ChunkIndex {
+
+    private static final int MAGIC = 0x43484958; // "CHIX"
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int FILE_ID_SIZE = 32;
+    private static final int FILE_ENTRY_SIZE = FILE_ID_SIZE + 8;
+    private static final int HASH_SIZE = 32;
+    private static final int SLOT_SIZE = 52 + HASH_SIZE;
+
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    public static final int MAX_PEER_ID = 128;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int INITIAL_FILE_CAPACITY = 1 << 8;
+    private static final double MAX_LOAD = 0.7;
+
+    private final File file;
+    private MappedByteBuffer buffer;
+
+    private int capacity, count, used;
+    private int fileCapacity, fileCount;
+    private long generation;
+
+    // file id -> handle, rebuilt from the file table when the index is opened
+    private HashMap<String, Integer> handles;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ChunkIndex(File file) {
+        this.file = file;
+        this.handles = new HashMap<>();
+    }
+
+    /**
+     * Opens the index stored in a file, creating an empty one if the file doesn't exist or isn't a valid index
+     */
+    public static ChunkIndex open(String path) throws IOException {
+        ChunkIndex index = new ChunkIndex(new File(path));
+
+        if (! index.load())
+            index.create(INITIAL_CAPACITY, INITIAL_FILE_CAPACITY);
+
+        return index;
+    }
+
+    private static long fileSize(int capacity, int fileCapacity) {
+        return HEADER_SIZE + (long) fileCapacity * FILE_ENTRY_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private boolean load() throws IOException {
+        if (! this.file.isFile() || this.file.length() < HEADER_SIZE)
+            return false;
+
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            return false;
+
+        int capacity = buf.getInt(8);
+        int fileCapacity = buf.getInt(20);
+        if (Integer.bitCount(capacity) != 1 || buf.capacity() < fileSize(capacity, fileCapacity))
+            return false;
+
+        this.buffer = buf;
+        this.capacity = capacity;
+        this.count = buf.getInt(12);
+        this.used = buf.getInt(16);
+        this.fileCapacity = fileCapacity;
+        this.fileCount = buf.getInt(24);
+        this.generation = buf.getLong(28);
+
+        byte[] id = new byte[FILE_ID_SIZE];
+        for (int handle = 1; handle <= this.fileCount; handle++) {
+            this.getBytes(this.fileEntry(handle), id);
+            this.handles.put(FileIDGenerator.bytesToHex(id), handle);
+        }
+
+        return true;
+    }
+
+    private void getBytes(int offset, byte[] dst) {
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset);
+        view.get(dst);
+    }
+
+    private void putBytes(int offset, byte[] src) {
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset);
+        view.put(src);
+    }
+
+    private void create(int capacity, int fileCapacity) throws IOException {
+        this.buffer = map(this.file, fileSize(capacity, fileCapacity));
+        this.capacity = capacity;
+        this.fileCapacity = fileCapacity;
+        this.count = this.used = this.fileCount = 0;
+        this.generation = 0;
+        this.handles.clear();
+
+        this.writeHeader();
+    }
+
+    private void writeHeader() {
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, VERSION);
+        this.buffer.putInt(8, this.capacity);
+        this.buffer.putInt(12, this.count);
+        this.buffer.putInt(16, this.used);
+        this.buffer.putInt(20, this.fileCapacity);
+        this.buffer.putInt(24, this.fileCount);
+        this.buffer.putLong(28, this.generation);
+    }
+
+    private int fileEntry(int handle) {
+        return HEADER_SIZE + (handle - 1) * FILE_ENTRY_SIZE;
+    }
+
+    private long slotOffset(int slot) {
+        return HEADER_SIZE + (long) this.fileCapacity * FILE_ENTRY_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    private static int hash(int handle, int chunkNo) {
+        long h = ((long) handle << 32) | (chunkNo & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @return slot where the chunk is stored, or -1 if it isn't in the index
+     */
+    private int find(int handle, int chunkNo) {
+        int mask = this.capacity - 1;
+        for (int slot = hash(handle, chunkNo) & mask; ; slot = (slot + 1) & mask) {
+            int offset = (int) this.slotOffset(slot);
+            int slotHandle = this.buffer.getInt(offset);
+
+            if (slotHandle == EMPTY)
+                return -1;
+
+            if (slotHandle == handle && this.buffer.getInt(offset + 4) == chunkNo)
+                return slot;
+        }
+    }
+
+    private int handle(String fileId) {
+        Integer handle = this.handles.get(fileId);
+        return handle == null ? -1 : handle;
+    }
+
+    private int getOrCreateHandle(String fileId, int repDegree) throws IOException {
+        Integer handle = this.handles.get(fileId);
+        if (handle != null) {
+            int entry = this.fileEntry(handle) + FILE_ID_SIZE;
+            if (this.buffer.getInt(entry + 4) == 0)
+                this.buffer.putInt(entry, repDegree);
+
+            return handle;
+        }
+
+        if (this.fileCount == this.fileCapacity)
+            this.rebuild(this.capacity, this.fileCapacity * 2);
+
+        handle = ++this.fileCount;
+        int entry = this.fileEntry(handle);
+        this.putBytes(entry, FileIDGenerator.hexToBytes(fileId));
+        this.buffer.putInt(entry + FILE_ID_SIZE, repDegree);
+        this.buffer.putInt(entry + FILE_ID_SIZE + 4, 0);
+        this.handles.put(fileId, handle);
+
+        this.writeHeader();
+
+        return handle;
+    }
+
+    private void addFileChunks(int handle, int delta) {
+        int offset = this.fileEntry(handle) + FILE_ID_SIZE + 4;
+        this.buffer.putInt(offset, this.buffer.getInt(offset) + delta);
+    }
+
+    /**
+     * Copies the live entries into a new index file with the given capacities, dropping deleted slots
+     * and the handles of files that have no chunks left, and replaces the current file with it.
+     */
+    private void rebuild(int newCapacity, int newFileCapacity) throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        ChunkIndex index = new ChunkIndex(tmp);
+        index.create(newCapacity, newFileCapacity);
+        index.generation = this.generation;
+
+        int[] newHandles = new int[this.fileCount + 1];
+        byte[] id = new byte[FILE_ID_SIZE];
+        for (int handle = 1; handle <= this.fileCount; handle++) {
+            int entry = this.fileEntry(handle);
+            if (this.buffer.getInt(entry + FILE_ID_SIZE + 4) == 0)
+                continue;
+
+            this.getBytes(entry, id);
+            newHandles[handle] = index.getOrCreateHandle(FileIDGenerator.bytesToHex(id), this.buffer.getInt(entry + FILE_ID_SIZE));
+        }
+
+        byte[] slot = new byte[SLOT_SIZE];
+        for (int i = 0; i < this.capacity; i++) {
+            int offset = (int) this.slotOffset(i);
+            int handle = this.buffer.getInt(offset);
+            if (handle == EMPTY || handle == DELETED)
+                continue;
+
+            this.getBytes(offset, slot);
+            index.insertSlot(newHandles[handle], slot);
+        }
+
+        index.buffer.force();
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.buffer = index.buffer;
+        this.capacity = index.capacity;
+        this.count = index.count;
+        this.used = index.used;
+        this.fileCapacity = index.fileCapacity;
+        this.fileCount = index.fileCount;
+        this.handles = index.handles;
+    }
+
+    // inserts a copy of a slot from another index, used while rebuilding
+    private void insertSlot(int handle, byte[] slot) {
+        int chunkNo = ((slot[4] & 0xff) << 24) | ((slot[5] & 0xff) << 16) | ((slot[6] & 0xff) << 8) | (slot[7] & 0xff);
+        int mask = this.capacity - 1;
+        int i = hash(handle, chunkNo) & mask;
+        while (this.buffer.getInt((int) this.slotOffset(i)) != EMPTY)
+            i = (i + 1) & mask;
+
+        int offset = (int) this.slotOffset(i);
+        this.putBytes(offset, slot);
+        this.buffer.putInt(offset, handle);
+        this.addFileChunks(handle, 1);
+
+        this.count++;
+        this.used++;
+        this.writeHeader();
+    }
+
+    /**
+     * Adds a chunk to the index
+     * @param contentHash   SHA-256 of the chunk's content in hex, null if unknown
+     * @param codec         encoding of the chunk's content at rest
+     * @param lastAccess    time of the last access to the chunk, in ms
+     * @return true if the chunk was added, false if it was already in the index
+     */
+    public boolean put(String fileId, int chunkNo, int size, int repDegree, String contentHash, Codec codec,
+            long lastAccess) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.used + 1 > this.capacity * MAX_LOAD) {
+                // only grow if dropping the deleted slots isn't enough to bring the load down
+                int newCapacity = (this.count + 1 > this.capacity * MAX_LOAD / 2) ? this.capacity * 2 : this.capacity;
+                this.rebuild(newCapacity, this.fileCapacity);
+            }
+
+            int handle = this.getOrCreateHandle(fileId, repDegree);
+            if (this.find(handle, chunkNo) != -1)
+                return false;
+
+            int mask = this.capacity - 1;
+            int slot = hash(handle, chunkNo) & mask;
+            while (true) {
+                int slotHandle = this.buffer.getInt((int) this.slotOffset(slot));
+                if (slotHandle == EMPTY || slotHandle == DELETED)
+                    break;
+                slot = (slot + 1) & mask;
+            }
+
+            int offset = (int) this.slotOffset(slot);
+            if (this.buffer.getInt(offset) == EMPTY)
+                this.used++;
+
+            this.buffer.putInt(offset + 4, chunkNo);
+            this.buffer.putInt(offset + 8, size);
+            this.buffer.putInt(offset + 12, repDegree);
+            this.buffer.putLong(offset + 16, 0);
+            this.buffer.putLong(offset + 24, 0);
+            this.buffer.putInt(offset + 32, 0);
+            this.buffer.putInt(offset + 36, codec.ordinal());
+            this.buffer.putInt(offset + 40, contentHash != null ? 1 : 0);
+            this.buffer.putLong(offset + 44, lastAccess);
+            this.putBytes(offset + 52, contentHash != null ? FileIDGenerator.hexToBytes(contentHash) : new byte[HASH_SIZE]);
+            // the handle is written last, so that a crash while writing doesn't leave a half-written live slot
+            this.buffer.putInt(offset, handle);
+
+            this.addFileChunks(handle, 1);
+            this.count++;
+            this.writeHeader();
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a chunk from the index
+     * @return true if the chunk was in the index
+     */
+    public boolean remove(String fileId, int chunkNo) {
+        this.lock.writeLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            int slot = handle == -1 ? -1 : this.find(handle, chunkNo);
+            if (slot == -1)
+                return false;
+
+            this.buffer.putInt((int) this.slotOffset(slot), DELETED);
+            this.addFileChunks(handle, -1);
+            this.count--;
+            this.writeHeader();
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the desired replication degree of a file with chunks in the index
+     * @return true if the file has chunks in the index
+     */
+    public boolean setRepDegree(String fileId, int repDegree) {
+        this.lock.writeLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            if (handle == -1)
+                return false;
+
+            this.buffer.putInt(this.fileEntry(handle) + FILE_ID_SIZE, repDegree);
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean updatePeer(String fileId, int chunkNo, int peerID, boolean add) {
+        this.lock.writeLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            int slot = handle == -1 ? -1 : this.find(handle, chunkNo);
+            if (slot == -1)
+                return false;
+
+            int offset = (int) this.slotOffset(slot);
+
+            // the peers outside the bitmap are only counted, the state only adds or removes a peer once
+            if (peerID < 0 || peerID >= MAX_PEER_ID) {
+                int others = this.buffer.getInt(offset + 32);
+                this.buffer.putInt(offset + 32, add ? others + 1 : Math.max(0, others - 1));
+                return true;
+            }
+
+            offset += 16 + (peerID / 64) * 8;
+            long bit = 1L << (peerID % 64);
+            long bitmap = this.buffer.getLong(offset);
+            this.buffer.putLong(offset, add ? bitmap | bit : bitmap & ~bit);
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the time of the last access to a chunk
+     * @return true if the chunk is in the index
+     */
+    public boolean setLastAccess(String fileId, int chunkNo, long lastAccess) {
+        this.lock.writeLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            int slot = handle == -1 ? -1 : this.find(handle, chunkNo);
+            if (slot == -1)
+                return false;
+
+            this.buffer.putLong((int) this.slotOffset(slot) + 44, lastAccess);
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a peer to the peers that store a chunk
+     * @return true if the chunk is in the index
+     */
+    public boolean addPeer(String fileId, int chunkNo, int peerID) {
+        return this.updatePeer(fileId, chunkNo, peerID, true);
+    }
+
+    /**
+     * Removes a peer from the peers that store a chunk
+     * @return true if the chunk is in the index
+     */
+    public boolean removePeer(String fileId, int chunkNo, int peerID) {
+        return this.updatePeer(fileId, chunkNo, peerID, false);
+    }
+
+    public boolean contains(String fileId, int chunkNo) {
+        this.lock.readLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            return handle != -1 && this.find(handle, chunkNo) != -1;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsFile(String fileId) {
+        this.lock.readLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            return handle != -1 && this.buffer.getInt(this.fileEntry(handle) + FILE_ID_SIZE + 4) > 0;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the size of the chunk, -1 if it isn't in the index
+     */
+    public int getSize(String fileId, int chunkNo) {
+        this.lock.readLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            int slot = handle == -1 ? -1 : this.find(handle, chunkNo);
+            return slot == -1 ? -1 : this.buffer.getInt((int) this.slotOffset(slot) + 8);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the desired replication degree of the file, -1 if none of its chunks are in the index
+     */
+    public int getRepDegree(String fileId) {
+        this.lock.readLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            if (handle == -1)
+                return -1;
+
+            int entry = this.fileEntry(handle) + FILE_ID_SIZE;
+            return this.buffer.getInt(entry + 4) > 0 ? this.buffer.getInt(entry) : -1;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the perceived replication degree of the chunk (other peers that store it plus this one),
+     *         -1 if it isn't in the index
+     */
+    public int getPerceivedRepDegree(String fileId, int chunkNo) {
+        this.lock.readLock().lock();
+        try {
+            int handle = this.handle(fileId);
+            int slot = handle == -1 ? -1 : this.find(handle, chunkNo);
+            if (slot == -1)
+                return -1;
+
+            int offset = (int) this.slotOffset(slot);
+            return Long.bitCount(this.buffer.getLong(offset + 16)) + Long.bitCount(this.buffer.getLong(offset + 24))
+                    + this.buffer.getInt(offset + 32) + 1;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of chunks in the index
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Metadata of a chunk in the index
+     */
+    public static class Entry {
+        private final String fileId, contentHash;
+        private final int chunkNo, size, repDegree;
+        private final List<Integer> peers;
+        private final Codec codec;
+        private final long lastAccess;
+
+        private Entry(String fileId, int chunkNo, int size, int repDegree, List<Integer> peers, String contentHash,
+                Codec codec, long lastAccess) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.size = size;
+            this.repDegree = repDegree;
+            this.peers = peers;
+            this.contentHash = contentHash;
+            this.codec = codec;
+            this.lastAccess = lastAccess;
+        }
+
+        public String getFileId() {
+            return this.fileId;
+        }
+
+        public int getChunkNo() {
+            return this.chunkNo;
+        }
+
+        public int getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return desired replication degree of the chunk's file
+         */
+        public int getRepDegree() {
+            return this.repDegree;
+        }
+
+        /**
+         * @return other peers that store the chunk, only the ones in the peer bitmap
+         */
+        public List<Integer> getPeers() {
+            return this.peers;
+        }
+
+        /**
+         * @return SHA-256 of the chunk's content in hex, null if unknown
+         */
+        public String getContentHash() {
+            return this.contentHash;
+        }
+
+        public Codec getCodec() {
+            return this.codec;
+        }
+
+        public long getLastAccess() {
+            return this.lastAccess;
+        }
+    }
+
+    /**
+     * Calls an action for every chunk in the index, while holding the read lock
+     */
+    public void forEach(Consumer<Entry> action) {
+        this.lock.readLock().lock();
+        try {
+            String[] fileIds = new String[this.fileCount + 1];
+            for (HashMap.Entry<String, Integer> handle : this.handles.entrySet())
+                fileIds[handle.getValue()] = handle.getKey();
+
+            Codec[] codecs = Codec.values();
+            byte[] hash = new byte[HASH_SIZE];
+
+            for (int slot = 0; slot < this.capacity; slot++) {
+                int offset = (int) this.slotOffset(slot);
+                int handle = this.buffer.getInt(offset);
+                if (handle == EMPTY || handle == DELETED)
+                    continue;
+
+                List<Integer> peers = new ArrayList<>();
+                for (int word = 0; word < 2; word++) {
+                    long bitmap = this.buffer.getLong(offset + 16 + word * 8);
+                    for (; bitmap != 0; bitmap &= bitmap - 1)
+                        peers.add(word * 64 + Long.numberOfTrailingZeros(bitmap));
+                }
+
+                String contentHash = null;
+                if (this.buffer.getInt(offset + 40) != 0) {
+                    this.getBytes(offset + 52, hash);
+                    contentHash = FileIDGenerator.bytesToHex(hash);
+                }
+
+                int codec = this.buffer.getInt(offset + 36);
+
+                action.accept(new Entry(fileIds[handle], this.buffer.getInt(offset + 4), this.buffer.getInt(offset + 8),
+                        this.buffer.getInt(this.fileEntry(handle) + FILE_ID_SIZE), peers, contentHash,
+                        codec >= 0 && codec < codecs.length ? codecs[codec] : Codec.RAW,
+                        this.buffer.getLong(offset + 44)));
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return generation of the state the index was last saved with
+     */
+    public long getGeneration() {
+        this.lock.readLock().lock();
+        try {
+            return this.generation;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the generation of the state being saved and writes the index to the storage device
+     */
+    public void force(long generation) {
+        this.lock.writeLock().lock();
+        try {
+            this.generation = generation;
+            this.writeHeader();
+            this.buffer.force();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all chunks from the index
+     */
+    public void clear() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            this.create(this.capacity, this.fileCapacity);
+
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(HEADER_SIZE);
+            byte[] zeros = new byte[4096];
+            while (view.hasRemaining())
+                view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+}
@@ -1,9 +1,13 @@
 package filesystem;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import file.Codec;
+
 /**
  * Information regarding a chunk being backed up by a peer.
  */
@@ -13,16 +17,61 @@ public class ChunkInfo implements Serializable {
 
     private final int size; // size of the chunk in bytes
     private Set<Integer> peers; // other peers that are currently backing up this chunk
+    private volatile long lastAccess; // time of the last time the chunk was stored or sent, in ms
+    private final String contentHash; // SHA-256 of the content, null if unknown
+    private final Codec codec; // encoding of the content at rest, null in state saved before it was recorded
 
     public ChunkInfo(int size) {
+        this(size, null, Codec.RAW);
+    }
+
+    public ChunkInfo(int size, String contentHash, Codec codec) {
         this.size = size;
+        this.contentHash = contentHash;
+        this.codec = codec;
         this.peers = new HashSet<Integer>();
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Information of a chunk read back from the chunk index
+     */
+    public ChunkInfo(int size, String contentHash, Codec codec, long lastAccess) {
+        this(size, contentHash, codec);
+        this.lastAccess = lastAccess;
+    }
+
+    /**
+     * Copy of a chunk's information with a different size
+     */
+    public ChunkInfo(ChunkInfo other, int size) {
+        this(size, other.contentHash, other.codec);
+        synchronized (other) {
+            this.peers.addAll(other.peers);
+        }
+        this.lastAccess = other.lastAccess;
     }
 
     public int getSize() {
         return this.size;
     }
 
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    public Codec getCodec() {
+        return this.codec == null ? Codec.RAW : this.codec;
+    }
+
+    public long getLastAccess() {
+        return this.lastAccess;
+    }
+
+    public void touch() {
+        this.lastAccess = System.currentTimeMillis();
+    }
+
     public synchronized void addPeer(int peerID) {
         peers.add(peerID);
     }
@@ -31,6 +80,10 @@ public class ChunkInfo implements Serializable {
         return peers.remove(peerID);
     }
 
+    public synchronized List<Integer> getPeers() {
+        return new ArrayList<Integer>(peers);
+    }
+
     public synchronized int getPerceivedRepDegree() {
         return this.peers.size() + 1;
     }
@@ -40,7 +93,7 @@ public class ChunkInfo implements Serializable {
         String ret = "";
 
         ret += "      Perceived RD : " + this.getPerceivedRepDegree() + "\n";
-        ret += "      Size : " + size + " bytes\n";
+        ret += "      Size : " + size + " bytes" + (this.getCodec() != Codec.RAW ? " (" + this.getCodec() + ")" : "") + "\n";
         ret += "      Peers :";
 
         synchronized (this) {
@@ -1,30 +1,53 @@
 package filesystem;
 
+import java.util.ArrayList;
+import java.util.List;
 
-public class ChunkReclaim implements Comparable<ChunkReclaim> {
-    private int chunkNo, diff, size;
-    private String fileId;
+import file.Codec;
 
-    public ChunkReclaim(String fileId, int chunkNo, int diff, int size) {
+/**
+ * Entry of the reclaim index, a snapshot of the information about a stored chunk used to
+ * decide the order in which chunks are removed.
+ */
+public class ChunkReclaim {
+    private final int chunkNo, repDegree, surplus, size;
+    private final long lastAccess;
+    private final String fileId;
+    private final List<Integer> holders;
+    private final Codec codec;
+
+    /**
+     * @param fileId        file id
+     * @param chunkNo       chunk number
+     * @param repDegree     desired replication degree
+     * @param surplus       perceived replication degree minus the desired one
+     * @param size          chunk size
+     * @param lastAccess    time of the last access to the chunk, in ms
+     */
+    public ChunkReclaim(String fileId, int chunkNo, int repDegree, int surplus, int size, long lastAccess) {
+        this(fileId, chunkNo, repDegree, surplus, size, lastAccess, new ArrayList<>(), Codec.RAW);
+    }
+
+    private ChunkReclaim(String fileId, int chunkNo, int repDegree, int surplus, int size, long lastAccess,
+            List<Integer> holders, Codec codec) {
         this.fileId = fileId;
         this.chunkNo = chunkNo;
-        this.diff = diff;
+        this.repDegree = repDegree;
+        this.surplus = surplus;
         this.size = size;
+        this.lastAccess = lastAccess;
+        this.holders = holders;
+        this.codec = codec;
     }
 
-    @Override
-    public int compareTo(ChunkReclaim chunk) {
-        if (this.diff > chunk.diff)
-            return -1;
-        else if (this.diff < chunk.diff)
-            return 1;
-
-        if (this.size > chunk.size)
-            return -1;
-        else if (this.size < chunk.size)
-            return 1;
-
-        return 0;
+    /**
+     * @param holders   other peers known to store the chunk, null if none are known
+     * @param codec     codec the chunk is stored with
+     * @return a copy of the entry with the information the state had about the chunk before it was removed
+     */
+    public ChunkReclaim withStoredState(List<Integer> holders, Codec codec) {
+        return new ChunkReclaim(this.fileId, this.chunkNo, this.repDegree, this.surplus, this.size, this.lastAccess,
+                holders == null ? new ArrayList<>() : new ArrayList<>(holders), codec);
     }
 
     public String getFileId() {
@@ -35,7 +58,33 @@ public class ChunkReclaim implements Comparable<ChunkReclaim> {
         return this.chunkNo;
     }
 
+    public int getRepDegree() {
+        return this.repDegree;
+    }
+
+    public int getSurplus() {
+        return this.surplus;
+    }
+
     public int getSize() {
         return this.size;
     }
-}
\ No newline at end of file
+
+    public long getLastAccess() {
+        return this.lastAccess;
+    }
+
+    /**
+     * @return other peers known to store the chunk when it was reclaimed, empty for the index entries
+     */
+    public List<Integer> getHolders() {
+        return this.holders;
+    }
+
+    /**
+     * @return codec the chunk was stored with when it was reclaimed, RAW for the index entries
+     */
+    public Codec getCodec() {
+        return this.codec;
+    }
+}
@@ -0,0 +1,167 @@
+package filesystem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import file.ChunkKey;
+import util.Log;
+
+/**
+ * Reconciles the peer state with the chunks actually present in the file system, after the state failed to
+ * load or may be stale because the peer crashed. The chunks directory is scanned in parallel and then:
+ *  - chunks on disk that the state doesn't know about are added to it. Deleting them would leave the other peers
+ *    counting them as replicas, so the chunks of files the state has nothing about are kept as well, with an
+ *    unknown desired replication degree until a PUTCHUNK, PUTHASH or WHOHAS of the file carries it;
+ *  - chunks whose size differs from the size of their file are updated, adjusting the used space;
+ *  - chunks in the state that aren't on disk are removed from it.
+ * It runs while the peer is already serving requests, so files written after the scan started are ignored.
+ */
+public class ChunkStoreReconciler implements Runnable {
+
+    private FileSystem fileSystem;
+    private PeerState state;
+
+    /**
+     * @param fileSystem    peer's file system
+     * @param state         peer's state
+     */
+    public ChunkStoreReconciler(FileSystem fileSystem, PeerState state) {
+        this.fileSystem = fileSystem;
+        this.state = state;
+    }
+
+    private static class DiskChunk {
+        final ChunkKey key;
+        final int size;
+        final long lastModified;
+
+        DiskChunk(String fileId, int chunkNo, File file) {
+            this.key = new ChunkKey(fileId, chunkNo);
+            this.size = (int) file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    /**
+     * Scans a directory, forking a task for each file directory when scanning the chunks directory
+     */
+    private static class ScanTask extends RecursiveTask<List<DiskChunk>> {
+        private static final long serialVersionUID = -1384620934751237905L;
+
+        private final File dir;
+        private final boolean root;
+
+        ScanTask(File dir, boolean root) {
+            this.dir = dir;
+            this.root = root;
+        }
+
+        @Override
+        protected List<DiskChunk> compute() {
+            List<DiskChunk> chunks = new ArrayList<>();
+            File[] entries = this.dir.listFiles();
+
+            if (entries == null)
+                return chunks;
+
+            if (this.root) {
+                List<ScanTask> tasks = new ArrayList<>();
+                for (File entry : entries) {
+                    if (entry.isDirectory())
+                        tasks.add(new ScanTask(entry, false));
+                }
+
+                invokeAll(tasks);
+
+                for (ScanTask task : tasks)
+                    chunks.addAll(task.join());
+            } else {
+                for (File entry : entries) {
+                    if (! entry.isFile())
+                        continue;
+
+                    try {
+                        chunks.add(new DiskChunk(this.dir.getName(), Integer.parseInt(entry.getName()), entry));
+                    } catch (NumberFormatException e) {
+                        Log.logError("Unexpected file in chunks directory: " + entry.getPath());
+                    }
+                }
+            }
+
+            return chunks;
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+
+        List<ChunkKey> knownChunks = this.state.getStoredChunkKeys();
+
+        ForkJoinPool pool = new ForkJoinPool();
+        List<DiskChunk> diskChunks;
+        try {
+            diskChunks = pool.invoke(new ScanTask(this.fileSystem.getChunksDirectory(), true));
+        } finally {
+            pool.shutdown();
+        }
+
+        long scanTime = System.currentTimeMillis() - start;
+
+        HashMap<ChunkKey, DiskChunk> onDisk = new HashMap<>();
+        long diskBytes = 0;
+        int adopted = 0, resized = 0, orphans = 0, missing = 0;
+
+        for (DiskChunk chunk : diskChunks) {
+            onDisk.put(chunk.key, chunk);
+            diskBytes += chunk.size;
+
+            String fileId = chunk.key.getFileID();
+            int chunkNo = chunk.key.getNumber();
+            int size = this.state.getStoredChunkSize(fileId, chunkNo);
+
+            if (size == chunk.size)
+                continue;
+
+            if (size != -1) {
+                if (this.state.resizeStoredChunk(fileId, chunkNo, chunk.size) != -1)
+                    resized++;
+                continue;
+            }
+
+            // may have been stored after the scan started, in which case the state is updated by the handler
+            if (chunk.lastModified >= start)
+                continue;
+
+            boolean orphan = ! this.state.isStoredFile(fileId);
+            if (this.state.adoptStoredChunk(fileId, chunkNo, chunk.size)) {
+                adopted++;
+                if (orphan)
+                    orphans++;
+            }
+        }
+
+        for (ChunkKey key : knownChunks) {
+            if (onDisk.containsKey(key))
+                continue;
+
+            int size = this.state.getStoredChunkSize(key.getFileID(), key.getNumber());
+            if (size != -1 && ! this.fileSystem.hasChunk(key)
+                    && this.state.removeStoredChunk(key.getFileID(), key.getNumber(), size))
+                missing++;
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+        Log.log("Reconciled state with " + diskChunks.size() + " chunks on disk (" + diskBytes + " bytes) in "
+                + elapsed + "ms, scan took " + scanTime + "ms (" + (diskChunks.size() * 1000L / Math.max(scanTime, 1))
+                + " chunks/s)");
+        Log.log("Reconciliation :: " + adopted + " added :: " + resized + " resized :: " + orphans
+                + " of unknown files :: " + missing + " missing removed :: used storage " + this.state.getUsedStorage()
+                + " bytes");
+    }
+}
@@ -7,6 +7,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import file.ChunkManifest;
+
 /**
  * Information regarding a file for which a peer requested backup.
  */
@@ -17,17 +19,74 @@ public class FileInfo implements Serializable {
     private final String path;
     private final String id;
     private final int desiredRepDegree;
+    // number of chunks the file was split into, 0 if unknown
+    private int numChunks;
+    // chunks the file was split into, null for files backed up before manifests were kept
+    private ChunkManifest manifest;
+    // true once a newer version of the file, backed up from the same path, has replaced it
+    private volatile boolean superseded;
 
     // peers that are backing up each of the files' chunks
     private ConcurrentHashMap<Integer, Set<Integer>> chunks;
 
-    public FileInfo(String path, String id, int repDegree) {
+    public FileInfo(String path, String id, int repDegree, int numChunks) {
+        this(path, id, repDegree, numChunks, null);
+    }
+
+    public FileInfo(String path, String id, int repDegree, int numChunks, ChunkManifest manifest) {
         this.path = path;
         this.id = id;
         this.desiredRepDegree = repDegree;
+        this.numChunks = numChunks;
+        this.manifest = manifest;
         this.chunks = new ConcurrentHashMap<>();
     }
 
+    public String getId() {
+        return this.id;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    public int getDesiredRepDegree() {
+        return this.desiredRepDegree;
+    }
+
+    /**
+     * @return number of chunks of the file, or the number of chunks with known peers if it's unknown
+     */
+    public int getNumChunks() {
+        return this.numChunks > 0 ? this.numChunks : this.chunks.size();
+    }
+
+    public boolean isSuperseded() {
+        return this.superseded;
+    }
+
+    public void setSuperseded() {
+        this.superseded = true;
+    }
+
+    public ChunkManifest getManifest() {
+        return this.manifest;
+    }
+
+    /**
+     * @return numbers of the chunks backed up as part of this file, that is, all but the ones reused from other files
+     */
+    public List<Integer> getOwnChunks() {
+        if (this.manifest != null)
+            return this.manifest.getOwnChunks();
+
+        List<Integer> chunkNos = new ArrayList<>();
+        for (int chunkNo = 0; chunkNo < this.getNumChunks(); chunkNo++)
+            chunkNos.add(chunkNo);
+
+        return chunkNos;
+    }
+
     public void addChunk(int chunkNo, int peerID) {
         chunks.putIfAbsent(chunkNo, new HashSet<Integer>());
 
@@ -51,6 +110,18 @@ public class FileInfo implements Serializable {
         return removed;
     }
 
+    /**
+     * Replaces the peers backing up a chunk
+     */
+    public void setChunkPeers(int chunkNo, Set<Integer> peerIDs) {
+        Set<Integer> peers = chunks.computeIfAbsent(chunkNo, (k) -> new HashSet<Integer>());
+
+        synchronized (peers) {
+            peers.clear();
+            peers.addAll(peerIDs);
+        }
+    }
+
     public List<Integer> getChunkPeers(int chunkNo) {
         Set<Integer> set = chunks.get(Integer.valueOf(chunkNo));
         if (set == null)
@@ -58,6 +129,16 @@ public class FileInfo implements Serializable {
         return new ArrayList<Integer>(set);
     }
 
+    public int getChunkPerceivedRepDegree(int chunkNo) {
+        Set<Integer> peers = chunks.get(chunkNo);
+        if (peers == null)
+            return 0;
+
+        synchronized (peers) {
+            return peers.size();
+        }
+    }
+
     public List<Integer> getChunks() {
         return new ArrayList<Integer>(chunks.keySet());
     }
@@ -68,6 +149,8 @@ public class FileInfo implements Serializable {
         ret += "  ID : " + id + "\n";
         ret += "  Path : " + path + "\n";
         ret += "  Desired RD : " + String.valueOf(desiredRepDegree) + "\n";
+        if (superseded)
+            ret += "  Superseded by a newer version, kept while its chunks are reused\n";
 
         for (ConcurrentHashMap.Entry<Integer, Set<Integer>> entry : chunks.entrySet()) {
             int rd;
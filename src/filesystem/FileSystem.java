@@ -7,11 +7,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.List;
 
 import file.Chunk;
 import file.ChunkKey;
+import file.ChunkManifest;
+import file.Codec;
 import peer.Peer;
 import util.Log;
 
@@ -19,7 +23,9 @@ public class FileSystem {
     private String fileSystemPrefix;
     private final String CHUNKS_PATH_PREFIX = "chunks/";
     private final String RECOVERED_PATH_PREFIX = "recovered/";
+    private final String PACKS_PATH_PREFIX = "packs/";
     private final String PERSISTENT_STATE_PATH = ".state";
+    private final String CHUNK_INDEX_PATH = ".chunkindex";
 
     public FileSystem(Peer peer) {
         this.fileSystemPrefix = "peer_" + peer.getID() + "/";
@@ -31,6 +37,13 @@ public class FileSystem {
         recoveredDir.mkdirs();
     }
 
+    /**
+     * @return the directory under which chunks are stored, with one subdirectory per file id
+     */
+    public File getChunksDirectory() {
+        return new File(this.fileSystemPrefix + CHUNKS_PATH_PREFIX);
+    }
+
     public int storeChunk(Chunk chunk) throws IOException {
         String dirPath = fileSystemPrefix + CHUNKS_PATH_PREFIX + chunk.getFileID() + "/";
 
@@ -39,6 +52,9 @@ public class FileSystem {
 
         String path = dirPath + chunk.getNumber();
 
+        // the file may be a link shared with other chunks, which must not be overwritten
+        new File(path).delete();
+
         FileOutputStream fos = new FileOutputStream(path);
 
         fos.write(chunk.getContent());
@@ -48,6 +64,15 @@ public class FileSystem {
     }
 
     public Chunk loadChunk(String fileID, int chunkNumber) throws FileNotFoundException {
+        return this.loadChunk(fileID, chunkNumber, Codec.RAW);
+    }
+
+    /**
+     * Loads a stored chunk, as it is at rest
+     * @param codec     encoding of the stored content
+     * @return the chunk, null if it isn't stored
+     */
+    public Chunk loadChunk(String fileID, int chunkNumber, Codec codec) throws FileNotFoundException {
         String path = fileSystemPrefix + CHUNKS_PATH_PREFIX + fileID + "/" + chunkNumber;
 
         File file = new File(path);
@@ -66,7 +91,36 @@ public class FileSystem {
             return null;
         }
 
-        return new Chunk(fileID, chunkNumber, buf);
+        return new Chunk(fileID, chunkNumber, buf, codec);
+    }
+
+    /**
+     * Stores a chunk with the same content as a stored chunk, as a hard link to its file, so that the content is
+     * only stored once on disk
+     * @param source    stored chunk
+     * @param chunkKey  chunk to store
+     * @return size of the chunk, -1 if it couldn't be linked (e.g. the file system doesn't support links)
+     */
+    public long linkChunk(ChunkKey source, ChunkKey chunkKey) {
+        File sourceFile = new File(fileSystemPrefix + CHUNKS_PATH_PREFIX + source.getFileID() + "/" + source.getNumber());
+        File dir = new File(fileSystemPrefix + CHUNKS_PATH_PREFIX + chunkKey.getFileID() + "/");
+        dir.mkdirs();
+
+        File file = new File(dir, String.valueOf(chunkKey.getNumber()));
+
+        try {
+            Files.createLink(file.toPath(), sourceFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            if (dir.list().length == 0)
+                dir.delete();
+            return -1;
+        }
+
+        return file.length();
+    }
+
+    public boolean hasChunk(ChunkKey chunkKey) {
+        return new File(fileSystemPrefix + CHUNKS_PATH_PREFIX + chunkKey.getFileID() + "/" + chunkKey.getNumber()).isFile();
     }
 
     public int deleteChunk(ChunkKey chunkKey) {
@@ -99,15 +153,40 @@ public class FileSystem {
         return 0;
     }
 
+    /**
+     * Keeps a copy of a pack of small files backed up by this peer, from which its chunks are read when they have
+     * to be sent again
+     * @return path of the pack
+     */
+    public String storePack(String packId, byte[] content) throws IOException {
+        File dir = new File(fileSystemPrefix + PACKS_PATH_PREFIX);
+        dir.mkdirs();
+
+        File file = new File(dir, packId);
+        Files.write(file.toPath(), content);
+
+        return file.getAbsolutePath();
+    }
+
+    public boolean deletePack(String packId) {
+        return new File(fileSystemPrefix + PACKS_PATH_PREFIX + packId).delete();
+    }
+
+    /**
+     * @return file a backed up file is restored to
+     */
+    public File getRecoveredFile(String fileID) {
+        return new File(fileSystemPrefix + RECOVERED_PATH_PREFIX + "/" + fileID);
+    }
+
     public int restoreFile(List<Chunk> chunks) {
         if (chunks.size() <= 0)
             return -1;
 
         Collections.sort(chunks);
 
-        String path = fileSystemPrefix + RECOVERED_PATH_PREFIX + "/" + chunks.get(0).getFileID();
-
-        File file = new File(path);
+        File file = this.getRecoveredFile(chunks.get(0).getFileID());
+        String path = file.getPath();
         if (file.exists()) {
             file.delete();
         }
@@ -115,13 +194,15 @@ public class FileSystem {
         try {
             FileOutputStream fos = new FileOutputStream(path, true);
 
+            // the chunks are only decoded here, they are kept as received until the file is complete
             for (Chunk chunk : chunks) {
-                fos.write(chunk.getContent());
+                fos.write(chunk.decode().getContent());
             }
 
             fos.close();
         } catch (IOException e) {
             Log.logError("Failed restoring file from chunks");
+            return -1;
         }
 
         Log.log("Restored file " + chunks.get(0).getFileID());
@@ -129,6 +210,39 @@ public class FileSystem {
         return 0;
     }
 
+    /**
+     * Restores a file whose chunks may include holes, which are left unwritten so that the file system can keep them
+     * as sparse regions
+     * @param chunks    chunks received, all but the holes
+     * @param manifest  chunks the file was split into, null if unknown
+     */
+    public int restoreFile(String fileID, List<Chunk> chunks, ChunkManifest manifest) {
+        if (manifest == null || manifest.getHoleBytes() == 0)
+            return this.restoreFile(chunks);
+
+        File file = this.getRecoveredFile(fileID);
+        if (file.exists()) {
+            file.delete();
+        }
+
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            for (Chunk chunk : chunks) {
+                output.seek(manifest.getOffset(chunk.getNumber()));
+                output.write(chunk.decode().getContent());
+            }
+
+            // holes at the end of the file are only recorded in its length
+            output.setLength(manifest.getTotalBytes());
+        } catch (IOException e) {
+            Log.logError("Failed restoring file from chunks");
+            return -1;
+        }
+
+        Log.log("Restored file " + fileID + " with " + manifest.getHoleBytes() + " bytes of holes");
+
+        return 0;
+    }
+
     public void storeState(PeerState state) {
         if (! state.modified())
             return;
@@ -145,6 +259,19 @@ public class FileSystem {
         }
     }
 
+    /**
+     * Opens the off-heap index of stored chunks, creating it if it doesn't exist
+     * @return the index, null if it couldn't be opened
+     */
+    public ChunkIndex loadChunkIndex() {
+        try {
+            return ChunkIndex.open(fileSystemPrefix + CHUNK_INDEX_PATH);
+        } catch (IOException e) {
+            Log.logError("Failed opening chunk index");
+            return null;
+        }
+    }
+
     public PeerState loadState() {
         File file = new File(fileSystemPrefix + PERSISTENT_STATE_PATH);
 
@@ -0,0 +1,125 @@
+package filesystem;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Small files backed up by a peer as part of pack files, with where each one is in its pack. A file is always
+ * within a single chunk of its pack, so restoring it only takes that chunk.
+ */
+public class PackIndex implements Serializable {
+
+    private static final long serialVersionUID = -3871052286415590124L;
+
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 5902143872219648347L;
+
+        private final String path;
+        private final String packId;
+        private final int chunkNo;
+        private final int offset; // within the chunk
+        private final int length;
+
+        public Entry(String path, String packId, int chunkNo, int offset, int length) {
+            this.path = path;
+            this.packId = packId;
+            this.chunkNo = chunkNo;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+
+        public String getPackId() {
+            return this.packId;
+        }
+
+        public int getChunkNo() {
+            return this.chunkNo;
+        }
+
+        public int getOffset() {
+            return this.offset;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+    }
+
+    private final Map<String, Entry> files; // file id -> entry
+    private final Map<String, Set<String>> packs; // pack id -> ids of the files in it
+
+    public PackIndex() {
+        this.files = new HashMap<>();
+        this.packs = new HashMap<>();
+    }
+
+    /**
+     * @return false if the file is already packed
+     */
+    public synchronized boolean add(String fileId, Entry entry) {
+        if (this.files.putIfAbsent(fileId, entry) != null)
+            return false;
+
+        this.packs.computeIfAbsent(entry.getPackId(), (k) -> new HashSet<>()).add(fileId);
+        return true;
+    }
+
+    /**
+     * @return the file's entry, null if it isn't packed
+     */
+    public synchronized Entry get(String fileId) {
+        return this.files.get(fileId);
+    }
+
+    /**
+     * Removes a file from the index
+     * @return id of the file's pack if no other file is left in it, null otherwise
+     */
+    public synchronized String remove(String fileId) {
+        Entry entry = this.files.remove(fileId);
+        if (entry == null)
+            return null;
+
+        Set<String> packed = this.packs.get(entry.getPackId());
+        packed.remove(fileId);
+        if (! packed.isEmpty())
+            return null;
+
+        this.packs.remove(entry.getPackId());
+        return entry.getPackId();
+    }
+
+    /**
+     * Removes all the files of a pack from the index, e.g. when the pack couldn't be backed up
+     * @return number of files removed
+     */
+    public synchronized int removePack(String packId) {
+        Set<String> packed = this.packs.remove(packId);
+        if (packed == null)
+            return 0;
+
+        for (String fileId : packed)
+            this.files.remove(fileId);
+
+        return packed.size();
+    }
+
+    public synchronized boolean isPack(String fileId) {
+        return this.packs.containsKey(fileId);
+    }
+
+    public synchronized int getNumFiles() {
+        return this.files.size();
+    }
+
+    public synchronized int getNumPacks() {
+        return this.packs.size();
+    }
+}
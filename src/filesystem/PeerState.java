@@ -1,14 +1,23 @@
 package filesystem;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import file.ChunkKey;
+import file.ChunkManifest;
+import file.Codec;
+import util.Log;
 
 /**
  * Information about a peers' state, including
@@ -19,15 +28,48 @@ public class PeerState implements Serializable {
 
     private static final long serialVersionUID = -4914787634980631385L;
 
+    // the storage counters are saved as longs, as they were before being atomic, and the files not deleted under
+    // any type, so that older states still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("backupFiles", ConcurrentHashMap.class),
+        new ObjectStreamField("storedChunks", ConcurrentHashMap.class),
+        new ObjectStreamField("undeletedFiles", Object.class),
+        new ObjectStreamField("packIndex", PackIndex.class),
+        new ObjectStreamField("maxStorage", long.class),
+        new ObjectStreamField("usedStorage", long.class),
+        new ObjectStreamField("modified", boolean.class),
+        new ObjectStreamField("version", String.class),
+        new ObjectStreamField("chunkIndexGeneration", long.class)
+    };
+
     // files for which the peer has initiated backup
     private ConcurrentHashMap<String, FileInfo> backupFiles;
-    // information about the chunks the peer has stored
+    // information about the chunks the peer has stored, saved in the off-heap chunk index instead while it is used
     private ConcurrentHashMap<String, StoredInfo> storedChunks;
     // files for which this peer has requested backup that have been deleted but are still stored in other peers
-    private ConcurrentHashMap<Integer, Set<String>> undeletedFiles;
-
-    private long maxStorage;
-    private long usedStorage;
+    private UndeletedFiles undeletedFiles;
+    // small files backed up as part of pack files, null in state saved before packing
+    private PackIndex packIndex;
+
+    // space used by stored chunks, including space reserved for chunks that are still being written
+    private AtomicLong usedStorage;
+    private AtomicLong maxStorage;
+
+    // stored chunks ordered by the reclaim policy, rebuilt from storedChunks when the state is loaded
+    private transient ReclaimIndex reclaimIndex;
+    // optional off-heap copy of the stored chunks' metadata, used to answer queries about them
+    private transient volatile ChunkIndex chunkIndex;
+    // true while the stored chunks of a state saved without them haven't been read from the chunk index
+    private transient boolean chunksInIndex;
+    // incremented each time the state is saved while the chunk index is used, -1 if the state was saved with the
+    // stored chunks
+    private long chunkIndexGeneration = -1;
+    // replication health of the files for which the peer has initiated backup, rebuilt when the state is loaded
+    private transient ReplicationHealthIndex healthIndex;
+    // key under which each chunk content (by hash) of the files with a manifest is backed up, guarded by itself
+    private transient Map<String, ChunkKey> contentIndex;
+    // stored chunks that share the same content (by hash) on disk, which is only accounted for once, guarded by itself
+    private transient Map<String, Set<ChunkKey>> contentHolders;
 
     // true when the state has been modified since last save
     private volatile boolean modified;
@@ -39,14 +81,405 @@ public class PeerState implements Serializable {
 
         backupFiles = new ConcurrentHashMap<>();
         storedChunks = new ConcurrentHashMap<>();
-        undeletedFiles = new ConcurrentHashMap<>();
+        undeletedFiles = new UndeletedFiles();
+        packIndex = new PackIndex();
 
-        maxStorage = Integer.MAX_VALUE;
-        usedStorage = 0;
+        maxStorage = new AtomicLong(Integer.MAX_VALUE);
+        usedStorage = new AtomicLong(0);
+
+        reclaimIndex = new ReclaimIndex(ReclaimPolicy.RD_SURPLUS);
+        healthIndex = new ReplicationHealthIndex();
+        contentIndex = new HashMap<>();
+        contentHolders = new HashMap<>();
 
         modified = true;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        // the stored chunks are saved in the chunk index while it is used
+        ChunkIndex index = this.chunkIndex;
+        fields.put("backupFiles", backupFiles);
+        fields.put("storedChunks", index != null ? null : storedChunks);
+        fields.put("undeletedFiles", undeletedFiles);
+        fields.put("packIndex", packIndex);
+        fields.put("maxStorage", maxStorage.get());
+        fields.put("usedStorage", usedStorage.get());
+        fields.put("modified", modified);
+        fields.put("version", version);
+        fields.put("chunkIndexGeneration", index != null ? chunkIndexGeneration : -1L);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        backupFiles = (ConcurrentHashMap<String, FileInfo>) fields.get("backupFiles", null);
+        storedChunks = (ConcurrentHashMap<String, StoredInfo>) fields.get("storedChunks", null);
+        // states saved before the files not deleted were indexed by file have a map of them by peer
+        Object undeleted = fields.get("undeletedFiles", null);
+        if (undeleted instanceof Map) {
+            undeletedFiles = new UndeletedFiles();
+            for (Map.Entry<Integer, Set<String>> entry : ((Map<Integer, Set<String>>) undeleted).entrySet())
+                for (String fileID : entry.getValue())
+                    undeletedFiles.add(entry.getKey(), fileID);
+        } else {
+            undeletedFiles = undeleted == null ? new UndeletedFiles() : (UndeletedFiles) undeleted;
+        }
+        packIndex = (PackIndex) fields.get("packIndex", null);
+        maxStorage = new AtomicLong(fields.get("maxStorage", (long) Integer.MAX_VALUE));
+        usedStorage = new AtomicLong(fields.get("usedStorage", 0L));
+        modified = fields.get("modified", false);
+        version = (String) fields.get("version", null);
+        chunkIndexGeneration = fields.get("chunkIndexGeneration", -1L);
+
+        if (packIndex == null)
+            packIndex = new PackIndex();
+
+        // read from the chunk index by setChunkIndex
+        chunksInIndex = storedChunks == null;
+        if (chunksInIndex)
+            storedChunks = new ConcurrentHashMap<>();
+
+        reclaimIndex = new ReclaimIndex(ReclaimPolicy.RD_SURPLUS);
+        contentHolders = new HashMap<>();
+        for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet()) {
+            for (Integer chunkNo : entry.getValue().getChunks().keySet()) {
+                this.updateReclaimEntry(entry.getKey(), chunkNo);
+                this.addContentHolder(entry.getValue().getContentHash(chunkNo), new ChunkKey(entry.getKey(), chunkNo));
+            }
+        }
+
+        healthIndex = new ReplicationHealthIndex();
+        contentIndex = new HashMap<>();
+        for (FileInfo info : backupFiles.values()) {
+            healthIndex.addFile(info.getId(), info.getDesiredRepDegree(), info.getOwnChunks());
+            for (Integer chunkNo : info.getChunks())
+                this.updateHealth(info, chunkNo);
+            this.indexContent(info);
+        }
+    }
+
+    private void indexContent(FileInfo info) {
+        ChunkManifest manifest = info.getManifest();
+        if (manifest == null)
+            return;
+
+        synchronized (contentIndex) {
+            for (int chunkNo = 0; chunkNo < manifest.getNumChunks(); chunkNo++)
+                if (! manifest.isHole(chunkNo))
+                    contentIndex.putIfAbsent(manifest.getHash(chunkNo), manifest.getSource(info.getId(), chunkNo));
+        }
+    }
+
+    /**
+     * Marks as reused the chunks of a new file with the same content as chunks already backed up by this peer,
+     * as long as some peer is known to be storing them
+     * @param manifest  chunks of the new file
+     * @return number of chunks reused
+     */
+    public int reuseChunks(ChunkManifest manifest) {
+        int reused = 0;
+
+        synchronized (contentIndex) {
+            for (int chunkNo = 0; chunkNo < manifest.getNumChunks(); chunkNo++) {
+                if (manifest.isHole(chunkNo))
+                    continue;
+
+                ChunkKey source = contentIndex.get(manifest.getHash(chunkNo));
+                if (source == null)
+                    continue;
+
+                FileInfo info = backupFiles.get(source.getFileID());
+                if (info == null || info.getChunkPerceivedRepDegree(source.getNumber()) == 0)
+                    continue;
+
+                manifest.reuse(chunkNo, source);
+                reused++;
+            }
+        }
+
+        return reused;
+    }
+
+    /**
+     * @return ids of the files backed up by this peer from a path, except for the superseded ones
+     */
+    public List<String> getBackupVersions(String path) {
+        List<String> fileIds = new ArrayList<>();
+        for (FileInfo info : backupFiles.values())
+            if (info.getPath().equals(path) && ! info.isSuperseded())
+                fileIds.add(info.getId());
+
+        return fileIds;
+    }
+
+    /**
+     * Marks a file as replaced by a newer version.
+     * Sets the modified flag to true.
+     * @return true if the file is backed up by this peer
+     */
+    public boolean setSuperseded(String fileId) {
+        FileInfo info = backupFiles.get(fileId);
+        if (info == null)
+            return false;
+
+        info.setSuperseded();
+        modified = true;
+        return true;
+    }
+
+    /**
+     * @return ids of the files backed up by this peer that reuse chunks of a file
+     */
+    public List<String> getFilesReusing(String fileId) {
+        List<String> fileIds = new ArrayList<>();
+        for (FileInfo info : backupFiles.values())
+            if (info.getManifest() != null && info.getManifest().getSourceFiles().contains(fileId))
+                fileIds.add(info.getId());
+
+        return fileIds;
+    }
+
+    /**
+     * Updates the replication health of a chunk of a file for which the peer initiated the backup.
+     * The perceived replication degree is read while holding the index, so that the last update
+     * always sees the latest peers.
+     */
+    private void updateHealth(FileInfo info, int chunkNo) {
+        synchronized (healthIndex) {
+            healthIndex.update(info.getId(), chunkNo, info.getChunkPerceivedRepDegree(chunkNo));
+        }
+    }
+
+    /**
+     * Records a stored chunk as sharing the space of the chunks with the same content
+     * @return true if it's the first chunk with its content, or its content is unknown, so it takes space of its own
+     */
+    private boolean addContentHolder(String contentHash, ChunkKey chunkKey) {
+        if (contentHash == null)
+            return true;
+
+        synchronized (contentHolders) {
+            Set<ChunkKey> holders = contentHolders.computeIfAbsent(contentHash, (k) -> new HashSet<>());
+            holders.add(chunkKey);
+            return holders.size() == 1;
+        }
+    }
+
+    /**
+     * @return true if the space of a removed chunk is no longer used by other chunks with the same content
+     */
+    private boolean removeContentHolder(String contentHash, ChunkKey chunkKey) {
+        if (contentHash == null)
+            return true;
+
+        synchronized (contentHolders) {
+            Set<ChunkKey> holders = contentHolders.get(contentHash);
+
+            // a copy of the content stored separately, see addStoredChunkInfo
+            if (holders == null || ! holders.remove(chunkKey))
+                return true;
+
+            if (! holders.isEmpty())
+                return false;
+
+            contentHolders.remove(contentHash);
+            return true;
+        }
+    }
+
+    /**
+     * @param contentHash   SHA-256 of a chunk's content
+     * @return a stored chunk with the given content, null if there is none
+     */
+    public ChunkKey findContent(String contentHash) {
+        synchronized (contentHolders) {
+            Set<ChunkKey> holders = contentHolders.get(contentHash);
+            return holders == null || holders.isEmpty() ? null : holders.iterator().next();
+        }
+    }
+
+    public ReplicationHealthIndex getHealthIndex() {
+        return healthIndex;
+    }
+
+    /**
+     * @return true if the state was saved without the stored chunks, which have to be read from the chunk index
+     */
+    public boolean hasChunksInIndex() {
+        return chunksInIndex;
+    }
+
+    /**
+     * Makes the off-heap chunk index answer the queries about stored chunks and hold them when the state is saved.
+     * If the state was saved without the stored chunks, they are read from the index, which is trusted as long as
+     * it isn't older than the state, since it is updated as the chunks change. Otherwise the index is rebuilt
+     * from the stored chunks, unless it was saved along with the state.
+     * @param index off-heap chunk index
+     * @param keep  false to only read the stored chunks from the index, which is then no longer used
+     */
+    public void setChunkIndex(ChunkIndex index, boolean keep) throws IOException {
+        if (chunksInIndex) {
+            chunksInIndex = false;
+
+            if (index.getGeneration() < chunkIndexGeneration) {
+                this.storedChunksLost("the chunk index is older than the state (generation " + index.getGeneration()
+                        + ", expected " + chunkIndexGeneration + ")");
+                index.clear();
+            } else {
+                this.loadStoredChunks(index);
+            }
+        } else if (keep) {
+            int numChunks = 0;
+            for (StoredInfo info : storedChunks.values())
+                numChunks += info.getChunks().size();
+
+            if (index.getGeneration() != chunkIndexGeneration || index.size() != numChunks) {
+                Log.log("Rebuilding chunk index (" + index.size() + " entries, generation " + index.getGeneration()
+                        + ", " + numChunks + " stored chunks, generation " + chunkIndexGeneration + ")");
+                index.clear();
+
+                for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet())
+                    for (ConcurrentHashMap.Entry<Integer, ChunkInfo> chunk : entry.getValue().getChunks().entrySet())
+                        this.indexChunk(index, entry.getKey(), entry.getValue().getRepDegree(), chunk.getKey(),
+                                chunk.getValue());
+            }
+        }
+
+        // the state is saved again, with or without the stored chunks
+        modified = true;
+
+        if (keep)
+            this.chunkIndex = index;
+    }
+
+    /**
+     * Called when the chunk index holding the stored chunks of the state can't be opened
+     */
+    public void chunkIndexMissing() {
+        if (! chunksInIndex)
+            return;
+
+        chunksInIndex = false;
+        this.storedChunksLost("the chunk index couldn't be opened");
+    }
+
+    // the stored chunks are adopted again by the reconciler, along with their space
+    private void storedChunksLost(String reason) {
+        Log.logError("Lost the stored chunks, " + reason + ", they will be recovered from disk");
+        usedStorage.set(0);
+        modified = true;
+    }
+
+    /**
+     * Rebuilds the stored chunks, and the indexes and used space derived from them, from the chunk index
+     */
+    private void loadStoredChunks(ChunkIndex index) {
+        long start = System.currentTimeMillis();
+        usedStorage.set(0);
+
+        index.forEach((entry) -> {
+            StoredInfo info = storedChunks.computeIfAbsent(entry.getFileId(), (k) -> new StoredInfo(entry.getRepDegree()));
+
+            ChunkInfo chunk = new ChunkInfo(entry.getSize(), entry.getContentHash(), entry.getCodec(),
+                    entry.getLastAccess());
+            for (Integer peerID : entry.getPeers())
+                chunk.addPeer(peerID);
+            info.getChunks().put(entry.getChunkNo(), chunk);
+
+            if (this.addContentHolder(entry.getContentHash(), new ChunkKey(entry.getFileId(), entry.getChunkNo())))
+                usedStorage.addAndGet(entry.getSize());
+            this.updateReclaimEntry(entry.getFileId(), entry.getChunkNo());
+        });
+
+        Log.log("Read " + index.size() + " stored chunks from the chunk index in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Adds a stored chunk to the chunk index, replacing the entry it may already have
+     */
+    private void indexChunk(ChunkIndex index, String fileId, int repDegree, int chunkNo, ChunkInfo chunk)
+            throws IOException {
+        index.remove(fileId, chunkNo);
+        index.put(fileId, chunkNo, chunk.getSize(), repDegree, chunk.getContentHash(), chunk.getCodec(),
+                chunk.getLastAccess());
+        for (Integer peerID : chunk.getPeers())
+            index.addPeer(fileId, chunkNo, peerID);
+    }
+
+    /**
+     * Writes the changes to the off-heap chunk index, if there is one, to the storage device, with a new
+     * generation if the state is about to be saved. Must be called right before saving the state.
+     */
+    public void forceChunkIndex() {
+        ChunkIndex index = this.chunkIndex;
+        if (index == null)
+            return;
+
+        if (modified)
+            chunkIndexGeneration = Math.max(chunkIndexGeneration, 0) + 1;
+
+        index.force(chunkIndexGeneration);
+    }
+
+    // stops using the off-heap index when it can't be updated, so that it never answers with stale information
+    private void chunkIndexFailed(IOException e) {
+        Log.logError("Failed updating chunk index (" + e.getMessage() + "), falling back to the in-memory state");
+        this.chunkIndex = null;
+    }
+
+    /**
+     * Sets the policy used to choose the chunks to remove when reclaiming space
+     * @param policy reclaim policy
+     */
+    public void setReclaimPolicy(ReclaimPolicy policy) {
+        reclaimIndex.setPolicy(policy);
+    }
+
+    /**
+     * Updates the reclaim index entry of a stored chunk, removing it if the chunk is no longer stored.
+     * Must be called whenever a chunk is stored or deleted, or its perceived replication degree changes.
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     */
+    private void updateReclaimEntry(String fileId, int chunkNo) {
+        StoredInfo info = storedChunks.get(fileId);
+        ChunkInfo chunk = info == null ? null : info.getChunks().get(chunkNo);
+
+        if (chunk == null) {
+            reclaimIndex.remove(new ChunkKey(fileId, chunkNo));
+            return;
+        }
+
+        // the chunks of a file adopted before its desired replication degree is known may be the only copies, so
+        // they aren't considered over-replicated until it is learned
+        int surplus = info.getRepDegree() == StoredInfo.UNKNOWN_REP_DEGREE
+                ? 0 : chunk.getPerceivedRepDegree() - info.getRepDegree();
+        reclaimIndex.update(new ChunkReclaim(fileId, chunkNo, info.getRepDegree(), surplus, chunk.getSize(), chunk.getLastAccess()));
+    }
+
+    /**
+     * Registers an access to a stored chunk, used by the reclaim policies that take recency into account
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     */
+    public void touchStoredChunk(String fileId, int chunkNo) {
+        StoredInfo info = storedChunks.get(fileId);
+        ChunkInfo chunk = info == null ? null : info.getChunks().get(chunkNo);
+
+        if (chunk == null)
+            return;
+
+        chunk.touch();
+        this.updateReclaimEntry(fileId, chunkNo);
+
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            index.setLastAccess(fileId, chunkNo, chunk.getLastAccess());
+    }
+
     /**
      * Sets the peer version
      * @param version
@@ -74,33 +507,66 @@ public class PeerState implements Serializable {
      * Calculates the available space on the peer's filesystem
      * @return Returns a long that represents the available space
      */
-    public synchronized long getAvailableSpace() {
-        return maxStorage - usedStorage;
+    public long getAvailableSpace() {
+        return maxStorage.get() - usedStorage.get();
+    }
+
+    /**
+     * Reserves space for a chunk that is about to be stored. The reservation only succeeds if it doesn't
+     * make the used space go over the maximum storage, so concurrent PUTCHUNKs can't overcommit space.
+     * A successful reservation must either be committed with addStoredChunkInfo or released with releaseSpace.
+     * @param size  number of bytes to reserve
+     * @return true if the space was reserved, false if there isn't enough available space
+     */
+    public boolean reserveSpace(long size) {
+        while (true) {
+            long used = usedStorage.get();
+            if (used + size > maxStorage.get())
+                return false;
+
+            if (usedStorage.compareAndSet(used, used + size))
+                return true;
+        }
     }
 
-    // removes the information about a previously stored chunk
+    /**
+     * Releases space that was previously reserved or used by a chunk
+     * @param size  number of bytes to release
+     */
+    public void releaseSpace(long size) {
+        usedStorage.addAndGet(-size);
+    }
 
     /**
      * Removes the information about a chunk that the peer has stored, this includes updating the used space
      * @param fileId    file id of the file to which the chunk belongs
      * @param chunkNo   chunk number
      * @param size      chunk size
+     * @return true if the chunk was stored and has been removed
      */
-    public void removeStoredChunk(String fileId, int chunkNo, int size) {
-        StoredInfo storedFileInfo = this.storedChunks.get(fileId);
-        if (storedFileInfo == null)
-            return;
-
-        storedFileInfo.removeChunk(chunkNo);
+    public boolean removeStoredChunk(String fileId, int chunkNo, int size) {
+        boolean[] removed = { false };
+
+        // the update is done inside the map's per-key lock, so that removing the file's entry when it
+        // becomes empty can't race with a chunk of the same file being added
+        this.storedChunks.computeIfPresent(fileId, (id, storedFileInfo) -> {
+            String contentHash = storedFileInfo.getContentHash(chunkNo);
+            removed[0] = storedFileInfo.removeChunk(chunkNo);
+            if (removed[0] && this.removeContentHolder(contentHash, new ChunkKey(fileId, chunkNo)))
+                this.releaseSpace(size);
+
+            return storedFileInfo.hasChunks() ? storedFileInfo : null;
+        });
 
-        synchronized (this) {
-            this.usedStorage -= size;
-        }
+        reclaimIndex.remove(new ChunkKey(fileId, chunkNo));
 
-        if (! storedFileInfo.hasChunks())
-            this.storedChunks.remove(fileId);
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            index.remove(fileId, chunkNo);
 
         modified = true;
+
+        return removed[0];
     }
 
     /**
@@ -136,6 +602,10 @@ public class PeerState implements Serializable {
      * @return true if any information is stored, false otherwise
      */
     public boolean isStoredFile(String fileId) {
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            return index.containsFile(fileId);
+
         return storedChunks.containsKey(fileId);
     }
 
@@ -155,6 +625,10 @@ public class PeerState implements Serializable {
      * @return true if it has, false otherwise
      */
     public boolean isStoredChunk(String fileId, int chunkNo) {
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            return index.contains(fileId, chunkNo);
+
         StoredInfo storedFileInfo = storedChunks.get(fileId);
 
         if (storedFileInfo == null)
@@ -170,6 +644,16 @@ public class PeerState implements Serializable {
      */
     public void deleteBackupFile(String fileId) {
         FileInfo info = backupFiles.remove(fileId);
+        healthIndex.removeFile(fileId);
+
+        // the files packed in it are no longer backed up
+        int unpacked = packIndex.removePack(fileId);
+        if (unpacked > 0)
+            Log.log("Dropped " + unpacked + " files packed in " + fileId);
+
+        synchronized (contentIndex) {
+            contentIndex.values().removeIf((source) -> source.getFileID().equals(fileId));
+        }
 
         if (version.equals("2.0")) {
             List<Integer> chunks = info.getChunks();
@@ -193,51 +677,57 @@ public class PeerState implements Serializable {
      * @param fileID file id
      */
     public void addUndeletedFile(int peerID, String fileID) {
-        undeletedFiles.putIfAbsent(peerID, new HashSet<>());
-
-        Set<String> chunks = undeletedFiles.get(peerID);
-        synchronized (chunks) {
-            chunks.add(fileID);
-        }
+        undeletedFiles.add(peerID, fileID);
 
         modified = true;
     }
 
     /**
-     * Removes a file id from the undeleted files for all peers
+     * Removes a file id from the undeleted files for all peers.
+     * Returns right away, without changing the state, if no peer has the file pending deletion.
      * @param fileId file id
      */
     public void removeUndeletedFile(String fileId) {
-        for (Set<String> files : undeletedFiles.values()) {
-            synchronized (files) {
-                files.remove(fileId);
-            }
-        }
+        if (! undeletedFiles.contains(fileId))
+            return;
+
+        if (undeletedFiles.removeFile(fileId))
+            modified = true;
+    }
+
+    /**
+     * Check if any peer still stores a file that has been deleted
+     * @param fileId file id
+     * @return true if the file is pending deletion in some peer
+     */
+    public boolean isUndeletedFile(String fileId) {
+        return undeletedFiles.contains(fileId);
+    }
+
+    /**
+     * Gets the peers that still store a file that has been deleted
+     * @param fileId    file id
+     * @return read-only view of the peers, null if there are none
+     */
+    public Set<Integer> getUndeletedFilePeers(String fileId) {
+        return undeletedFiles.getPeersOf(fileId);
     }
 
     /**
      * Get a peer's set of undeleted file's ids 
      * @param peerID peer id
-     * @return set of file ids
+     * @return read-only set of file ids, null if the peer has no undeleted files
      */
     public Set<String> getUndeletedFilesFrom(int peerID) {
-        return undeletedFiles.get(peerID);
+        return undeletedFiles.getFilesFrom(peerID);
     }
 
     /**
      * Get the file ids of all undeleted files
-     * @return set of file ids
+     * @return read-only set of file ids
      */
     public Set<String> getUndeletedFiles() {
-        Set<String> allFiles = new HashSet<>();
-
-        for (Set<String> files : undeletedFiles.values()) {
-            for (String file : files) {
-                allFiles.add(file);
-            }
-        }
-
-        return allFiles;
+        return undeletedFiles.getFiles();
     }
     
     /**
@@ -246,18 +736,8 @@ public class PeerState implements Serializable {
      * @param fileID
      */
     public void peerDeletedFile(int peerID, String fileID) {
-        Set<String> files = undeletedFiles.get(peerID);
-
-        if (files == null)
-            return;
-
-        synchronized (files) {
-            files.remove(fileID);
-            if (files.isEmpty())
-                undeletedFiles.remove(peerID);
-        }
-
-        modified = true;
+        if (undeletedFiles.remove(peerID, fileID))
+            modified = true;
     }
     
     /**
@@ -270,12 +750,18 @@ public class PeerState implements Serializable {
         if (info == null)
             return;
 
-        ConcurrentHashMap<Integer, ChunkInfo> chunks = info.getChunks();
-        chunks.values().forEach((chunk) -> {
-            synchronized (this) {
-                usedStorage -= chunk.getSize();
-            }
-        });
+        ChunkIndex index = this.chunkIndex;
+
+        long size = 0;
+        for (ConcurrentHashMap.Entry<Integer, ChunkInfo> chunk : info.getChunks().entrySet()) {
+            if (this.removeContentHolder(chunk.getValue().getContentHash(), new ChunkKey(fileId, chunk.getKey())))
+                size += chunk.getValue().getSize();
+            reclaimIndex.remove(new ChunkKey(fileId, chunk.getKey()));
+            if (index != null)
+                index.remove(fileId, chunk.getKey());
+        }
+
+        this.releaseSpace(size);
 
         modified = true;
     }
@@ -288,19 +774,61 @@ public class PeerState implements Serializable {
      * @param path          file path
      * @param fileId        file id
      * @param repDegree     desired replication degree
+     * @param manifest      chunks of the file
      * @return  true if the information was successfully added, false if an entry already existed
      */
-    public boolean insertFileInfo(String path, String fileId, int repDegree) {
+    public boolean insertFileInfo(String path, String fileId, int repDegree, ChunkManifest manifest) {
         modified = true;
-        boolean result = null == backupFiles.putIfAbsent(fileId, new FileInfo(path, fileId, repDegree));
+        FileInfo info = new FileInfo(path, fileId, repDegree, manifest.getNumChunks(), manifest);
+        boolean result = null == backupFiles.putIfAbsent(fileId, info);
 
         if (result) {
             removeUndeletedFile(fileId);
+            healthIndex.addFile(fileId, repDegree, info.getOwnChunks());
+            this.indexContent(info);
         }
 
         return result;
     }
 
+    /**
+     * Records that a small file is backed up as part of a pack file, which must have been inserted before with
+     * insertFileInfo. Sets the modified flag to true.
+     * @return false if the file was already packed
+     */
+    public boolean packFile(String fileId, PackIndex.Entry entry) {
+        modified = true;
+        return packIndex.add(fileId, entry);
+    }
+
+    /**
+     * @return where a small file is in its pack, null if it isn't packed
+     */
+    public PackIndex.Entry getPackEntry(String fileId) {
+        return packIndex.get(fileId);
+    }
+
+    public boolean isPackedFile(String fileId) {
+        return packIndex.get(fileId) != null;
+    }
+
+    /**
+     * @return true if the file backed up by the peer is a pack of small files
+     */
+    public boolean isPack(String fileId) {
+        return packIndex.isPack(fileId);
+    }
+
+    /**
+     * Removes a small file from its pack. Its content is only deleted from the other peers along with the
+     * pack, once no other file is left in it. Sets the modified flag to true.
+     * @return id of the pack if it no longer has any files, null otherwise
+     */
+    public String unpackFile(String fileId) {
+        modified = true;
+        return packIndex.remove(fileId);
+    }
+
     // for files that the peer initiated the backup
     /**
      * Update information about a file for which the peer initiated the backup.
@@ -318,9 +846,45 @@ public class PeerState implements Serializable {
             return false;
 
         info.addChunk(chunkNo, senderId);
+        this.updateHealth(info, chunkNo);
+        return true;
+    }
+
+    /**
+     * Replaces the peers known to be backing up a chunk of a file for which the peer initiated the backup.
+     * Sets the modified flag to true.
+     * @param fileId        file id
+     * @param chunkNo       chunk number
+     * @param peerIDs       peers backing up the chunk
+     * @return true if an entry for the file exists, false otherwise
+     */
+    public boolean setBackupChunkPeers(String fileId, int chunkNo, Set<Integer> peerIDs) {
+        FileInfo info = backupFiles.get(fileId);
+
+        if (info == null)
+            return false;
+
+        modified = true;
+        info.setChunkPeers(chunkNo, peerIDs);
+        this.updateHealth(info, chunkNo);
         return true;
     }
 
+    /**
+     * @return ids of the files for which the peer initiated the backup
+     */
+    public List<String> getBackupFileIds() {
+        return new ArrayList<>(backupFiles.keySet());
+    }
+
+    /**
+     * @param fileId    file id
+     * @return information about a file for which the peer initiated the backup, null if there is none
+     */
+    public FileInfo getBackupFileInfo(String fileId) {
+        return backupFiles.get(fileId);
+    }
+
     /**
      * Removes all information of a file for which the peer initiated the backup
      * Sets the modified flag to true.
@@ -336,11 +900,16 @@ public class PeerState implements Serializable {
         if (info == null)
             return false;
 
-        return info.removeChunk(chunkNo, senderId);
+        boolean removed = info.removeChunk(chunkNo, senderId);
+        if (removed)
+            this.updateHealth(info, chunkNo);
+
+        return removed;
     }
     
     /**
-     * Add information about a chunk that the peer is going store.
+     * Add information about a chunk that the peer is going store, committing the space previously reserved
+     * for it with reserveSpace. In case an entry for the chunk already existed, the reservation is released.
      * Sets the modified flag to true.
      * @param fileId        file id
      * @param repDegree     desired replication degree
@@ -350,16 +919,282 @@ public class PeerState implements Serializable {
      * @return true if the chunk information was added successfully, false if an entry for the chunk already existed
      */
     public boolean addStoredChunkInfo(String fileId, int repDegree, int chunkNo, int senderId, int size) {
+        return this.addStoredChunkInfo(fileId, repDegree, chunkNo, senderId, size, null, Codec.RAW);
+    }
+
+    /**
+     * Same as the above, also recording the chunk's content so that other chunks with the same content can be
+     * stored as links to it (see findContent).
+     * @param contentHash   SHA-256 of the chunk's content, as encoded, null if unknown
+     * @param codec         encoding of the chunk's content
+     * @return true if the chunk information was added successfully, false if an entry for the chunk already existed
+     */
+    public boolean addStoredChunkInfo(String fileId, int repDegree, int chunkNo, int senderId, int size,
+            String contentHash, Codec codec) {
+        return this.addChunkEntry(fileId, repDegree, chunkNo, size, contentHash, codec, false);
+    }
+
+    /**
+     * Add information about a chunk stored as a link to the content of another stored chunk (see findContent),
+     * which doesn't take more space. If the other chunk has been removed meanwhile, the space is accounted for,
+     * even if it goes over the maximum storage, since it is already used.
+     * Sets the modified flag to true.
+     * @return true if the chunk information was added, false if an entry for the chunk already existed
+     */
+    public boolean addSharedChunkInfo(String fileId, int repDegree, int chunkNo, int senderId, int size,
+            String contentHash, Codec codec) {
+        return this.addChunkEntry(fileId, repDegree, chunkNo, size, contentHash, codec, true);
+    }
+
+    private boolean addChunkEntry(String fileId, int repDegree, int chunkNo, int size, String contentHash,
+            Codec codec, boolean shared) {
         modified = true;
-        storedChunks.putIfAbsent(fileId, new StoredInfo(repDegree));
 
-        if (storedChunks.get(fileId).addChunk(chunkNo, size)) {
-            synchronized (this) {
-                usedStorage += size;
-            }
-            return true;
-        } else
+        boolean[] added = { false };
+        storedChunks.compute(fileId, (id, info) -> {
+            if (info == null)
+                info = new StoredInfo(repDegree);
+
+            added[0] = info.addChunk(chunkNo, size, contentHash, codec);
+            return info;
+        });
+
+        if (! added[0]) {
+            if (! shared)
+                this.releaseSpace(size);
             return false;
+        }
+
+        if (shared) {
+            if (this.addContentHolder(contentHash, new ChunkKey(fileId, chunkNo)))
+                usedStorage.addAndGet(size);
+        } else if (contentHash != null) {
+            synchronized (contentHolders) {
+                // a chunk with the same content stored separately at the same time keeps its own space
+                if (! contentHolders.containsKey(contentHash))
+                    this.addContentHolder(contentHash, new ChunkKey(fileId, chunkNo));
+            }
+        }
+
+        this.updateReclaimEntry(fileId, chunkNo);
+
+        ChunkIndex index = this.chunkIndex;
+        StoredInfo info = storedChunks.get(fileId);
+        ChunkInfo chunk = info == null ? null : info.getChunks().get(chunkNo);
+        if (index != null && chunk != null) {
+            try {
+                this.indexChunk(index, fileId, info.getRepDegree(), chunkNo, chunk);
+            } catch (IOException e) {
+                this.chunkIndexFailed(e);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Add information about a chunk that was found in the file system without being in the state.
+     * The chunk's space is accounted for even if it goes over the maximum storage, since it is already used.
+     * If no other chunk of the file is stored, its desired replication degree is unknown.
+     * Sets the modified flag to true.
+     * @param fileId        file id
+     * @param chunkNo       chunk number
+     * @param size          chunk size
+     * @return true if the chunk information was added, false if an entry for the chunk already existed
+     */
+    public boolean adoptStoredChunk(String fileId, int chunkNo, int size) {
+        usedStorage.addAndGet(size);
+
+        StoredInfo info = storedChunks.get(fileId);
+        int repDegree = info == null ? StoredInfo.UNKNOWN_REP_DEGREE : info.getRepDegree();
+
+        return this.addStoredChunkInfo(fileId, repDegree, chunkNo, -1, size);
+    }
+
+    /**
+     * Sets the desired replication degree of a file whose chunks were adopted without it, see adoptStoredChunk,
+     * when a message from its owner carries it. Sets the modified flag to true if it was unknown.
+     * @param fileId        file id
+     * @param repDegree     desired replication degree
+     */
+    public void learnStoredFileRepDegree(String fileId, int repDegree) {
+        StoredInfo info = storedChunks.get(fileId);
+        if (info == null || repDegree <= 0 || ! info.learnRepDegree(repDegree))
+            return;
+
+        Log.log("Learned desired replication degree " + repDegree + " of adopted file " + fileId);
+
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            index.setRepDegree(fileId, repDegree);
+
+        for (ConcurrentHashMap.Entry<Integer, ChunkInfo> chunk : info.getChunks().entrySet()) {
+            this.updateReclaimEntry(fileId, chunk.getKey());
+
+            if (index != null) {
+                try {
+                    this.indexChunk(index, fileId, repDegree, chunk.getKey(), chunk.getValue());
+                } catch (IOException e) {
+                    this.chunkIndexFailed(e);
+                }
+            }
+        }
+
+        modified = true;
+    }
+
+    /**
+     * Updates the size of a stored chunk to the size of the file that holds it, adjusting the used space.
+     * Sets the modified flag to true.
+     * @param fileId        file id
+     * @param chunkNo       chunk number
+     * @param size          chunk size
+     * @return the previous size of the chunk, -1 if it isn't stored
+     */
+    public int resizeStoredChunk(String fileId, int chunkNo, int size) {
+        StoredInfo info = storedChunks.get(fileId);
+        if (info == null)
+            return -1;
+
+        int previous = info.resizeChunk(chunkNo, size);
+        if (previous == -1)
+            return -1;
+
+        usedStorage.addAndGet(size - previous);
+        this.updateReclaimEntry(fileId, chunkNo);
+
+        ChunkIndex index = this.chunkIndex;
+        if (index != null) {
+            ChunkInfo chunk = info.getChunks().get(chunkNo);
+            try {
+                if (chunk != null)
+                    this.indexChunk(index, fileId, info.getRepDegree(), chunkNo, chunk);
+            } catch (IOException e) {
+                this.chunkIndexFailed(e);
+            }
+        }
+
+        modified = true;
+
+        return previous;
+    }
+
+    /**
+     * Gets the size of a stored chunk
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     * @return the chunk size, -1 if the chunk isn't stored
+     */
+    public int getStoredChunkSize(String fileId, int chunkNo) {
+        StoredInfo info = storedChunks.get(fileId);
+        ChunkInfo chunk = info == null ? null : info.getChunks().get(chunkNo);
+
+        return chunk == null ? -1 : chunk.getSize();
+    }
+
+    /**
+     * Gets the encoding of a stored chunk's content
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     * @return the codec, RAW if the chunk isn't stored
+     */
+    public Codec getStoredChunkCodec(String fileId, int chunkNo) {
+        StoredInfo info = storedChunks.get(fileId);
+        return info == null ? Codec.RAW : info.getCodec(chunkNo);
+    }
+
+    /**
+     * Gets the other peers that are storing a chunk that the peer has stored
+     * @param fileId    file id
+     * @param chunkNo   chunk number
+     * @return list of peer ids, null if the chunk isn't stored
+     */
+    public List<Integer> getStoredChunkPeers(String fileId, int chunkNo) {
+        StoredInfo info = storedChunks.get(fileId);
+        ChunkInfo chunk = info == null ? null : info.getChunks().get(chunkNo);
+
+        return chunk == null ? null : chunk.getPeers();
+    }
+
+    /**
+     * Gets the keys of all the chunks the peer has stored
+     * @return list of chunk keys
+     */
+    public List<ChunkKey> getStoredChunkKeys() {
+        List<ChunkKey> keys = new ArrayList<>();
+
+        for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet())
+            for (Integer chunkNo : entry.getValue().getChunks().keySet())
+                keys.add(new ChunkKey(entry.getKey(), chunkNo));
+
+        return keys;
+    }
+
+    /**
+     * Gets the numbers of the stored chunks of a file
+     * @param fileId    file id
+     * @return list of chunk numbers, empty if no chunk of the file is stored
+     */
+    public List<Integer> getStoredChunkNumbers(String fileId) {
+        StoredInfo info = storedChunks.get(fileId);
+        if (info == null)
+            return new ArrayList<>();
+
+        return new ArrayList<>(info.getChunks().keySet());
+    }
+
+    /**
+     * Gets the chunks the peer has stored
+     * @return chunk numbers of each stored file
+     */
+    public Map<String, List<Integer>> getStoredHoldings() {
+        Map<String, List<Integer>> holdings = new HashMap<>();
+
+        for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet())
+            holdings.put(entry.getKey(), new ArrayList<>(entry.getValue().getChunks().keySet()));
+
+        return holdings;
+    }
+
+    /**
+     * Gets the chunks another peer is thought to store, among the chunks stored by this peer
+     * and the chunks of the files for which this peer initiated the backup
+     * @param peerID    peer id
+     * @return chunk numbers of each file
+     */
+    public Map<String, List<Integer>> getStoredChunksOf(int peerID) {
+        Map<String, List<Integer>> holdings = new HashMap<>();
+
+        for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet())
+            for (ConcurrentHashMap.Entry<Integer, ChunkInfo> chunk : entry.getValue().getChunks().entrySet())
+                if (chunk.getValue().getPeers().contains(peerID))
+                    holdings.computeIfAbsent(entry.getKey(), (k) -> new ArrayList<>()).add(chunk.getKey());
+
+        for (FileInfo info : backupFiles.values())
+            for (Integer chunkNo : info.getChunks()) {
+                List<Integer> peers = info.getChunkPeers(chunkNo);
+                if (peers != null && peers.contains(peerID))
+                    holdings.computeIfAbsent(info.getId(), (k) -> new ArrayList<>()).add(chunkNo);
+            }
+
+        return holdings;
+    }
+
+    /**
+     * @return ids of the files the peer stores chunks of or initiated the backup of
+     */
+    public Set<String> getTrackedFiles() {
+        Set<String> files = new HashSet<>(storedChunks.keySet());
+        files.addAll(backupFiles.keySet());
+        return files;
+    }
+
+    /**
+     * Gets the space currently used by stored chunks, including reserved space
+     * @return used space in bytes
+     */
+    public long getUsedStorage() {
+        return usedStorage.get();
     }
 
     /**
@@ -376,7 +1211,16 @@ public class PeerState implements Serializable {
         if (info == null)
             return false;
 
-        return info.addPeerBackingUpChunk(chunkNo, senderId);
+        boolean updated = info.addPeerBackingUpChunk(chunkNo, senderId);
+        if (updated) {
+            this.updateReclaimEntry(fileId, chunkNo);
+
+            ChunkIndex index = this.chunkIndex;
+            if (index != null)
+                index.addPeer(fileId, chunkNo, senderId);
+        }
+
+        return updated;
     }
 
     /**
@@ -393,7 +1237,16 @@ public class PeerState implements Serializable {
         if (info == null)
             return false;
 
-        return info.removePeerBackingUpChunk(chunkNo, senderId);
+        boolean updated = info.removePeerBackingUpChunk(chunkNo, senderId);
+        if (updated) {
+            this.updateReclaimEntry(fileId, chunkNo);
+
+            ChunkIndex index = this.chunkIndex;
+            if (index != null)
+                index.removePeer(fileId, chunkNo, senderId);
+        }
+
+        return updated;
     }
 
     /**
@@ -402,6 +1255,10 @@ public class PeerState implements Serializable {
      * @return the replication degree if the peer stores any chunk of that file, -1 otherwise
      */
     public int getStoredFileDesiredRepDegree(String fileId) {
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            return index.getRepDegree(fileId);
+
         StoredInfo info = storedChunks.get(fileId);
         if (info == null)
             return -1;
@@ -416,6 +1273,10 @@ public class PeerState implements Serializable {
      * @return the replication degree if the peer has the chunk stored, -1 otherwise
      */
     public int getStoredChunkPerceivedRepDegree(String fileId, int chunkNo) {
+        ChunkIndex index = this.chunkIndex;
+        if (index != null)
+            return index.containsFile(fileId) ? index.getPerceivedRepDegree(fileId, chunkNo) : 0;
+
         StoredInfo info = storedChunks.get(fileId);
         if (info == null)
             return 0;
@@ -427,7 +1288,7 @@ public class PeerState implements Serializable {
     public String toString() {
         String ret = "";
         // storage info
-        ret += "Storage : " + String.valueOf(usedStorage) + " / " + String.valueOf(maxStorage) + " bytes\n";
+        ret += "Storage : " + String.valueOf(usedStorage.get()) + " / " + String.valueOf(maxStorage.get()) + " bytes\n";
         ret += "\n";
 
         // backed up files info
@@ -436,6 +1297,9 @@ public class PeerState implements Serializable {
             ret += entry.getValue().toString();
         ret += "\n";
 
+        if (packIndex.getNumFiles() > 0)
+            ret += "Packed small files : " + packIndex.getNumFiles() + " in " + packIndex.getNumPacks() + " packs\n\n";
+
         // stored chunks info
         ret += "Stored chunks : \n";
         for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet()) {
@@ -445,9 +1309,13 @@ public class PeerState implements Serializable {
 
         if (version.equals("2.0") && ! undeletedFiles.isEmpty()) {
             ret += "\nFiles not deleted : \n";
-            for (ConcurrentHashMap.Entry<Integer, Set<String>> entry : undeletedFiles.entrySet()) {
-                ret += "  Peer " + entry.getKey() + " :\n";
-                for (String file : entry.getValue()) {
+            for (Integer peerID : undeletedFiles.getPeers()) {
+                Set<String> files = undeletedFiles.getFilesFrom(peerID);
+                if (files == null)
+                    continue;
+
+                ret += "  Peer " + peerID + " :\n";
+                for (String file : files) {
                     ret += "    " + file + "\n";
                 }
             }
@@ -458,40 +1326,57 @@ public class PeerState implements Serializable {
 
     /**
      * Algorithm for the reclaim protocol, decides which chunks have to be removed so that the peer maximum storage
-     * capacity is updated. The chunks that have the larger difference between the desired replication degree and
-     * the perceived one, are the first to be removed. After that the largest chunks are removed.
+     * capacity is updated. The chunks are removed in the order given by the reclaim policy, by default the ones
+     * whose perceived replication degree exceeds the desired one the most are the first to be removed,
+     * after that the largest chunks are removed.
      * @param newMaxStorage     Maximum storage
-     * @return a list of chunks to be removed
+     * @return a list of chunks to be removed, with the information they had in the state
      */
-    public List<ChunkKey> reclaim(int newMaxStorage) {
+    public List<ChunkReclaim> reclaim(int newMaxStorage) {
+        this.maxStorage.set(newMaxStorage);
 
-        synchronized (this) {
-            this.maxStorage = newMaxStorage;
-            if (this.usedStorage - this.maxStorage <= 0)
-                return new ArrayList<>();
-        }
+        List<ChunkReclaim> chunksToRemove = new ArrayList<>();
 
-        PriorityQueue<ChunkReclaim> queue = new PriorityQueue<>();
+        while (this.usedStorage.get() > this.maxStorage.get()) {
+            ChunkReclaim chunk = reclaimIndex.poll();
+            if (chunk == null)
+                break;
 
-        for (ConcurrentHashMap.Entry<String, StoredInfo> entry : storedChunks.entrySet()) {
-            String fileId = entry.getKey();
-            for (ConcurrentHashMap.Entry<Integer, ChunkInfo> chunk : entry.getValue().getChunks().entrySet()) {
-                int chunkNo = chunk.getKey();
-                int diff = entry.getValue().getChunkPerceivedRepDegree(chunkNo)
-                        - chunk.getValue().getPerceivedRepDegree();
-                int size = chunk.getValue().getSize();
-                queue.add(new ChunkReclaim(fileId, chunkNo, diff, size));
-            }
+            // the holders and the codec are gone from the state once the chunk is removed, the handoff still needs
+            // them
+            List<Integer> holders = this.getStoredChunkPeers(chunk.getFileId(), chunk.getChunkNo());
+            Codec codec = this.getStoredChunkCodec(chunk.getFileId(), chunk.getChunkNo());
+
+            if (this.removeReclaimedChunk(chunk))
+                chunksToRemove.add(chunk.withStoredState(holders, codec));
         }
 
+        return chunksToRemove;
+    }
+
+    /**
+     * Frees space for a new chunk by removing stored chunks whose perceived replication degree is higher
+     * than the desired one. Chunks are taken in the order given by the reclaim policy, skipping the ones
+     * that aren't over-replicated.
+     * @param size  number of bytes that must be available
+     * @return a list of chunks to be removed
+     */
+    public List<ChunkKey> evictSurplus(long size) {
         List<ChunkKey> chunksToRemove = new ArrayList<>();
 
-        while (this.usedStorage > this.maxStorage) {
-            ChunkReclaim chunk = queue.poll();
-            chunksToRemove.add(new ChunkKey(chunk.getFileId(), chunk.getChunkNo()));
-            removeStoredChunk(chunk.getFileId(), chunk.getChunkNo(), chunk.getSize());
+        ChunkReclaim chunk;
+        while (this.getAvailableSpace() < size && (chunk = reclaimIndex.peekSurplus()) != null) {
+            reclaimIndex.remove(new ChunkKey(chunk.getFileId(), chunk.getChunkNo()));
+
+            if (this.removeReclaimedChunk(chunk))
+                chunksToRemove.add(new ChunkKey(chunk.getFileId(), chunk.getChunkNo()));
         }
 
         return chunksToRemove;
     }
-}
\ No newline at end of file
+
+    // the index may hold a stale entry for a chunk removed concurrently, which is skipped
+    private boolean removeReclaimedChunk(ChunkReclaim chunk) {
+        return this.removeStoredChunk(chunk.getFileId(), chunk.getChunkNo(), chunk.getSize());
+    }
+}
@@ -0,0 +1,116 @@
+package filesystem;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import file.ChunkKey;
+
+/**
+ * Stored chunks ordered by a reclaim policy. It is updated whenever a chunk is stored or deleted and whenever
+ * its perceived replication degree changes, so that the next chunk to remove is found in O(log n). The chunks
+ * with a replication degree surplus are also kept apart, in the same order, so that they are found without going
+ * through the others.
+ */
+public class ReclaimIndex {
+
+    private ReclaimPolicy policy;
+    private TreeSet<ChunkReclaim> queue;
+    // entries of the queue with surplus > 0
+    private TreeSet<ChunkReclaim> surplus;
+    private HashMap<ChunkKey, ChunkReclaim> entries;
+
+    public ReclaimIndex(ReclaimPolicy policy) {
+        this.policy = policy;
+        this.queue = new TreeSet<>(comparator(policy));
+        this.surplus = new TreeSet<>(comparator(policy));
+        this.entries = new HashMap<>();
+    }
+
+    // ties are broken by chunk, so that different chunks are never considered equal by the tree set
+    private static Comparator<ChunkReclaim> comparator(ReclaimPolicy policy) {
+        return policy.thenComparing(ChunkReclaim::getFileId).thenComparingInt(ChunkReclaim::getChunkNo);
+    }
+
+    public synchronized ReclaimPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Changes the policy, reordering all entries
+     */
+    public synchronized void setPolicy(ReclaimPolicy policy) {
+        if (policy == this.policy)
+            return;
+
+        TreeSet<ChunkReclaim> newQueue = new TreeSet<>(comparator(policy));
+        newQueue.addAll(this.queue);
+        TreeSet<ChunkReclaim> newSurplus = new TreeSet<>(comparator(policy));
+        newSurplus.addAll(this.surplus);
+
+        this.policy = policy;
+        this.queue = newQueue;
+        this.surplus = newSurplus;
+    }
+
+    /**
+     * Inserts the entry of a chunk, replacing the previous one if it exists
+     */
+    public synchronized void update(ChunkReclaim entry) {
+        ChunkReclaim old = this.entries.put(new ChunkKey(entry.getFileId(), entry.getChunkNo()), entry);
+        if (old != null) {
+            this.queue.remove(old);
+            this.surplus.remove(old);
+        }
+
+        this.queue.add(entry);
+        if (entry.getSurplus() > 0)
+            this.surplus.add(entry);
+    }
+
+    public synchronized void remove(ChunkKey chunkKey) {
+        ChunkReclaim old = this.entries.remove(chunkKey);
+        if (old != null) {
+            this.queue.remove(old);
+            this.surplus.remove(old);
+        }
+    }
+
+    /**
+     * @return the next chunk to remove, without removing it from the index, null if the index is empty
+     */
+    public synchronized ChunkReclaim peek() {
+        return this.queue.isEmpty() ? null : this.queue.first();
+    }
+
+    /**
+     * @return the next chunk to remove, null if the index is empty
+     */
+    public synchronized ChunkReclaim poll() {
+        ChunkReclaim entry = this.queue.pollFirst();
+        if (entry != null) {
+            this.entries.remove(new ChunkKey(entry.getFileId(), entry.getChunkNo()));
+            this.surplus.remove(entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the next chunk stored by more peers than its desired replication degree, in the order given by the
+     * policy, without removing it from the index, null if there is none
+     */
+    public synchronized ChunkReclaim peekSurplus() {
+        return this.surplus.isEmpty() ? null : this.surplus.first();
+    }
+
+    public synchronized int size() {
+        return this.queue.size();
+    }
+
+    public synchronized void clear() {
+        this.queue.clear();
+        this.surplus.clear();
+        this.entries.clear();
+    }
+}
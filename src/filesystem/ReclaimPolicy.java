@@ -0,0 +1,52 @@
+package filesystem;
+
+import java.util.Comparator;
+
+/**
+ * Order in which stored chunks are chosen to be removed. Chunks that compare lower are removed first.
+ */
+public enum ReclaimPolicy implements Comparator<ChunkReclaim> {
+    /**
+     * Chunks with the largest replication degree surplus first, then the largest chunks
+     */
+    RD_SURPLUS {
+        @Override
+        public int compare(ChunkReclaim a, ChunkReclaim b) {
+            int cmp = Integer.compare(b.getSurplus(), a.getSurplus());
+            return cmp != 0 ? cmp : Integer.compare(b.getSize(), a.getSize());
+        }
+    },
+    /**
+     * Largest chunks first
+     */
+    SIZE {
+        @Override
+        public int compare(ChunkReclaim a, ChunkReclaim b) {
+            return Integer.compare(b.getSize(), a.getSize());
+        }
+    },
+    /**
+     * Least recently accessed chunks first
+     */
+    LAST_ACCESS {
+        @Override
+        public int compare(ChunkReclaim a, ChunkReclaim b) {
+            return Long.compare(a.getLastAccess(), b.getLastAccess());
+        }
+    },
+    /**
+     * Chunks with the largest replication degree surplus first, then the least recently accessed,
+     * then the largest ones
+     */
+    COST {
+        @Override
+        public int compare(ChunkReclaim a, ChunkReclaim b) {
+            int cmp = Integer.compare(b.getSurplus(), a.getSurplus());
+            if (cmp != 0)
+                return cmp;
+
+            cmp = Long.compare(a.getLastAccess(), b.getLastAccess());
+            return cmp != 0 ? cmp : Integer.compare(b.getSize(), a.getSize());
+        }
+    };
+}
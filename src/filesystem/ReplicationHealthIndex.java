@@ -0,0 +1,220 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Replication health of the files the peer backed up, kept up to date as the peers backing up each chunk change.
+ * For every file it counts the chunks at each replication degree deficit (desired minus perceived RD, at least 0),
+ * and it keeps the files and the chunks ordered by how much they are at risk, so that the histogram of deficits and
+ * the most at risk files can be queried without going through the whole state.
+ */
+public class ReplicationHealthIndex {
+
+    private static class FileHealth implements Comparable<FileHealth> {
+        private final String fileId;
+        private final int desiredRepDegree;
+        // deficit of each chunk
+        private final Map<Integer, Integer> deficits;
+        // number of chunks at each deficit, from 0 to the desired replication degree
+        private final int[] counts;
+
+        FileHealth(String fileId, int desiredRepDegree) {
+            this.fileId = fileId;
+            this.desiredRepDegree = desiredRepDegree;
+            this.deficits = new HashMap<>();
+            this.counts = new int[desiredRepDegree + 1];
+        }
+
+        int getWorstDeficit() {
+            for (int deficit = this.counts.length - 1; deficit > 0; deficit--)
+                if (this.counts[deficit] > 0)
+                    return deficit;
+
+            return 0;
+        }
+
+        @Override
+        public int compareTo(FileHealth other) {
+            // worst deficit first, then the most chunks at that deficit
+            int deficit = this.getWorstDeficit(), otherDeficit = other.getWorstDeficit();
+            if (deficit != otherDeficit)
+                return Integer.compare(otherDeficit, deficit);
+
+            if (this.counts[deficit] != other.counts[otherDeficit])
+                return Integer.compare(other.counts[otherDeficit], this.counts[deficit]);
+
+            return this.fileId.compareTo(other.fileId);
+        }
+
+        @Override
+        public String toString() {
+            String ret = this.fileId + " (desired RD " + this.desiredRepDegree + ") :";
+            for (int deficit = this.counts.length - 1; deficit > 0; deficit--)
+                if (this.counts[deficit] > 0)
+                    ret += " " + this.counts[deficit] + " chunks missing " + deficit;
+
+            return ret;
+        }
+    }
+
+    private static class ChunkHealth implements Comparable<ChunkHealth> {
+        private final String fileId;
+        private final int chunkNo;
+        private final int deficit;
+
+        ChunkHealth(String fileId, int chunkNo, int deficit) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.deficit = deficit;
+        }
+
+        @Override
+        public int compareTo(ChunkHealth other) {
+            if (this.deficit != other.deficit)
+                return Integer.compare(other.deficit, this.deficit);
+
+            int cmp = this.fileId.compareTo(other.fileId);
+            return cmp != 0 ? cmp : Integer.compare(this.chunkNo, other.chunkNo);
+        }
+    }
+
+    private Map<String, FileHealth> files;
+    // files with at least one chunk below its desired replication degree, most at risk first
+    private TreeSet<FileHealth> atRiskFiles;
+    // chunks below their desired replication degree, most at risk first
+    private TreeSet<ChunkHealth> atRiskChunks;
+    // number of chunks at each deficit, over all files
+    private TreeMap<Integer, Integer> histogram;
+
+    public ReplicationHealthIndex() {
+        this.files = new HashMap<>();
+        this.atRiskFiles = new TreeSet<>();
+        this.atRiskChunks = new TreeSet<>();
+        this.histogram = new TreeMap<>();
+    }
+
+    /**
+     * Starts tracking a file, all its chunks start without peers backing them up
+     * @param fileId            file id
+     * @param desiredRepDegree  desired replication degree
+     * @param chunkNos          numbers of the chunks of the file
+     */
+    public synchronized void addFile(String fileId, int desiredRepDegree, List<Integer> chunkNos) {
+        this.removeFile(fileId);
+        this.files.put(fileId, new FileHealth(fileId, desiredRepDegree));
+
+        for (Integer chunkNo : chunkNos)
+            this.update(fileId, chunkNo, 0);
+    }
+
+    public synchronized void removeFile(String fileId) {
+        FileHealth file = this.files.remove(fileId);
+        if (file == null)
+            return;
+
+        this.atRiskFiles.remove(file);
+
+        for (Map.Entry<Integer, Integer> entry : file.deficits.entrySet()) {
+            this.count(entry.getValue(), -1);
+            this.atRiskChunks.remove(new ChunkHealth(fileId, entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Updates the perceived replication degree of a chunk
+     * @param fileId        file id
+     * @param chunkNo       chunk number
+     * @param repDegree     perceived replication degree
+     */
+    public synchronized void update(String fileId, int chunkNo, int repDegree) {
+        FileHealth file = this.files.get(fileId);
+        if (file == null)
+            return;
+
+        int deficit = Math.max(0, file.desiredRepDegree - repDegree);
+        Integer previous = file.deficits.put(chunkNo, deficit);
+
+        if (previous != null && previous == deficit)
+            return;
+
+        // the file's position in the ordered set depends on its counts
+        this.atRiskFiles.remove(file);
+
+        if (previous != null) {
+            file.counts[previous]--;
+            this.count(previous, -1);
+            this.atRiskChunks.remove(new ChunkHealth(fileId, chunkNo, previous));
+        }
+
+        file.counts[deficit]++;
+        this.count(deficit, 1);
+
+        if (deficit > 0)
+            this.atRiskChunks.add(new ChunkHealth(fileId, chunkNo, deficit));
+
+        if (file.getWorstDeficit() > 0)
+            this.atRiskFiles.add(file);
+    }
+
+    private void count(int deficit, int delta) {
+        this.histogram.merge(deficit, delta, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    /**
+     * @return number of chunks at each deficit
+     */
+    public synchronized Map<Integer, Integer> getHistogram() {
+        return new TreeMap<>(this.histogram);
+    }
+
+    /**
+     * @param n max number of files
+     * @return the most at risk files
+     */
+    public synchronized List<String> getAtRiskFiles(int n) {
+        List<String> result = new ArrayList<>();
+        for (FileHealth file : this.atRiskFiles) {
+            if (result.size() == n)
+                break;
+            result.add(file.fileId);
+        }
+
+        return result;
+    }
+
+    /**
+     * Report with the histogram of deficits, the top at risk files and the top at risk chunks
+     * @param n max number of files and of chunks
+     */
+    public synchronized String report(int n) {
+        String ret = "Chunks by RD deficit :\n";
+        if (this.histogram.isEmpty())
+            ret += "  none\n";
+
+        for (Map.Entry<Integer, Integer> entry : this.histogram.entrySet())
+            ret += "  " + entry.getKey() + " : " + entry.getValue() + "\n";
+
+        ret += "At risk files (" + this.atRiskFiles.size() + ") :\n";
+        int i = 0;
+        for (FileHealth file : this.atRiskFiles) {
+            if (i++ == n)
+                break;
+            ret += "  " + file + "\n";
+        }
+
+        ret += "At risk chunks (" + this.atRiskChunks.size() + ") :\n";
+        i = 0;
+        for (ChunkHealth chunk : this.atRiskChunks) {
+            if (i++ == n)
+                break;
+            ret += "  Chunk " + chunk.chunkNo + " of " + chunk.fileId + " missing " + chunk.deficit + "\n";
+        }
+
+        return ret;
+    }
+}
@@ -3,6 +3,8 @@ package filesystem;
 import java.io.Serializable;
 import java.util.concurrent.ConcurrentHashMap;
 
+import file.Codec;
+
 /**
  * Information regarding the chunks of a file which are being backed up by a peer.
  */
@@ -10,7 +12,10 @@ public class StoredInfo implements Serializable {
 
     private static final long serialVersionUID = 6564061166107827209L;
 
-    private final int repDegree;
+    // desired replication degree of files whose chunks were found on disk without any information about them
+    public static final int UNKNOWN_REP_DEGREE = 0;
+
+    private volatile int repDegree;
     private ConcurrentHashMap<Integer, ChunkInfo> chunks;
 
     public StoredInfo(int repDegree) {
@@ -22,6 +27,18 @@ public class StoredInfo implements Serializable {
         return this.repDegree;
     }
 
+    /**
+     * Sets the desired replication degree of a file adopted with UNKNOWN_REP_DEGREE, once it is learned
+     * @return false if the replication degree was already known
+     */
+    public synchronized boolean learnRepDegree(int repDegree) {
+        if (this.repDegree != UNKNOWN_REP_DEGREE)
+            return false;
+
+        this.repDegree = repDegree;
+        return true;
+    }
+
     public ConcurrentHashMap<Integer, ChunkInfo> getChunks() {
         return chunks;
     }
@@ -44,11 +61,44 @@ public class StoredInfo implements Serializable {
     }
 
     public boolean addChunk(int chunkNo, int size) {
-        return chunks.putIfAbsent(chunkNo, new ChunkInfo(size)) == null;
+        return this.addChunk(chunkNo, size, null, Codec.RAW);
+    }
+
+    public boolean addChunk(int chunkNo, int size, String contentHash, Codec codec) {
+        return chunks.putIfAbsent(chunkNo, new ChunkInfo(size, contentHash, codec)) == null;
+    }
+
+    /**
+     * Changes the size of a stored chunk
+     * @return the previous size, -1 if the chunk isn't stored
+     */
+    public int resizeChunk(int chunkNo, int size) {
+        int[] previous = { -1 };
+        chunks.computeIfPresent(chunkNo, (n, chunkInfo) -> {
+            previous[0] = chunkInfo.getSize();
+            return new ChunkInfo(chunkInfo, size);
+        });
+        return previous[0];
+    }
+
+    public boolean removeChunk(int chunkNo) {
+        return chunks.remove(chunkNo) != null;
     }
 
-    public void removeChunk(int chunkNo) {
-        chunks.remove(chunkNo);
+    /**
+     * @return SHA-256 of a chunk's content, null if unknown or the chunk isn't stored
+     */
+    public String getContentHash(int chunkNo) {
+        ChunkInfo chunkInfo = chunks.get(chunkNo);
+        return chunkInfo == null ? null : chunkInfo.getContentHash();
+    }
+
+    /**
+     * @return encoding of a chunk's content at rest, RAW if the chunk isn't stored
+     */
+    public Codec getCodec(int chunkNo) {
+        ChunkInfo chunkInfo = chunks.get(chunkNo);
+        return chunkInfo == null ? Codec.RAW : chunkInfo.getCodec();
     }
 
     public boolean addPeerBackingUpChunk(int chunkNo, int peerId) {
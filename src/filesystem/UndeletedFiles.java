@@ -0,0 +1,122 @@
+package filesystem;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bidirectional index of files that have been deleted by the peer but are still stored in other peers.
+ * Maps each file id to the peers that still store it, and each peer to the file ids it still stores.
+ */
+public class UndeletedFiles implements Serializable {
+
+    private static final long serialVersionUID = 2318842513379021546L;
+
+    // peers that still store each file
+    private ConcurrentHashMap<String, Set<Integer>> peersByFile;
+    // files still stored by each peer
+    private ConcurrentHashMap<Integer, Set<String>> filesByPeer;
+
+    public UndeletedFiles() {
+        peersByFile = new ConcurrentHashMap<>();
+        filesByPeer = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records that a peer still stores a file.
+     * Updates for the same file are serialized by the file's entry in peersByFile.
+     */
+    public void add(int peerID, String fileID) {
+        peersByFile.compute(fileID, (id, peers) -> {
+            if (peers == null)
+                peers = ConcurrentHashMap.newKeySet();
+
+            peers.add(peerID);
+            filesByPeer.computeIfAbsent(peerID, (k) -> ConcurrentHashMap.newKeySet()).add(fileID);
+            return peers;
+        });
+    }
+
+    /**
+     * Records that a peer has deleted a file
+     * @return true if the peer was still storing the file
+     */
+    public boolean remove(int peerID, String fileID) {
+        boolean[] removed = { false };
+
+        peersByFile.computeIfPresent(fileID, (id, peers) -> {
+            removed[0] = peers.remove(peerID);
+            this.removeFileFromPeer(peerID, fileID);
+            return peers.isEmpty() ? null : peers;
+        });
+
+        return removed[0];
+    }
+
+    /**
+     * Removes a file for all peers
+     * @return true if any peer was still storing the file
+     */
+    public boolean removeFile(String fileID) {
+        boolean[] removed = { false };
+
+        peersByFile.computeIfPresent(fileID, (id, peers) -> {
+            for (Integer peerID : peers)
+                this.removeFileFromPeer(peerID, fileID);
+
+            removed[0] = true;
+            return null;
+        });
+
+        return removed[0];
+    }
+
+    private void removeFileFromPeer(int peerID, String fileID) {
+        filesByPeer.computeIfPresent(peerID, (id, files) -> {
+            files.remove(fileID);
+            return files.isEmpty() ? null : files;
+        });
+    }
+
+    /**
+     * Check if any peer is still storing a file. This is a single map lookup.
+     */
+    public boolean contains(String fileID) {
+        return peersByFile.containsKey(fileID);
+    }
+
+    public boolean isEmpty() {
+        return peersByFile.isEmpty();
+    }
+
+    /**
+     * @return read-only view of the files still stored by a peer, null if there are none
+     */
+    public Set<String> getFilesFrom(int peerID) {
+        Set<String> files = filesByPeer.get(peerID);
+        return files == null ? null : Collections.unmodifiableSet(files);
+    }
+
+    /**
+     * @return read-only view of the peers that still store a file, null if there are none
+     */
+    public Set<Integer> getPeersOf(String fileID) {
+        Set<Integer> peers = peersByFile.get(fileID);
+        return peers == null ? null : Collections.unmodifiableSet(peers);
+    }
+
+    /**
+     * @return read-only view of all the files still stored by some peer
+     */
+    public Set<String> getFiles() {
+        return Collections.unmodifiableSet(peersByFile.keySet());
+    }
+
+    /**
+     * @return read-only view of the peers that still store some file
+     */
+    public Set<Integer> getPeers() {
+        return Collections.unmodifiableSet(filesByPeer.keySet());
+    }
+}
@@ -2,7 +2,14 @@ package handler;
 
 import java.net.DatagramPacket;
 
+import file.Chunk;
+import file.ChunkKey;
+import file.Codec;
+import filesystem.PeerState;
+import message.Message;
 import peer.Peer;
+import util.Config;
+import util.Metrics;
 
 public abstract class Handler implements Runnable {
     protected Peer peer;
@@ -12,4 +19,54 @@ public abstract class Handler implements Runnable {
         this.peer = peer;
         this.packet = packet;
     }
+
+    /**
+     * Updates the peer directory with the sender of a received message
+     */
+    protected void recordSender(Message message) {
+        if (message.getType() == Message.Type.UNKNOWN)
+            return;
+
+        this.peer.getDirectory().seen(message.getSenderID(), this.packet.getAddress());
+    }
+
+    /**
+     * @return hash of a chunk's content, if chunks with the same content are stored only once, null otherwise
+     */
+    protected String contentHash(Chunk chunk) {
+        if (! this.peer.getVersion().equals("2.0") || ! Config.getBoolean("peer.store.dedup", true))
+            return null;
+
+        return chunk.getContentHash();
+    }
+
+    /**
+     * Stores a chunk as a link to a stored chunk with the same content, if there is one, so that it takes no
+     * more space
+     * @param contentHash   hash of the chunk's content, may be null
+     * @return true if the chunk was stored this way
+     */
+    protected boolean storeShared(ChunkKey chunkKey, String contentHash, int repDegree, int senderID) {
+        if (contentHash == null)
+            return false;
+
+        PeerState state = this.peer.getState();
+        ChunkKey source = state.findContent(contentHash);
+        if (source == null)
+            return false;
+
+        // equal content is encoded the same way
+        Codec codec = state.getStoredChunkCodec(source.getFileID(), source.getNumber());
+
+        long size = this.peer.getFileSystem().linkChunk(source, chunkKey);
+        if (size < 0)
+            return false;
+
+        state.addSharedChunkInfo(chunkKey.getFileID(), repDegree, chunkKey.getNumber(), senderID, (int) size,
+                contentHash, codec);
+
+        Metrics.increment("store.dedup.chunks");
+        Metrics.add("store.dedup.bytes", size);
+        return true;
+    }
 }
\ No newline at end of file
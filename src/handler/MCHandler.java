@@ -4,9 +4,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -19,13 +26,33 @@ import message.InvalidMessageException;
 import message.Message;
 import message.Messages;
 import peer.Peer;
+import protocol.AntiEntropyReconciler;
 import protocol.ChunkBackupInitiator;
 import protocol.ChunkRestoreSynchronizer;
+import protocol.RepairQueue;
+import protocol.ReplicaPlacement;
 import protocol.SpaceReclaimSynchronizer;
+import util.Config;
 import util.Log;
+import util.Metrics;
 
 public class MCHandler extends Handler {
 
+    // delay per rank before a peer storing a chunk replies to a GETCHUNK in place of a higher ranked one
+    private static final long RESPONDER_STEP_MS = Config.getLong("peer.restore.step", 150);
+    private static final long MAX_RESPONDER_DELAY_MS = 1000;
+
+    // delay per rank before a peer storing a chunk repairs it in place of a higher ranked one
+    private static final long REPAIR_STEP_MS = Config.getLong("peer.repair.step", 2000);
+    // keeps the repair election independent from the placement and restore rankings
+    private static final long REPAIR_SALT = 0x5245504149520000L;
+
+    // delay per rank before a peer takes a chunk handed off by a reclaiming peer
+    private static final long HANDOFF_STEP_MS = Config.getLong("peer.handoff.step", 50);
+    private static final long MAX_HANDOFF_DELAY_MS = 1000;
+    private static final long HANDOFF_SALT = 0x48414e444f464600L;
+    private static final int HANDOFF_TIMEOUT_MS = 2000;
+
     public MCHandler(Peer peer, DatagramPacket packet) {
         super(peer, packet);
     }
@@ -44,6 +71,8 @@ public class MCHandler extends Handler {
             return;
         }
 
+        this.recordSender(message);
+
         Log.logReceivedMC(message.getHeader());
 
         switch (message.getType()) {
@@ -62,6 +91,14 @@ public class MCHandler extends Handler {
             case REMOVED:
                 this.handleRemovedMsg(message);
                 break;
+            case STOREDBATCH:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handleStoredBatchMsg(message);
+                break;
+            case REMOVEDBATCH:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handleRemovedBatchMsg(message);
+                break;
             case STARTUP:
                 if (this.peer.getVersion().equals("2.0"))
                     this.handleStartupMsg(message);
@@ -69,19 +106,58 @@ public class MCHandler extends Handler {
             case DELETED:
                 if (this.peer.getVersion().equals("2.0"))
                     this.handleDeletedMsg(message);
+                break;
+            case HANDOFF:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handleHandoffMsg(message);
+                break;
+            case DELETEBATCH:
+                this.handleDeleteBatchMsg(message);
+                break;
+            case DELETEDBATCH:
+                if (this.peer.getVersion().equals("2.0"))
+                    for (String fileID : Messages.parseFileIDs(message.getBody()))
+                        this.peer.getState().peerDeletedFile(message.getSenderID(), fileID);
+                break;
+            case HEARTBEAT:
+                this.handleHeartbeatMsg(message);
+                break;
+            case DIGEST:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handleDigestMsg(message);
+                break;
+            case WHOHAS:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handleWhoHasMsg(message);
+                break;
+            case HAVE:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.peer.getReplicationMonitor().haveReceived(message.getFileID(), message.getSenderID(),
+                            Messages.parseHaveBody(message.getBody()));
+                break;
             default:
                 break;
         }
     }
 
-    public void handleDeleteMsg(Message msg) {
-        String fileID = msg.getFileID();
-
+    /**
+     * Deletes the stored chunks of a file
+     * @return true if the peer had chunks of the file
+     */
+    private boolean deleteStoredFile(String fileID) {
         if (! this.peer.getState().isStoredFile(fileID))
-            return;
+            return false;
 
         this.peer.getState().deleteStoredFile(fileID);
         this.peer.getFileSystem().deleteFileChunks(fileID);
+        return true;
+    }
+
+    public void handleDeleteMsg(Message msg) {
+        String fileID = msg.getFileID();
+
+        if (! this.deleteStoredFile(fileID))
+            return;
 
         if (this.peer.getVersion().equals("2.0")) {
             Message response = Messages.getDeletedMessage(peer.getID(), fileID);
@@ -95,10 +171,40 @@ public class MCHandler extends Handler {
         }
     }
 
+    public void handleDeleteBatchMsg(Message msg) {
+        List<String> deleted = new ArrayList<>();
+
+        for (String fileID : Messages.parseFileIDs(msg.getBody())) {
+            if (this.deleteStoredFile(fileID))
+                deleted.add(fileID);
+        }
+
+        if (deleted.isEmpty() || ! this.peer.getVersion().equals("2.0"))
+            return;
+
+        for (Message response : Messages.getDeletedBatchMessages(peer.getID(), deleted)) {
+            try {
+                peer.getMCChannel().broadcast(response);
+                Log.logSentMC(response.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + response.getHeader());
+            }
+        }
+    }
+
     public void handleStoredMsg(Message msg) {
-        ChunkKey chunkKey = new ChunkKey(msg.getFileID(), msg.getChunkNumber());
-        int peerID = msg.getSenderID();
+        this.storedReceived(new ChunkKey(msg.getFileID(), msg.getChunkNumber()), msg.getSenderID());
+    }
+
+    /**
+     * Handles the confirmations of a STOREDBATCH message as if each had come in its own STORED message
+     */
+    public void handleStoredBatchMsg(Message msg) {
+        for (Integer chunkNo : Messages.parseChunkRanges(msg.getBody()))
+            this.storedReceived(new ChunkKey(msg.getFileID(), chunkNo), msg.getSenderID());
+    }
 
+    private void storedReceived(ChunkKey chunkKey, int peerID) {
         PeerState state = this.peer.getState();
 
         // initiator peer
@@ -110,6 +216,15 @@ public class MCHandler extends Handler {
         if (this.peer.getVersion().equals("2.0")) {
             peer.getChunkBackupSync().receivedStored(chunkKey, peerID);
         }
+
+        if (state.getStoredChunkPerceivedRepDegree(chunkKey.getFileID(), chunkKey.getNumber())
+                >= state.getStoredFileDesiredRepDegree(chunkKey.getFileID())) {
+            long underReplicatedTime = this.peer.getSpaceReclaimSync().replicated(chunkKey);
+            if (underReplicatedTime >= 0) {
+                Metrics.increment("chunks.underreplicated");
+                Metrics.add("chunks.underreplicated.ms", underReplicatedTime);
+            }
+        }
     }
 
     public void handleGetChunkMsg(Message msg) {
@@ -125,32 +240,47 @@ public class MCHandler extends Handler {
         chunkRestoreSync.listenToChunkMsg(chunkKey);
 
         FileSystem fs = this.peer.getFileSystem();
-
-        Chunk chunk;
-        try {
-            chunk = fs.loadChunk(chunkKey.getFileID(), chunkKey.getNumber());
-        } catch (FileNotFoundException e) {
-            Log.logError(e.toString());
-            return;
-        }
-
-        Message responseMsg = Messages.getChunkMessage(this.peer.getID(), chunk);
         MulticastChannel mdrChannel = this.peer.getMDRChannel();
 
-        int backoffTime = new Random().nextInt(400);
-        Log.logBackoff(backoffTime, "sending CHUNK message for chunk " + chunk.getNumber());
+        int backoffTime = this.getChunkReplyDelay(msg, chunkKey);
+        Log.logBackoff(backoffTime, "sending CHUNK message for chunk " + chunkKey.getNumber());
 
         this.peer.scheduleTask(new Runnable() {
             @Override
             public void run() {
                 if (chunkRestoreSync.hasReceivedChunkMsg(chunkKey)) {
                     chunkRestoreSync.stopListenToChunkMsg(chunkKey);
+                    Metrics.increment("getchunk.replies.suppressed");
                     return;
                 }
 
+                // the chunk is only read from disk if this peer is going to send it, decoded since the CHUNK
+                // message can't carry its codec
+                Chunk chunk;
+                try {
+                    chunk = fs.loadChunk(chunkKey.getFileID(), chunkKey.getNumber(),
+                            state.getStoredChunkCodec(chunkKey.getFileID(), chunkKey.getNumber()));
+                    if (chunk != null)
+                        chunk = chunk.decode();
+                } catch (IOException e) {
+                    Log.logError(e.toString());
+                    chunkRestoreSync.stopListenToChunkMsg(chunkKey);
+                    return;
+                }
+
+                if (chunk == null) {
+                    chunkRestoreSync.stopListenToChunkMsg(chunkKey);
+                    return;
+                }
+
+                state.touchStoredChunk(chunkKey.getFileID(), chunkKey.getNumber());
+
+                Message responseMsg = Messages.getChunkMessage(peer.getID(), chunk);
+
                 try {
                     mdrChannel.broadcast(responseMsg);
                     Log.logSentMDR(responseMsg.getHeader());
+                    Metrics.increment("getchunk.replies.sent");
                 } catch (IOException e) {
                     Log.logError("Unable to send " + responseMsg.getHeader());
                 } finally {
@@ -160,6 +290,27 @@ public class MCHandler extends Handler {
         }, backoffTime);
     }
 
+    /**
+     * Computes how long to wait before replying to a GETCHUNK. With responder election, the peers storing the
+     * chunk rank themselves by rendezvous hashing of the chunk, their id and the request's nonce, so that the top
+     * ranked one replies right away and the others only reply, after a delay proportional to their rank, if they
+     * haven't seen its CHUNK message by then. Otherwise, a random backoff is used.
+     */
+    private int getChunkReplyDelay(Message msg, ChunkKey chunkKey) {
+        if (! (this.peer.getVersion().equals("2.0") && Config.getBoolean("peer.restore.election", true)))
+            return new Random().nextInt(400);
+
+        List<Integer> holders = this.peer.getState().getStoredChunkPeers(chunkKey.getFileID(), chunkKey.getNumber());
+        if (holders == null)
+            return 0;
+
+        holders.retainAll(this.peer.getDirectory().getAlivePeers());
+
+        int rank = ReplicaPlacement.rank(chunkKey, this.peer.getID(), holders, msg.getNonce());
+
+        return (int) Math.min(rank * RESPONDER_STEP_MS, MAX_RESPONDER_DELAY_MS);
+    }
+
     public void handleGetChunkEnhMsg(Message msg) {
         ChunkKey chunkKey = new ChunkKey(msg.getFileID(), msg.getChunkNumber());
         PeerState state = this.peer.getState();
@@ -173,7 +324,7 @@ public class MCHandler extends Handler {
 
         MulticastChannel mdrChannel = this.peer.getMDRChannel();
 
-        int backoffTime = new Random().nextInt(400);
+        int backoffTime = this.getChunkReplyDelay(msg, chunkKey);
         Log.logBackoff(backoffTime, "sending enhanced CHUNK message for chunk " + chunkKey.getNumber());
 
         this.peer.scheduleTask(new Runnable() {
@@ -181,17 +332,30 @@ public class MCHandler extends Handler {
             public void run() {
                 if (chunkRestoreSync.hasReceivedChunkMsg(chunkKey)) {
                     chunkRestoreSync.stopListenToChunkMsg(chunkKey);
+                    Metrics.increment("getchunk.replies.suppressed");
                     return;
                 }
 
+                // only the requester fetches the chunk, decoded if it didn't advertise decoding it
                 Chunk chunk;
                 try {
-                    chunk = peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber());
-                } catch (FileNotFoundException e) {
+                    chunk = peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber(),
+                            state.getStoredChunkCodec(chunkKey.getFileID(), chunkKey.getNumber()));
+                    if (chunk != null)
+                        chunk = peer.prepareChunk(chunk, Collections.singleton(msg.getSenderID()));
+                } catch (IOException e) {
                     Log.logError(e.toString());
+                    chunkRestoreSync.stopListenToChunkMsg(chunkKey);
+                    return;
+                }
+
+                if (chunk == null) {
+                    chunkRestoreSync.stopListenToChunkMsg(chunkKey);
                     return;
                 }
 
+                state.touchStoredChunk(chunkKey.getFileID(), chunkKey.getNumber());
+
                 ServerSocket serverSocket;
                 try {
                     serverSocket = new ServerSocket(0);
@@ -201,13 +365,15 @@ public class MCHandler extends Handler {
                     return;
                 }
 
-                Message responseMsg = Messages.getEnhancedChunkMessage(peer.getID(), chunkKey, serverSocket.getLocalPort());
+                Message responseMsg = Messages.getEnhancedChunkMessage(peer.getID(), chunkKey, serverSocket.getLocalPort(),
+                        chunk.getCodec());
 
                 Log.log("Waiting for a connection at port " + serverSocket.getLocalPort() + " to send chunk " + chunkKey.getNumber());
 
                 try {
                     mdrChannel.broadcast(responseMsg);
                     Log.logSentMDR(responseMsg.getHeader());
+                    Metrics.increment("getchunk.replies.sent");
                 } catch (IOException e) {
                     Log.logError("Unable to send " + responseMsg.getHeader());
                 } finally {
@@ -236,21 +402,37 @@ public class MCHandler extends Handler {
     }
 
     public void handleRemovedMsg(Message msg) {
-        ChunkKey chunkKey = new ChunkKey(msg.getFileID(), msg.getChunkNumber());
-        int peerID = msg.getSenderID();
+        this.removedReceived(new ChunkKey(msg.getFileID(), msg.getChunkNumber()), msg.getSenderID());
+    }
+
+    /**
+     * Handles the chunks of a REMOVEDBATCH message as if each had come in its own REMOVED message
+     */
+    public void handleRemovedBatchMsg(Message msg) {
+        for (Integer chunkNo : Messages.parseChunkRanges(msg.getBody()))
+            this.removedReceived(new ChunkKey(msg.getFileID(), chunkNo), msg.getSenderID());
+    }
 
-        filesystem.PeerState state = this.peer.getState();
-        state.removeFileInfo(msg.getFileID(), msg.getChunkNumber(), peerID);
-        state.removePeerBackingUpStoredChunk(msg.getFileID(), msg.getChunkNumber(), peerID);
+    private void removedReceived(ChunkKey chunkKey, int peerID) {
+        PeerState state = this.peer.getState();
+        state.removeFileInfo(chunkKey.getFileID(), chunkKey.getNumber(), peerID);
+        state.removePeerBackingUpStoredChunk(chunkKey.getFileID(), chunkKey.getNumber(), peerID);
 
-        int desiredRepDeg = state.getStoredFileDesiredRepDegree(msg.getFileID());
-        int perceivedRepDeg = state.getStoredChunkPerceivedRepDegree(msg.getFileID(), msg.getChunkNumber());
+        int desiredRepDeg = state.getStoredFileDesiredRepDegree(chunkKey.getFileID());
+        int perceivedRepDeg = state.getStoredChunkPerceivedRepDegree(chunkKey.getFileID(), chunkKey.getNumber());
 
         if (perceivedRepDeg >= desiredRepDeg)
             return;
 
         Log.log("Perceived RD (" + perceivedRepDeg + ") is lower than the desired (" + desiredRepDeg + ")");
 
+        this.peer.getSpaceReclaimSync().underReplicated(chunkKey);
+
+        if (this.peer.getVersion().equals("2.0") && Config.getBoolean("peer.repair.coordinated", true)) {
+            this.electRepairer(chunkKey, desiredRepDeg, desiredRepDeg - perceivedRepDeg);
+            return;
+        }
+
         SpaceReclaimSynchronizer spaceReclaimSync = this.peer.getSpaceReclaimSync();
         spaceReclaimSync.listenToPutChunkMsg(chunkKey);
 
@@ -267,7 +449,8 @@ public class MCHandler extends Handler {
 
                     Chunk chunk;
                     try {
-                        chunk = peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber());
+                        chunk = peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber(),
+                                peer.getState().getStoredChunkCodec(chunkKey.getFileID(), chunkKey.getNumber()));
                     } catch (FileNotFoundException e) {
                         Log.logError("Failed loading chunk from file system");
                         spaceReclaimSync.stopListenToPutChunkMsg(chunkKey);
@@ -281,20 +464,222 @@ public class MCHandler extends Handler {
         }, backoffTime);
     }
 
+    /**
+     * Coordinated repair of a chunk below its desired replication degree. The peers storing the chunk rank
+     * themselves by rendezvous hashing of the chunk and their id, so that only the top ranked one queues the repair
+     * right away. The others queue it after a delay proportional to their rank, in case the ones above them are gone,
+     * and drop it if they see a PUTCHUNK for the chunk before it starts.
+     */
+    private void electRepairer(ChunkKey chunkKey, int desiredRepDeg, int deficit) {
+        SpaceReclaimSynchronizer spaceReclaimSync = this.peer.getSpaceReclaimSync();
+
+        // a repair for this chunk is already being decided
+        if (spaceReclaimSync.isListeningToPutChunkMsg(chunkKey))
+            return;
+
+        spaceReclaimSync.listenToPutChunkMsg(chunkKey);
+
+        List<Integer> holders = this.peer.getState().getStoredChunkPeers(chunkKey.getFileID(), chunkKey.getNumber());
+        int rank = 0;
+        if (holders != null) {
+            holders.retainAll(this.peer.getDirectory().getAlivePeers());
+            rank = ReplicaPlacement.rank(chunkKey, this.peer.getID(), holders, REPAIR_SALT);
+        }
+
+        RepairQueue repairQueue = this.peer.getRepairQueue();
+
+        if (rank == 0) {
+            Log.log("Elected to repair chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID());
+            repairQueue.submit(chunkKey, desiredRepDeg, deficit);
+            return;
+        }
+
+        long delay = rank * REPAIR_STEP_MS;
+        Log.log("Ranked " + rank + " to repair chunk " + chunkKey.getNumber() + ", waiting " + delay + "ms");
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                if (spaceReclaimSync.hasReceivedPutChunkMsg(chunkKey)) {
+                    spaceReclaimSync.stopListenToPutChunkMsg(chunkKey);
+                    Metrics.increment("repair.suppressed");
+                    return;
+                }
+
+                repairQueue.submit(chunkKey, desiredRepDeg, deficit);
+            }
+        }, delay);
+    }
+
+    /**
+     * Takes a chunk that a reclaiming peer is handing off, if the peer doesn't store it and has space for it.
+     * Peers that don't store the chunk rank themselves by rendezvous hashing of the chunk and their id, so that,
+     * usually, only the top ranked peer able to take the chunk fetches it, while the others see its STORED message
+     * first.
+     */
+    public void handleHandoffMsg(Message msg) {
+        ChunkKey chunkKey = new ChunkKey(msg.getFileID(), msg.getChunkNumber());
+        PeerState state = this.peer.getState();
+
+        if (state.isBackupFile(msg.getFileID()) || state.isStoredChunk(msg.getFileID(), msg.getChunkNumber()))
+            return;
+
+        ByteBuffer wrapped = ByteBuffer.wrap(msg.getBody());
+        int port = wrapped.getInt();
+        int size = wrapped.getInt();
+        Set<Integer> holders = new HashSet<>();
+        while (wrapped.remaining() >= 4)
+            holders.add(wrapped.getInt());
+        InetAddress address = this.packet.getAddress();
+
+        if (state.getAvailableSpace() < size)
+            return;
+
+        Set<Integer> candidates = this.peer.getDirectory().getAlivePeers();
+        candidates.remove(msg.getSenderID());
+        candidates.removeAll(holders);
+        int rank = ReplicaPlacement.rank(chunkKey, this.peer.getID(), candidates, HANDOFF_SALT);
+
+        this.peer.getChunkBackupSync().listenToStored(chunkKey);
+
+        long delay = Math.min(rank * HANDOFF_STEP_MS, MAX_HANDOFF_DELAY_MS);
+        Log.logBackoff((int) delay, "before taking handed off chunk " + chunkKey.getNumber());
+
+        Peer peer = this.peer;
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                boolean taken = peer.getChunkBackupSync().getNumStored(chunkKey) > 0;
+                peer.getChunkBackupSync().stopListenToStored(chunkKey);
+
+                if (taken || ! state.reserveSpace(size))
+                    return;
+
+                byte[] content;
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(address, port), HANDOFF_TIMEOUT_MS);
+                    socket.setSoTimeout(HANDOFF_TIMEOUT_MS);
+                    content = socket.getInputStream().readAllBytes();
+                    socket.close();
+                } catch (IOException e) {
+                    // another peer took the chunk first
+                    state.releaseSpace(size);
+                    return;
+                }
+
+                if (content.length != size) {
+                    state.releaseSpace(size);
+                    Log.logError("Received " + content.length + " bytes for handed off chunk " + chunkKey.getNumber()
+                            + ", expected " + size);
+                    return;
+                }
+
+                Chunk chunk = new Chunk(chunkKey.getFileID(), chunkKey.getNumber(), content, msg.getCodec());
+                String contentHash = contentHash(chunk);
+
+                if (storeShared(chunkKey, contentHash, msg.getRepDegree(), msg.getSenderID())) {
+                    state.releaseSpace(size);
+                } else {
+                    try {
+                        peer.getFileSystem().storeChunk(chunk);
+                    } catch (IOException e) {
+                        state.releaseSpace(size);
+                        Log.logError("Failed to store handed off chunk " + chunkKey.getNumber());
+                        return;
+                    }
+
+                    if (! state.addStoredChunkInfo(chunkKey.getFileID(), msg.getRepDegree(), chunkKey.getNumber(),
+                            msg.getSenderID(), size, contentHash, chunk.getCodec()))
+                        return;
+                }
+
+                Log.log("Took handed off chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID());
+
+                peer.sendStored(chunkKey);
+            }
+        }, delay);
+    }
+
+    public void handleWhoHasMsg(Message msg) {
+        String fileID = msg.getFileID();
+        this.peer.getState().learnStoredFileRepDegree(fileID, msg.getRepDegree());
+        List<Integer> chunkNos = this.peer.getState().getStoredChunkNumbers(fileID);
+
+        if (chunkNos.isEmpty())
+            return;
+
+        int backoffTime = new Random().nextInt(400);
+        Log.logBackoff(backoffTime, "before sending HAVE message for file " + fileID);
+
+        Peer peer = this.peer;
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < chunkNos.size(); i += Messages.MAX_HAVE_CHUNKS) {
+                    Message response = Messages.getHaveMessage(peer.getID(), fileID,
+                            chunkNos.subList(i, Math.min(i + Messages.MAX_HAVE_CHUNKS, chunkNos.size())));
+                    try {
+                        peer.getMCChannel().broadcast(response);
+                        Log.logSentMC(response.getHeader());
+                    } catch (IOException e) {
+                        Log.logError("Unable to send " + response.getHeader());
+                    }
+                }
+            }
+        }, backoffTime);
+    }
+
     public void handleStartupMsg(Message msg) {
+        // the restarted peer's view of the chunks stored by this peer may be outdated
+        if (Config.getBoolean("peer.antientropy", true)) {
+            Peer peer = this.peer;
+            int backoffTime = new Random().nextInt(1000);
+
+            this.peer.scheduleTask(new Runnable() {
+                @Override
+                public void run() {
+                    peer.announceDigest(msg.getSenderID());
+                }
+            }, backoffTime);
+        }
+
         Set<String> files = peer.getState().getUndeletedFilesFrom(msg.getSenderID());
         if (files == null)
             return;
 
-        for (String fileID : files) {
-            Message response = Messages.getEnhancedDeleteMessage(peer.getID(), fileID);
-            try {
-                peer.getMCChannel().broadcast(response);
-                Log.logSentMC(response.getHeader());
-            } catch (IOException e) {
-                Log.logError("Unable to send " + response.getHeader());
-            }
-        }
+        // sent in batches on the replayer's next tick
+        this.peer.getDeleteReplayer().add(new ArrayList<>(files), 1);
+    }
+
+    public void handleDigestMsg(Message msg) {
+        ByteBuffer wrapped = ByteBuffer.wrap(msg.getBody());
+        int port = wrapped.getInt();
+        long root = wrapped.getLong();
+        int targetID = wrapped.getInt();
+
+        if (targetID != -1 && targetID != this.peer.getID())
+            return;
+
+        // spread the connections of the peers checking the digest
+        int backoffTime = new Random().nextInt(1000);
+        Log.logBackoff(backoffTime, "before checking the digest of peer " + msg.getSenderID());
+
+        this.peer.scheduleTask(new AntiEntropyReconciler(this.peer, msg.getSenderID(), this.packet.getAddress(), port,
+                root), backoffTime);
+    }
+
+    public void handleHeartbeatMsg(Message msg) {
+        ByteBuffer wrapped = ByteBuffer.wrap(msg.getBody());
+        int port = wrapped.getInt();
+        long freeSpace = wrapped.getLong();
+        int load = wrapped.getInt();
+        // heartbeats of older peers don't have capabilities
+        int capabilities = wrapped.remaining() >= 4 ? wrapped.getInt() : 0;
+
+        this.peer.getDirectory().heartbeat(msg.getSenderID(), port, freeSpace, load, capabilities);
     }
 
     public void handleDeletedMsg(Message msg) {
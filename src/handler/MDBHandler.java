@@ -8,16 +8,24 @@ import java.util.Set;
 import channel.MulticastChannel;
 import file.Chunk;
 import file.ChunkKey;
+import file.FileIDGenerator;
 import filesystem.FileSystem;
 import filesystem.PeerState;
 import message.InvalidMessageException;
 import message.Message;
 import message.Messages;
 import peer.Peer;
+import protocol.ReplicaPlacement;
+import util.Config;
 import util.Log;
+import util.Metrics;
 
 public class MDBHandler extends Handler {
 
+    // delay per rank below the replication degree before a peer fills in for a higher ranked one
+    private static final long FILL_IN_STEP_MS = Config.getLong("peer.placement.step", 100);
+    private static final long MAX_FILL_IN_DELAY_MS = 1000;
+
     public MDBHandler(Peer peer, DatagramPacket packet) {
         super(peer, packet);
     }
@@ -36,23 +44,31 @@ public class MDBHandler extends Handler {
             // reply with STORED to a PUTCHUNK sent by itself if the PUTCHUNK refers to a file whose backup was requested by another peer, so that other peers know that this peer is backing up the chunk (and not requesting the backup)
             if (message.getType() == Message.Type.PUTCHUNK
                 && peer.getState().isStoredChunk(message.getFileID(), message.getChunkNumber())) {
-                Message response = Messages.getStoredMessage(peer.getID(), new ChunkKey(message.getFileID(), message.getChunkNumber()));
-                try {
-                    peer.getMCChannel().broadcast(response);
-                    Log.logSentMC(response.getHeader());
-                } catch (IOException e) {
-                    Log.logError("Unable to send " + response.getHeader());
-                }
+                peer.sendStored(new ChunkKey(message.getFileID(), message.getChunkNumber()));
             }
             return;
         }
 
+        this.recordSender(message);
+
         Log.logReceivedMDB(message.getHeader());
 
+        // chunks adopted without knowing the desired replication degree of their file learn it from its owner
+        if (message.getType() == Message.Type.PUTCHUNK || message.getType() == Message.Type.PUTHASH)
+            this.peer.getState().learnStoredFileRepDegree(message.getFileID(), message.getRepDegree());
+
         switch (message.getType()) {
+            case PUTHASH:
+                if (this.peer.getVersion().equals("2.0"))
+                    this.handlePutHashMsg(message);
+                break;
             case PUTCHUNK:
-                if (message.getVersion().equals("2.0") && this.peer.getVersion().equals("2.0"))
-                    this.handlePutchunkEnhMsg(message);
+                if (message.getVersion().equals("2.0") && this.peer.getVersion().equals("2.0")) {
+                    if (Config.getBoolean("peer.placement.hrw", true))
+                        this.handlePutchunkHrwMsg(message);
+                    else
+                        this.handlePutchunkEnhMsg(message);
+                }
                 else
                     this.handlePutchunkMsg(message);
                 break;
@@ -62,7 +78,7 @@ public class MDBHandler extends Handler {
     }
 
     public void handlePutchunkMsg(Message msg) {
-        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody());
+        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody(), msg.getCodec());
         FileSystem fs = this.peer.getFileSystem();
         PeerState state = this.peer.getState();
 
@@ -70,17 +86,22 @@ public class MDBHandler extends Handler {
 
         this.peer.getSpaceReclaimSync().putChunkReceived(chunk.getKey());
 
-        if (state.getAvailableSpace() < chunk.getSize())
-            return;
-
         if (state.isBackupFile(chunk.getFileID()))
             return;
 
-        if (! state.isStoredChunk(chunk.getFileID(), chunk.getNumber())) {
+        String contentHash = this.contentHash(chunk);
+
+        if (! state.isStoredChunk(chunk.getFileID(), chunk.getNumber())
+                && ! this.storeShared(chunk.getKey(), contentHash, msg.getRepDegree(), msg.getSenderID())) {
+            if (! state.reserveSpace(chunk.getSize()))
+                return;
+
             try {
                 fs.storeChunk(chunk);
-                state.addStoredChunkInfo(chunk.getFileID(), msg.getRepDegree(), chunk.getNumber(), msg.getSenderID(), chunk.getSize());
+                state.addStoredChunkInfo(chunk.getFileID(), msg.getRepDegree(), chunk.getNumber(), msg.getSenderID(),
+                        chunk.getSize(), contentHash, chunk.getCodec());
             } catch (IOException e) {
+                state.releaseSpace(chunk.getSize());
                 Log.logError("Failed storing chunk");
                 return;
             }
@@ -107,8 +128,7 @@ public class MDBHandler extends Handler {
     }
 
     public void handlePutchunkEnhMsg(Message msg) {
-        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody());
-        FileSystem fs = this.peer.getFileSystem();
+        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody(), msg.getCodec());
         PeerState state = this.peer.getState();
 
         state.removeUndeletedFile(msg.getFileID());
@@ -117,20 +137,14 @@ public class MDBHandler extends Handler {
 
         int desiredRepDeg = msg.getRepDegree();
 
-        if (state.getAvailableSpace() < chunk.getSize())
-            return;
-
         if (state.isBackupFile(chunk.getFileID()))
             return;
 
-
-
         peer.getChunkBackupSync().listenToStored(chunk.getKey());
 
         int backoffTime = new Random().nextInt(400);
         Log.logBackoff(backoffTime, "before storing chunk " + chunk.getNumber());
 
-        MulticastChannel mcChannel = this.peer.getMCChannel();
         Peer peer = this.peer;
 
         this.peer.scheduleTask(new Runnable() {
@@ -148,30 +162,177 @@ public class MDBHandler extends Handler {
                     return;
                 }
 
-                if (! state.isStoredChunk(chunk.getFileID(), chunk.getNumber())) {
-                    try {
-                        fs.storeChunk(chunk);
-                        state.addStoredChunkInfo(chunk.getFileID(), msg.getRepDegree(), chunk.getNumber(),
-                                msg.getSenderID(), chunk.getSize());
-                        if (replicationPeers != null) {
-                            for (Integer peerID : replicationPeers) {
-                                state.addPeerBackingUpStoredChunk(chunk.getFileID(), chunk.getNumber(), peerID);
-                            }
-                        }
-                    } catch (IOException e) {
-                        Log.logError("Failed to store chunk " + chunk.getNumber() + " for file " + chunk.getFileID());
-                        return;
-                    }
-                }
+                storeAndConfirm(chunk, msg, replicationPeers);
+            }
+        }, backoffTime);
+    }
+
+    /**
+     * Enhanced PUTCHUNK handling with rendezvous hashing placement. Every peer ranks itself among the peers
+     * it knows for the chunk. The top ranked peers, as many as the desired replication degree, store the chunk
+     * right away. The others wait for a delay proportional to how far below them they are ranked and only
+     * store the chunk if, by then, not enough peers have confirmed storing it. Until the peer knows at least as
+     * many other candidates as the desired replication degree, e.g. right after starting, its rank would put it
+     * among the top ones for most chunks, so it backs off randomly instead.
+     */
+    public void handlePutchunkHrwMsg(Message msg) {
+        // the initiator doesn't store its own chunks, so it isn't a candidate
+        Set<Integer> candidates = this.peer.getDirectory().getAlivePeers();
+        candidates.remove(msg.getSenderID());
+
+        if (candidates.size() < msg.getRepDegree()) {
+            Metrics.increment("placement.hrw.fallback");
+            this.handlePutchunkEnhMsg(msg);
+            return;
+        }
+
+        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody(), msg.getCodec());
+        PeerState state = this.peer.getState();
+
+        state.removeUndeletedFile(msg.getFileID());
+
+        this.peer.getSpaceReclaimSync().putChunkReceived(chunk.getKey());
+
+        int desiredRepDeg = msg.getRepDegree();
+
+        if (state.isBackupFile(chunk.getFileID()))
+            return;
+
+        // the initiator may have missed the STORED message, in case this is a retry
+        if (state.isStoredChunk(chunk.getFileID(), chunk.getNumber())) {
+            this.storeAndConfirm(chunk, msg, null);
+            return;
+        }
+
+        int rank = ReplicaPlacement.rank(chunk.getKey(), this.peer.getID(), candidates, 0);
+
+        if (rank < desiredRepDeg) {
+            Log.log("Ranked " + rank + " for chunk " + chunk.getNumber() + ", storing it");
+            this.storeAndConfirm(chunk, msg, null);
+            return;
+        }
+
+        peer.getChunkBackupSync().listenToStored(chunk.getKey());
+
+        long delay = Math.min((rank - desiredRepDeg + 1) * FILL_IN_STEP_MS, MAX_FILL_IN_DELAY_MS);
+        Log.log("Ranked " + rank + " for chunk " + chunk.getNumber() + ", waiting " + delay + "ms before filling in");
+
+        Peer peer = this.peer;
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                int perceivedRepDeg = peer.getChunkBackupSync().getNumStored(chunk.getKey());
+
+                Log.logRepDegree(desiredRepDeg, perceivedRepDeg, chunk.getNumber());
+                Set<Integer> replicationPeers = peer.getChunkBackupSync().getReplicationPeers(chunk.getKey());
+                peer.getChunkBackupSync().stopListenToStored(chunk.getKey());
+
+                if (perceivedRepDeg >= desiredRepDeg)
+                    return;
+
+                storeAndConfirm(chunk, msg, replicationPeers);
+            }
+        }, delay);
+    }
+
+    /**
+     * Stores a chunk, if it isn't stored yet, and sends the STORED message
+     * @param chunk             chunk to store
+     * @param msg               PUTCHUNK message
+     * @param replicationPeers  peers known to be storing the chunk, may be null
+     */
+    private void storeAndConfirm(Chunk chunk, Message msg, Set<Integer> replicationPeers) {
+        PeerState state = this.peer.getState();
+        FileSystem fs = this.peer.getFileSystem();
+
+        if (! state.isStoredChunk(chunk.getFileID(), chunk.getNumber())) {
+            String contentHash = this.contentHash(chunk);
+
+            if (! this.storeShared(chunk.getKey(), contentHash, msg.getRepDegree(), msg.getSenderID())) {
+                // the chunk is needed, so over-replicated chunks may be evicted to make room for it
+                if (! state.reserveSpace(chunk.getSize())
+                        && ! (peer.evictForSpace(chunk.getSize()) && state.reserveSpace(chunk.getSize())))
+                    return;
 
-                Message message = Messages.getStoredMessage(peer.getID(), chunk.getKey());
                 try {
-                    mcChannel.broadcast(message);
-                    Log.logSentMC(message.getHeader());
+                    fs.storeChunk(chunk);
+                    state.addStoredChunkInfo(chunk.getFileID(), msg.getRepDegree(), chunk.getNumber(),
+                            msg.getSenderID(), chunk.getSize(), contentHash, chunk.getCodec());
                 } catch (IOException e) {
-                    Log.logError("Unable to send " + message.getHeader());
+                    state.releaseSpace(chunk.getSize());
+                    Log.logError("Failed to store chunk " + chunk.getNumber() + " for file " + chunk.getFileID());
+                    return;
+                }
+            }
+
+            if (replicationPeers != null) {
+                for (Integer peerID : replicationPeers) {
+                    state.addPeerBackingUpStoredChunk(chunk.getFileID(), chunk.getNumber(), peerID);
+                }
+            }
+        }
+
+        peer.sendStored(chunk.getKey());
+    }
+
+    /**
+     * A peer that already stores a chunk with the announced content stores the new chunk as a link to it, without
+     * its content being sent. As with the enhanced PUTCHUNK, it waits a random delay and only stores the chunk
+     * if, by then, not enough peers have confirmed storing it.
+     */
+    public void handlePutHashMsg(Message msg) {
+        ChunkKey chunkKey = new ChunkKey(msg.getFileID(), msg.getChunkNumber());
+        String contentHash = FileIDGenerator.bytesToHex(msg.getBody());
+        PeerState state = this.peer.getState();
+
+        state.removeUndeletedFile(msg.getFileID());
+
+        this.peer.getSpaceReclaimSync().putChunkReceived(chunkKey);
+
+        if (state.isBackupFile(msg.getFileID()))
+            return;
+
+        // the initiator may have missed the STORED message, in case this is a retry
+        if (state.isStoredChunk(msg.getFileID(), msg.getChunkNumber())) {
+            peer.sendStored(chunkKey);
+            return;
+        }
+
+        if (! Config.getBoolean("peer.store.dedup", true) || state.findContent(contentHash) == null)
+            return;
+
+        int desiredRepDeg = msg.getRepDegree();
+
+        peer.getChunkBackupSync().listenToStored(chunkKey);
+
+        int backoffTime = new Random().nextInt(100);
+        Log.logBackoff(backoffTime, "before linking chunk " + chunkKey.getNumber());
+
+        Peer peer = this.peer;
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                int perceivedRepDeg = peer.getChunkBackupSync().getNumStored(chunkKey);
+                Set<Integer> replicationPeers = peer.getChunkBackupSync().getReplicationPeers(chunkKey);
+                peer.getChunkBackupSync().stopListenToStored(chunkKey);
+
+                if (perceivedRepDeg >= desiredRepDeg)
+                    return;
+
+                if (! storeShared(chunkKey, contentHash, desiredRepDeg, msg.getSenderID()))
+                    return;
+
+                if (replicationPeers != null) {
+                    for (Integer peerID : replicationPeers)
+                        state.addPeerBackingUpStoredChunk(chunkKey.getFileID(), chunkKey.getNumber(), peerID);
                 }
+
+                Log.log("Stored chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID()
+                        + " from its hash");
+                peer.sendStored(chunkKey);
             }
         }, backoffTime);
     }
-}
\ No newline at end of file
+}
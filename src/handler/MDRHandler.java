@@ -9,6 +9,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import file.Chunk;
 import file.ChunkKey;
+import filesystem.FileInfo;
 import filesystem.FileSystem;
 import message.InvalidMessageException;
 import message.Message;
@@ -16,6 +17,7 @@ import message.Messages;
 import peer.Peer;
 import protocol.ChunkRestoreSynchronizer;
 import util.Log;
+import util.Metrics;
 
 public class MDRHandler extends Handler {
 
@@ -37,6 +39,8 @@ public class MDRHandler extends Handler {
             return;
         }
 
+        this.recordSender(message);
+
         Log.logReceivedMDR(message.getHeader());
 
         switch (message.getType()) {
@@ -58,26 +62,41 @@ public class MDRHandler extends Handler {
     }
 
     public void handleChunkMsg(Message msg) {
-        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody());
+        Chunk chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), msg.getBody(), msg.getCodec());
 
         ChunkRestoreSynchronizer chunkRestoreSync = this.peer.getChunkRestoreSync();
 
         FileSystem fs = this.peer.getFileSystem();
 
-        chunkRestoreSync.chunkReceived(chunk);
+        boolean received = chunkRestoreSync.chunkReceived(chunk);
+
+        // the chunk may be part of more than one file being restored
+        for (String fileID : chunkRestoreSync.getRestoringFiles(chunk.getKey())) {
+            if (received)
+                this.peer.restoreChunkReceived(fileID, chunk.getSize());
 
-        if (chunkRestoreSync.isRestoringFile(chunk.getFileID())) {
-            List<Chunk> chunks = chunkRestoreSync.allChunksReceived(chunk.getFileID());
+            List<Chunk> chunks = chunkRestoreSync.allChunksReceived(fileID);
 
             if (chunks == null)
-                return;
+                continue;
 
-            Log.log("Received all chunks of file " + chunk.getFileID());
-            fs.restoreFile(chunks);
+            Log.log("Received all chunks of file " + fileID + " (duplicate CHUNK rate "
+                    + String.format("%.1f", Metrics.ratio("restore.chunks.duplicate", "restore.chunks.received")) + "%)");
+            FileInfo info = this.peer.getState().getBackupFileInfo(fileID);
+            this.peer.restoreFinished(fileID,
+                    fs.restoreFile(fileID, chunks, info == null ? null : info.getManifest()) == 0);
         }
     }
 
     public void handleChunkEnhMsg(Message msg) {
+        ChunkRestoreSynchronizer chunkRestoreSync = this.peer.getChunkRestoreSync();
+
+        // another peer has already sent this chunk, don't fetch it again
+        if (chunkRestoreSync.hasReceivedChunk(new ChunkKey(msg.getFileID(), msg.getChunkNumber()))) {
+            Metrics.increment("restore.chunks.received");
+            Metrics.increment("restore.chunks.duplicate");
+            return;
+        }
 
         ByteBuffer wrapped = ByteBuffer.wrap(msg.getBody());
         int port = wrapped.getInt();
@@ -93,26 +112,32 @@ public class MDRHandler extends Handler {
             byte[] buf = new byte[64000];
             buf = inStream.readAllBytes();
             Log.log("Read chunk's contents from socket (" + buf.length + " bytes)");
-            chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), buf);
+            chunk = new Chunk(msg.getFileID(), msg.getChunkNumber(), buf, msg.getCodec());
             socket.close();
         } catch (IOException e) {
             Log.logError("failed to read contents from socket");
             return;
         }
 
-        ChunkRestoreSynchronizer chunkRestoreSync = this.peer.getChunkRestoreSync();
         FileSystem fs = this.peer.getFileSystem();
 
-        chunkRestoreSync.chunkReceived(chunk);
+        boolean received = chunkRestoreSync.chunkReceived(chunk);
+
+        // the chunk may be part of more than one file being restored
+        for (String fileID : chunkRestoreSync.getRestoringFiles(chunk.getKey())) {
+            if (received)
+                this.peer.restoreChunkReceived(fileID, chunk.getSize());
 
-        if (chunkRestoreSync.isRestoringFile(chunk.getFileID())) {
-            List<Chunk> chunks = chunkRestoreSync.allChunksReceived(chunk.getFileID());
+            List<Chunk> chunks = chunkRestoreSync.allChunksReceived(fileID);
 
             if (chunks == null)
-                return;
+                continue;
 
-            Log.log("Received all chunks of file " + chunk.getFileID());
-            fs.restoreFile(chunks);
+            Log.log("Received all chunks of file " + fileID + " (duplicate CHUNK rate "
+                    + String.format("%.1f", Metrics.ratio("restore.chunks.duplicate", "restore.chunks.received")) + "%)");
+            FileInfo info = this.peer.getState().getBackupFileInfo(fileID);
+            this.peer.restoreFinished(fileID,
+                    fs.restoreFile(fileID, chunks, info == null ? null : info.getManifest()) == 0);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package handler;
+
+import java.net.DatagramPacket;
+
+import message.Message;
+import message.Messages;
+import peer.Peer;
+
+/**
+ * Handles a message received on the unicast channel like the same message received on the multicast
+ * channel it would otherwise have been sent to
+ */
+public class UnicastHandler extends Handler {
+
+    public UnicastHandler(Peer peer, DatagramPacket packet) {
+        super(peer, packet);
+    }
+
+    @Override
+    public void run() {
+        Message.Type type = Messages.peekType(packet.getData(), packet.getLength());
+
+        switch (type) {
+            case PUTCHUNK:
+                new MDBHandler(this.peer, this.packet).run();
+                break;
+            case CHUNK:
+                new MDRHandler(this.peer, this.packet).run();
+                break;
+            default:
+                new MCHandler(this.peer, this.packet).run();
+                break;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package handler.factory;
+
+import java.net.DatagramPacket;
+
+import handler.UnicastHandler;
+import peer.Peer;
+
+public class UnicastHandlerFactory extends HandlerFactory {
+
+    public UnicastHandlerFactory(Peer peer) {
+        super(peer);
+    }
+
+    @Override
+    public UnicastHandler getHandler(DatagramPacket packet) {
+        return new UnicastHandler(this.peer, packet);
+    }
+}
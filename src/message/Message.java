@@ -1,9 +1,11 @@
 package message;
 
+import file.Codec;
+
 public class Message {
 
     public enum Type {
-        PUTCHUNK, STORED, GETCHUNK, CHUNK, DELETE, REMOVED, STARTUP, DELETED, UNKNOWN;
+        PUTCHUNK, STORED, GETCHUNK, CHUNK, DELETE, REMOVED, STARTUP, DELETED, HANDOFF, WHOHAS, HAVE, DIGEST, HEARTBEAT, DELETEBATCH, DELETEDBATCH, STOREDBATCH, REMOVEDBATCH, PUTHASH, UNKNOWN;
     }
 
     private String version;
@@ -12,15 +14,27 @@ public class Message {
     private String fileID;
     private int chunkNo;
     private int repDegree;
+    private int nonce;
+    private Codec codec;
     private byte[] body;
 
     public Message(String version, Type type, int senderID, String fileID, int chunkNo, int replicationDegree, byte[] body) {
+        this(version, type, senderID, fileID, chunkNo, replicationDegree, -1, body);
+    }
+
+    public Message(String version, Type type, int senderID, String fileID, int chunkNo, int replicationDegree, int nonce, byte[] body) {
+        this(version, type, senderID, fileID, chunkNo, replicationDegree, nonce, Codec.RAW, body);
+    }
+
+    public Message(String version, Type type, int senderID, String fileID, int chunkNo, int replicationDegree, int nonce, Codec codec, byte[] body) {
         this.version = version;
         this.type = type;
         this.senderID = senderID;
         this.fileID = fileID;
         this.chunkNo = chunkNo;
         this.repDegree = replicationDegree;
+        this.nonce = nonce;
+        this.codec = codec;
         this.body = body;
     }
 
@@ -29,7 +43,9 @@ public class Message {
                 + String.valueOf(senderID) + " "
                 + ((fileID != null) ? (fileID + " ") : "")
                 + ((chunkNo != -1) ? (String.valueOf(chunkNo) + " ") : "")
-                + ((repDegree != -1) ? (String.valueOf(repDegree) + " ") : "");
+                + ((repDegree != -1) ? (String.valueOf(repDegree) + " ") : "")
+                + ((nonce != -1) ? (String.valueOf(nonce) + " ") : "")
+                + ((codec != Codec.RAW) ? (codec.toString() + " ") : "");
 
         return header;
     }
@@ -38,9 +54,11 @@ public class Message {
         String header = version + " " +
             type.toString() + " " +
             String.valueOf(senderID) + " " +
-            fileID + " " +
+            ((fileID != null) ? (fileID + " ") : "") +
             ((chunkNo != -1) ? (String.valueOf(chunkNo) + " ") : "") +
             ((repDegree != -1) ? (String.valueOf(repDegree) + " ") : "") +
+            ((nonce != -1) ? (String.valueOf(nonce) + " ") : "") +
+            ((codec != Codec.RAW) ? (codec.toString() + " ") : "") +
             "\r\n\r\n";
 
         byte[] headerBytes = header.getBytes();
@@ -80,6 +98,20 @@ public class Message {
         return this.repDegree;
     }
 
+    /**
+     * @return nonce that identifies a request, -1 if the message doesn't have one
+     */
+    public int getNonce() {
+        return this.nonce;
+    }
+
+    /**
+     * @return encoding of the chunk content carried by the message, RAW if the header doesn't have one
+     */
+    public Codec getCodec() {
+        return this.codec;
+    }
+
     public byte[] getBody() {
         return this.body;
     }
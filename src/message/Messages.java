@@ -1,13 +1,33 @@
 package message;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import file.Chunk;
 import file.ChunkKey;
+import file.Codec;
+import file.FileIDGenerator;
 import message.Message.Type;
 
 public class Messages {
+    // size of a SHA-256 file id
+    public static final int FILE_ID_SIZE = 32;
+    // datagrams up to this size aren't fragmented on common networks
+    public static final int MAX_BATCH_DATAGRAM_SIZE = 1400;
+    // leaves room for the header
+    public static final int MAX_BATCH_FILE_IDS = (MAX_BATCH_DATAGRAM_SIZE - 64) / FILE_ID_SIZE;
+    // ranges of chunk numbers (first chunk number and number of chunks) per STOREDBATCH or REMOVEDBATCH message
+    public static final int MAX_BATCH_RANGES = (MAX_BATCH_DATAGRAM_SIZE - 128) / 8;
+    // chunk numbers (4 bytes each) per HAVE message
+    public static final int MAX_HAVE_CHUNKS = (MAX_BATCH_DATAGRAM_SIZE - 128) / 4;
+    // heartbeat capability flag of the peers that decode chunks sent with a codec
+    public static final int CAPABILITY_CODECS = 1;
+    // heartbeat capability flag of the peers that read STOREDBATCH and REMOVEDBATCH messages
+    public static final int CAPABILITY_BATCH_ACKS = 2;
+
     public static Message parseMessage(byte[] msg, int msgLength) throws InvalidMessageException {
         String version = null;
         Type type = null;
@@ -15,6 +35,8 @@ public class Messages {
         String fileID = null;
         int chunkNo = -1;
         int repDegree = -1;
+        int nonce = -1;
+        Codec codec = Codec.RAW;
         byte[] body = null;
 
         int lastCRLF = -1;
@@ -50,9 +72,19 @@ public class Messages {
                 || headerFields[1].equals("DELETE")
                 || headerFields[1].equals("REMOVED")
                 || headerFields[1].equals("DELETED")
-                || headerFields[1].equals("STARTUP"))) {
-            type = Type.UNKNOWN;
-            new Message(version, type, senderID, fileID, chunkNo, repDegree, body);
+                || headerFields[1].equals("STARTUP")
+                || headerFields[1].equals("HANDOFF")
+                || headerFields[1].equals("WHOHAS")
+                || headerFields[1].equals("HAVE")
+                || headerFields[1].equals("DIGEST")
+                || headerFields[1].equals("HEARTBEAT")
+                || headerFields[1].equals("DELETEBATCH")
+                || headerFields[1].equals("DELETEDBATCH")
+                || headerFields[1].equals("STOREDBATCH")
+                || headerFields[1].equals("REMOVEDBATCH")
+                || headerFields[1].equals("PUTHASH"))) {
+            // unknown message types are ignored by the handlers
+            return new Message(version, Type.UNKNOWN, senderID, fileID, chunkNo, repDegree, body);
         } else {
             type = Type.valueOf(headerFields[1]);
         }
@@ -60,32 +92,97 @@ public class Messages {
 
         senderID = Integer.parseInt(headerFields[2]);
 
-        if (type != Type.STARTUP) {
+        if (type != Type.STARTUP && type != Type.DIGEST && type != Type.HEARTBEAT
+                && type != Type.DELETEBATCH && type != Type.DELETEDBATCH) {
             fileID = headerFields[3];
         }
 
-        if (type != Type.DELETE && type != Type.DELETED && type != Type.STARTUP) {
+        if (type != Type.DELETE && type != Type.DELETED && type != Type.STARTUP
+                && type != Type.WHOHAS && type != Type.HAVE && type != Type.DIGEST
+                && type != Type.HEARTBEAT && type != Type.DELETEBATCH && type != Type.DELETEDBATCH
+                && type != Type.STOREDBATCH && type != Type.REMOVEDBATCH) {
             chunkNo = Integer.parseInt(headerFields[4]);
         }
 
-        if (type == Type.PUTCHUNK) {
+        if (type == Type.PUTCHUNK || type == Type.HANDOFF || type == Type.PUTHASH) {
             repDegree = Integer.parseInt(headerFields[5]);
         }
 
-        if (type == Type.PUTCHUNK || type == Type.CHUNK) {
+        // WHOHAS has no chunk number, the desired replication degree of the file follows the file id
+        if (type == Type.WHOHAS && headerFields.length > 4) {
+            repDegree = Integer.parseInt(headerFields[4]);
+        }
+
+        if (type == Type.GETCHUNK && headerFields.length > 5) {
+            nonce = Integer.parseInt(headerFields[5]);
+        }
+
+        // the encoding of the chunk content follows the other fields, if it isn't raw
+        int codecField = type == Type.CHUNK ? 5 : 6;
+        if ((type == Type.PUTCHUNK || type == Type.CHUNK || type == Type.HANDOFF) && headerFields.length > codecField) {
+            try {
+                codec = Codec.valueOf(headerFields[codecField]);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidMessageException("Unknown codec " + headerFields[codecField]);
+            }
+        }
+
+        if (type == Type.PUTCHUNK || type == Type.CHUNK || type == Type.HANDOFF || type == Type.HAVE
+                || type == Type.PUTHASH || type == Type.DIGEST || type == Type.HEARTBEAT
+                || type == Type.DELETEBATCH || type == Type.DELETEDBATCH
+                || type == Type.STOREDBATCH || type == Type.REMOVEDBATCH) {
             body = Arrays.copyOfRange(msg, lastCRLF + 2, msgLength);
         }
 
-        return new Message(version, type, senderID, fileID, chunkNo, repDegree, body);
+        return new Message(version, type, senderID, fileID, chunkNo, repDegree, nonce, codec, body);
     }
 
+    /**
+     * Reads the type of a message without parsing it
+     * @return the type, UNKNOWN if it isn't a valid type
+     */
+    public static Type peekType(byte[] msg, int msgLength) {
+        int start = -1;
+        for (int i = 0; i < msgLength; i++) {
+            if (msg[i] != ' ')
+                continue;
+
+            if (start != -1) {
+                try {
+                    return Type.valueOf(new String(msg, start, i - start));
+                } catch (IllegalArgumentException e) {
+                    return Type.UNKNOWN;
+                }
+            }
+
+            start = i + 1;
+        }
+
+        return Type.UNKNOWN;
+    }
+
+    /**
+     * @param chunk     chunk to send, must be raw
+     */
     public static Message getPutChunkMessage(int senderID, Chunk chunk, int repDegree) {
         return new Message("1.0", Type.PUTCHUNK, senderID, chunk.getFileID(), chunk.getNumber(), repDegree, chunk.getContent());
     }
 
+    /**
+     * The chunk is sent as encoded, with its codec in the header if it isn't raw
+     */
     public static Message getEnhancedPutChunkMessage(int senderID, Chunk chunk, int repDegree) {
-        return new Message("2.0", Type.PUTCHUNK, senderID, chunk.getFileID(), chunk.getNumber(), repDegree,
-                chunk.getContent());
+        return new Message("2.0", Type.PUTCHUNK, senderID, chunk.getFileID(), chunk.getNumber(), repDegree, -1,
+                chunk.getCodec(), chunk.getContent());
+    }
+
+    /**
+     * Builds a PUTHASH message, which announces the backup of a chunk by the hash of its content (SHA-256) instead
+     * of the content itself, in the body
+     */
+    public static Message getPutHashMessage(int senderID, ChunkKey chunkKey, int repDegree, String contentHash) {
+        return new Message("2.0", Type.PUTHASH, senderID, chunkKey.getFileID(), chunkKey.getNumber(), repDegree,
+                FileIDGenerator.hexToBytes(contentHash));
     }
 
     public static Message getStoredMessage(int senderID, ChunkKey chunk) {
@@ -100,26 +197,195 @@ public class Messages {
         return new Message("2.0", Type.DELETE, senderID, fileID, -1, -1, null);
     }
 
+    /**
+     * @param chunk     chunk to send, must be raw
+     */
     public static Message getChunkMessage(int senderID, Chunk chunk) {
         return new Message("1.0", Type.CHUNK, senderID, chunk.getFileID(), chunk.getNumber(), -1, chunk.getContent());
     }
 
-    public static Message getEnhancedChunkMessage(int senderID, ChunkKey chunkKey, int socketPort) {
-        return new Message("2.0", Type.CHUNK, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, ByteBuffer.allocate(4).putInt(socketPort).array());
+    /**
+     * @param codec     encoding of the chunk content served at the port
+     */
+    public static Message getEnhancedChunkMessage(int senderID, ChunkKey chunkKey, int socketPort, Codec codec) {
+        return new Message("2.0", Type.CHUNK, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, -1, codec,
+                ByteBuffer.allocate(4).putInt(socketPort).array());
     }
 
     public static Message getGetChunkMessage(int senderID, ChunkKey chunkKey) {
         return new Message("1.0", Type.GETCHUNK, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, null);
     }
 
-    public static Message getEnhancedGetChunkMessage(int senderID, ChunkKey chunkKey) {
-        return new Message("2.0", Type.GETCHUNK, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, null);
+    public static Message getEnhancedGetChunkMessage(int senderID, ChunkKey chunkKey, int nonce) {
+        return new Message("2.0", Type.GETCHUNK, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, nonce, null);
     }
 
     public static Message getRemovedMessage(int senderID, ChunkKey chunkKey) {
         return new Message("1.0", Type.REMOVED, senderID, chunkKey.getFileID(), chunkKey.getNumber(), -1, null);
     }
 
+    /**
+     * Offer of a chunk being reclaimed, the body has the port of the TCP server socket where the chunk can be
+     * fetched, the chunk size, as encoded with the codec in the header, and the ids of the other peers known to
+     * store the chunk
+     */
+    public static Message getHandoffMessage(int senderID, ChunkKey chunkKey, int repDegree, int socketPort, int size,
+            Codec codec, List<Integer> holders) {
+        ByteBuffer body = ByteBuffer.allocate(8 + 4 * holders.size()).putInt(socketPort).putInt(size);
+        for (Integer holder : holders)
+            body.putInt(holder);
+
+        return new Message("2.0", Type.HANDOFF, senderID, chunkKey.getFileID(), chunkKey.getNumber(), repDegree, -1,
+                codec, body.array());
+    }
+
+    /**
+     * Asks the peers which chunks of a file they store, telling them the desired replication degree of the file
+     */
+    public static Message getWhoHasMessage(int senderID, String fileID, int repDegree) {
+        return new Message("2.0", Type.WHOHAS, senderID, fileID, -1, repDegree, null);
+    }
+
+    /**
+     * Reply to WHOHAS, the body has the numbers of the stored chunks of the file
+     */
+    public static Message getHaveMessage(int senderID, String fileID, List<Integer> chunkNos) {
+        ByteBuffer body = ByteBuffer.allocate(4 * chunkNos.size());
+        for (Integer chunkNo : chunkNos)
+            body.putInt(chunkNo);
+
+        return new Message("2.0", Type.HAVE, senderID, fileID, -1, -1, body.array());
+    }
+
+    /**
+     * @return chunk numbers in the body of a HAVE message
+     */
+    public static List<Integer> parseHaveBody(byte[] body) {
+        ByteBuffer wrapped = ByteBuffer.wrap(body);
+        List<Integer> chunkNos = new ArrayList<>();
+        while (wrapped.remaining() >= 4)
+            chunkNos.add(wrapped.getInt());
+
+        return chunkNos;
+    }
+
+    /**
+     * Announces the root digest of the chunks stored by the peer, the body has the port of the TCP server socket
+     * serving the rest of the digest, the root digest and the peer that should check it, -1 for all peers
+     */
+    public static Message getDigestMessage(int senderID, int socketPort, long root, int targetID) {
+        return new Message("2.0", Type.DIGEST, senderID, null, -1, -1,
+                ByteBuffer.allocate(16).putInt(socketPort).putLong(root).putInt(targetID).array());
+    }
+
+    /**
+     * Advertises the peer's unicast port, free space, load and capabilities, the body has them in this order. Peers
+     * that predate the capabilities read only the first 16 bytes of the body.
+     */
+    public static Message getHeartbeatMessage(int senderID, int socketPort, long freeSpace, int load, int capabilities) {
+        return new Message("2.0", Type.HEARTBEAT, senderID, null, -1, -1,
+                ByteBuffer.allocate(20).putInt(socketPort).putLong(freeSpace).putInt(load).putInt(capabilities).array());
+    }
+
+    /**
+     * Builds the DELETEBATCH messages for a set of files. The body of each message has the binary file ids
+     * (FILE_ID_SIZE bytes each), as many as fit in a datagram of MAX_BATCH_DATAGRAM_SIZE bytes.
+     */
+    public static List<Message> getDeleteBatchMessages(int senderID, Collection<String> fileIDs) {
+        return getBatchMessages(Type.DELETEBATCH, senderID, fileIDs);
+    }
+
+    /**
+     * Builds the DELETEDBATCH messages acknowledging the deletion of a set of files, with the same body as DELETEBATCH
+     */
+    public static List<Message> getDeletedBatchMessages(int senderID, Collection<String> fileIDs) {
+        return getBatchMessages(Type.DELETEDBATCH, senderID, fileIDs);
+    }
+
+    private static List<Message> getBatchMessages(Type type, int senderID, Collection<String> fileIDs) {
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer body = null;
+
+        for (String fileID : fileIDs) {
+            if (body == null)
+                body = ByteBuffer.allocate(MAX_BATCH_FILE_IDS * FILE_ID_SIZE);
+
+            body.put(FileIDGenerator.hexToBytes(fileID));
+
+            if (! body.hasRemaining()) {
+                messages.add(new Message("2.0", type, senderID, null, -1, -1, body.array()));
+                body = null;
+            }
+        }
+
+        if (body != null)
+            messages.add(new Message("2.0", type, senderID, null, -1, -1, Arrays.copyOf(body.array(), body.position())));
+
+        return messages;
+    }
+
+    /**
+     * @return file ids in the body of a DELETEBATCH or DELETEDBATCH message
+     */
+    public static List<String> parseFileIDs(byte[] body) {
+        List<String> fileIDs = new ArrayList<>();
+        for (int i = 0; i + FILE_ID_SIZE <= body.length; i += FILE_ID_SIZE)
+            fileIDs.add(FileIDGenerator.bytesToHex(Arrays.copyOfRange(body, i, i + FILE_ID_SIZE)));
+
+        return fileIDs;
+    }
+
+    /**
+     * Builds the STOREDBATCH or REMOVEDBATCH messages confirming a set of chunks of a file. The body of each message
+     * has up to MAX_BATCH_RANGES ranges of consecutive chunk numbers, each encoded as the first chunk number and
+     * the number of chunks.
+     * @param chunkNos  chunk numbers, in ascending order
+     */
+    public static List<Message> getChunkBatchMessages(Type type, int senderID, String fileID, Collection<Integer> chunkNos) {
+        List<int[]> ranges = new ArrayList<>();
+
+        for (Integer chunkNo : chunkNos) {
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+
+            if (last != null && chunkNo == last[0] + last[1])
+                last[1]++;
+            else
+                ranges.add(new int[] { chunkNo, 1 });
+        }
+
+        List<Message> messages = new ArrayList<>();
+
+        for (int i = 0; i < ranges.size(); i += MAX_BATCH_RANGES) {
+            List<int[]> part = ranges.subList(i, Math.min(i + MAX_BATCH_RANGES, ranges.size()));
+            ByteBuffer body = ByteBuffer.allocate(part.size() * 8);
+
+            for (int[] range : part)
+                body.putInt(range[0]).putInt(range[1]);
+
+            messages.add(new Message("2.0", type, senderID, fileID, -1, -1, body.array()));
+        }
+
+        return messages;
+    }
+
+    /**
+     * @return chunk numbers in the body of a STOREDBATCH or REMOVEDBATCH message
+     */
+    public static List<Integer> parseChunkRanges(byte[] body) {
+        ByteBuffer wrapped = ByteBuffer.wrap(body);
+        List<Integer> chunkNos = new ArrayList<>();
+
+        while (wrapped.remaining() >= 8) {
+            int first = wrapped.getInt();
+            int count = wrapped.getInt();
+
+            for (int i = 0; i < count; i++)
+                chunkNos.add(first + i);
+        }
+
+        return chunkNos;
+    }
+
     public static Message getStartupMessage(int senderID) {
         return new Message("2.0", Type.STARTUP, senderID, null, -1, -1, null);
     }
@@ -0,0 +1,242 @@
+package peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import file.ChunkKey;
+import protocol.ChunkBackupListener;
+
+/**
+ * An operation requested to a peer through RMI, which keeps running after the call returns. The chunks the
+ * operation is expected to process are added as its work is found, and once it is sealed, that is, no more chunks
+ * will be added, it finishes when all of them have been processed.
+ */
+public class Operation {
+
+    public enum Type {
+        BACKUP, BACKUPTREE, RESTORE, DELETE, RECLAIM;
+    }
+
+    public enum Status {
+        RUNNING, COMPLETED, FAILED, CANCELLED;
+    }
+
+    private final int id;
+    private final Type type;
+    private final String target;
+    private final long start;
+    private Peer peer;
+
+    private volatile Status status;
+    private volatile long end;
+    private volatile boolean sealed;
+
+    private final AtomicInteger chunksTotal = new AtomicInteger();
+    private final AtomicInteger chunksDone = new AtomicInteger();
+    private final AtomicInteger chunksFailed = new AtomicInteger();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+
+    // number of chunks whose backup hasn't finished, by file id, guarded by itself
+    private final Map<String, Integer> pendingFiles;
+    // run when the operation is cancelled, guarded by itself
+    private final List<Runnable> cancelActions;
+
+    /**
+     * @param id        id of the operation
+     * @param peer      peer that runs the operation, told when it finishes
+     * @param type      type of operation
+     * @param target    what the operation works on, e.g. a path
+     */
+    public Operation(int id, Peer peer, Type type, String target) {
+        this.id = id;
+        this.peer = peer;
+        this.type = type;
+        this.target = target;
+        this.start = System.currentTimeMillis();
+        this.status = Status.RUNNING;
+        this.pendingFiles = new HashMap<>();
+        this.cancelActions = new ArrayList<>();
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getTarget() {
+        return this.target;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isFinished() {
+        return this.status != Status.RUNNING;
+    }
+
+    public boolean isCancelled() {
+        return this.status == Status.CANCELLED;
+    }
+
+    /**
+     * Adds chunks the operation has to process
+     * @param bytes     their size, 0 if unknown
+     */
+    public void expect(int chunks, long bytes) {
+        this.chunksTotal.addAndGet(chunks);
+        this.bytesTotal.addAndGet(bytes);
+    }
+
+    public void chunkDone(long bytes) {
+        this.chunksDone.incrementAndGet();
+        this.bytesDone.addAndGet(bytes);
+        this.checkDone();
+    }
+
+    public void chunkFailed() {
+        this.chunksFailed.incrementAndGet();
+        this.checkDone();
+    }
+
+    /**
+     * Adds the backup of a chunk to the operation, which is done once the chunk reaches its desired replication degree
+     * @param fileId    file whose backup is undone if the operation is cancelled before the chunk is backed up,
+     *                  null if none
+     * @param next      also notified when the backup of the chunk finishes, may be null
+     * @return listener to notify when the backup of the chunk finishes
+     */
+    public ChunkBackupListener track(String fileId, int size, ChunkBackupListener next) {
+        this.expect(1, size);
+
+        if (fileId != null) {
+            synchronized (this.pendingFiles) {
+                this.pendingFiles.merge(fileId, 1, Integer::sum);
+            }
+        }
+
+        return (ChunkKey chunkKey, int repDegree, boolean achieved) -> {
+            if (fileId != null) {
+                synchronized (this.pendingFiles) {
+                    this.pendingFiles.computeIfPresent(fileId, (k, pending) -> pending > 1 ? pending - 1 : null);
+                }
+            }
+
+            if (next != null)
+                next.backupFinished(chunkKey, repDegree, achieved);
+
+            if (achieved)
+                this.chunkDone(size);
+            else
+                this.chunkFailed();
+        };
+    }
+
+    /**
+     * @return ids of the files whose backup hasn't finished
+     */
+    public List<String> getUnfinishedFiles() {
+        synchronized (this.pendingFiles) {
+            return new ArrayList<>(this.pendingFiles.keySet());
+        }
+    }
+
+    /**
+     * @return number of files whose backup hasn't finished
+     */
+    public int countUnfinishedFiles() {
+        synchronized (this.pendingFiles) {
+            return this.pendingFiles.size();
+        }
+    }
+
+    /**
+     * Records that no more chunks will be added, the operation finishes as soon as the ones added are processed
+     */
+    public void seal() {
+        this.sealed = true;
+        this.checkDone();
+    }
+
+    private void checkDone() {
+        if (! this.sealed || this.chunksDone.get() + this.chunksFailed.get() < this.chunksTotal.get())
+            return;
+
+        this.finish(this.chunksFailed.get() == 0 ? Status.COMPLETED : Status.FAILED);
+    }
+
+    /**
+     * Finishes the operation, if it is still running
+     * @return false if it had already finished
+     */
+    public boolean finish(Status status) {
+        synchronized (this) {
+            if (this.status != Status.RUNNING)
+                return false;
+
+            this.status = status;
+            this.end = System.currentTimeMillis();
+        }
+
+        this.peer.operationFinished(this);
+        return true;
+    }
+
+    /**
+     * @param action    run if the operation is cancelled, right away if it already was
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this.cancelActions) {
+            if (! this.isCancelled()) {
+                this.cancelActions.add(action);
+                return;
+            }
+        }
+
+        action.run();
+    }
+
+    /**
+     * Cancels the operation, chunk backups stop being retried and the actions registered with onCancel are run
+     * @return false if the operation had already finished
+     */
+    public boolean cancel() {
+        List<Runnable> actions;
+        synchronized (this.cancelActions) {
+            if (! this.finish(Status.CANCELLED))
+                return false;
+
+            actions = new ArrayList<>(this.cancelActions);
+            this.cancelActions.clear();
+        }
+
+        for (Runnable action : actions)
+            action.run();
+
+        return true;
+    }
+
+    /**
+     * @return lines with progress specific to the type of operation, null if there are none
+     */
+    protected String getDetails() {
+        return null;
+    }
+
+    public OperationProgress getProgress() {
+        long end = this.end;
+        long elapsed = (end == 0 ? System.currentTimeMillis() : end) - this.start;
+
+        return new OperationProgress(this.id, this.type.toString(), this.target, this.status.toString(),
+                this.isFinished(), this.chunksTotal.get(), this.chunksDone.get(), this.chunksFailed.get(),
+                this.bytesTotal.get(), this.bytesDone.get(), elapsed, this.getDetails());
+    }
+}
@@ -0,0 +1,15 @@
+package peer;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Implemented by RMI clients that want to be told when the operations of a peer finish, instead of polling
+ * their progress
+ */
+public interface OperationListener extends Remote {
+    /**
+     * @param progress  final progress of the operation
+     */
+    void operationFinished(OperationProgress progress) throws RemoteException;
+}
@@ -0,0 +1,133 @@
+package peer;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of the progress of an operation requested to a peer, sent to RMI clients
+ */
+public class OperationProgress implements Serializable {
+
+    private static final long serialVersionUID = -2390870317262431517L;
+
+    private final int id;
+    private final String type;
+    private final String target;
+    private final String status;
+    private final boolean finished;
+    private final int chunksTotal;
+    private final int chunksDone;
+    private final int chunksFailed;
+    private final long bytesTotal; // 0 if unknown
+    private final long bytesDone;
+    private final long elapsed; // ms
+    private final String details;
+
+    public OperationProgress(int id, String type, String target, String status, boolean finished, int chunksTotal,
+            int chunksDone, int chunksFailed, long bytesTotal, long bytesDone, long elapsed, String details) {
+        this.id = id;
+        this.type = type;
+        this.target = target;
+        this.status = status;
+        this.finished = finished;
+        this.chunksTotal = chunksTotal;
+        this.chunksDone = chunksDone;
+        this.chunksFailed = chunksFailed;
+        this.bytesTotal = bytesTotal;
+        this.bytesDone = bytesDone;
+        this.elapsed = elapsed;
+        this.details = details;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public String getType() {
+        return this.type;
+    }
+
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * @return RUNNING, COMPLETED, FAILED or CANCELLED
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    public int getChunksTotal() {
+        return this.chunksTotal;
+    }
+
+    /**
+     * @return chunks confirmed, that is, backed up with the desired replication degree, received or removed
+     */
+    public int getChunksDone() {
+        return this.chunksDone;
+    }
+
+    public int getChunksFailed() {
+        return this.chunksFailed;
+    }
+
+    public long getBytesTotal() {
+        return this.bytesTotal;
+    }
+
+    public long getBytesDone() {
+        return this.bytesDone;
+    }
+
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    /**
+     * @return bytes confirmed per second
+     */
+    public double getThroughput() {
+        return this.bytesDone * 1000.0 / Math.max(1, this.elapsed);
+    }
+
+    /**
+     * Estimates the time left from the rate at which bytes, or chunks if the number of bytes isn't known, have
+     * been confirmed so far
+     * @return time left in ms, -1 if it can't be estimated yet
+     */
+    public long getEta() {
+        if (this.finished)
+            return 0;
+
+        if (this.bytesTotal > 0 && this.bytesDone > 0)
+            return (long) ((this.bytesTotal - this.bytesDone) * (double) this.elapsed / this.bytesDone);
+
+        int finishedChunks = this.chunksDone + this.chunksFailed;
+        if (finishedChunks > 0)
+            return (long) ((this.chunksTotal - finishedChunks) * (double) this.elapsed / finishedChunks);
+
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        long eta = this.getEta();
+
+        String ret = "Operation " + this.id + " : " + this.type + " " + this.target + " (" + this.status + ")\n";
+        ret += "  Chunks : " + this.chunksDone + " of " + this.chunksTotal + " confirmed, " + this.chunksFailed
+                + " failed\n";
+        ret += "  Bytes : " + this.bytesDone + (this.bytesTotal > 0 ? " of " + this.bytesTotal : "") + " ("
+                + String.format("%.1f", this.getThroughput() / 1024) + " KB/s)\n";
+        ret += "  Elapsed : " + this.elapsed + "ms" + (eta >= 0 && ! this.finished ? ", ETA " + eta + "ms" : "")
+                + "\n";
+        if (this.details != null)
+            ret += this.details;
+
+        return ret;
+    }
+}
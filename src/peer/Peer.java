@@ -2,37 +2,71 @@ package peer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.file.Files;
 import java.rmi.RemoteException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import channel.MulticastChannel;
+import channel.UnicastChannel;
 import file.Chunk;
 import file.FileHandler;
 import file.FileIDGenerator;
 import file.FileSizeException;
+import file.TreeHash;
 import file.ChunkKey;
+import file.ChunkManifest;
+import file.Codec;
+import filesystem.ChunkIndex;
+import filesystem.ChunkReclaim;
+import filesystem.ChunkStoreReconciler;
+import filesystem.FileInfo;
 import filesystem.FileSystem;
+import filesystem.PackIndex;
 import filesystem.PeerState;
+import filesystem.ReclaimPolicy;
 import handler.factory.MCHandlerFactory;
 import handler.factory.MDBHandlerFactory;
 import handler.factory.MDRHandlerFactory;
+import handler.factory.UnicastHandlerFactory;
 import message.Message;
 import message.Messages;
+import protocol.AckAggregator;
+import protocol.ChunkTransmissionScheduler;
+import protocol.FilePacker;
+import protocol.RangeReader;
+import protocol.TreeBackup;
+import protocol.AntiEntropyServer;
 import protocol.ChunkBackupInitiator;
+import protocol.ChunkBackupListener;
 import protocol.ChunkBackupSynchronizer;
 import protocol.ChunkRestoreInitiator;
 import protocol.ChunkRestoreSynchronizer;
 import protocol.DeleteInitiator;
+import protocol.DeleteReplayer;
+import protocol.HoldingsDigest;
+import protocol.ReclaimHandoffInitiator;
+import protocol.RepairQueue;
+import protocol.ReplicationMonitor;
 import protocol.SpaceReclaimInitiator;
 import protocol.SpaceReclaimSynchronizer;
+import protocol.VersionRetirer;
+import util.Config;
 import util.Log;
+import util.Metrics;
 
 public class Peer implements PeerInterface {
     private int id;
@@ -41,9 +75,12 @@ public class Peer implements PeerInterface {
     private MulticastChannel mdb;
     private MulticastChannel mdr;
     private MulticastChannel mc;
+    // only used by version 2.0 peers, null otherwise
+    private UnicastChannel unicast;
 
     private FileSystem fileSystem;
     private PeerState state;
+    private PeerDirectory directory;
 
     private ExecutorService workers;
     private ScheduledExecutorService scheduler;
@@ -52,12 +89,32 @@ public class Peer implements PeerInterface {
     private ChunkBackupSynchronizer chunkBackupSync;
     private ChunkRestoreSynchronizer chunkRestoreSync;
     private SpaceReclaimSynchronizer spaceReclaimSync;
+    private RepairQueue repairQueue;
+    private ReplicationMonitor replicationMonitor;
+    private DeleteReplayer deleteReplayer;
+    private AckAggregator ackAggregator;
+    private FilePacker filePacker;
+    private ChunkTransmissionScheduler chunkScheduler;
+    private RangeReader rangeReader;
+
+    // operations requested through RMI, by id, and the operations restoring each file
+    private ConcurrentHashMap<Integer, Operation> operations;
+    private ConcurrentHashMap<String, Operation> restoreOperations;
+    private AtomicInteger nextOperationId;
+    // RMI clients told when an operation finishes
+    private CopyOnWriteArrayList<OperationListener> operationListeners;
 
     // true if it's first time this peer is launched
     private boolean firstTime;
 
     private final int SCHEDULER_POOL_SIZE = 500;
     private final long SAVE_STATE_INTERVAL_MS = 2000;
+    // files up to this size are packed with others, if packing is enabled
+    private static final long PACK_THRESHOLD = Math.min(Config.getLong("peer.pack.threshold", 16384), Chunk.MAX_SIZE);
+    // finished operations are forgotten, oldest first, once there are more operations than this
+    private static final int MAX_OPERATIONS = 1000;
+    // time without receiving a chunk of a file being restored after which its restore fails, in ms
+    private static final long RESTORE_TIMEOUT = Config.getLong("peer.restore.timeout", 30000);
 
     public Peer(MulticastChannel mc, MulticastChannel mdb, MulticastChannel mdr, String version, int id) {
         this.id = id;
@@ -75,16 +132,91 @@ public class Peer implements PeerInterface {
         this.chunkRestoreSync = new ChunkRestoreSynchronizer();
         this.spaceReclaimSync = new SpaceReclaimSynchronizer();
 
+        this.directory = new PeerDirectory(Config.getLong("peer.directory.timeout", 120000));
+
         this.workers = Executors.newCachedThreadPool();
         this.scheduler = Executors.newScheduledThreadPool(SCHEDULER_POOL_SIZE);
 
         this.fileSystem = new FileSystem(this);
         this.firstTime = ! this.loadState();
 
+        try {
+            this.state.setReclaimPolicy(ReclaimPolicy.valueOf(Config.getString("peer.reclaim.policy", "RD_SURPLUS")));
+        } catch (IllegalArgumentException e) {
+            Log.logError("Unknown reclaim policy, using RD_SURPLUS");
+        }
+
+        // a state saved while the index was used has its stored chunks there
+        boolean offHeapIndex = Config.getBoolean("peer.index.offheap", false);
+        if (offHeapIndex || this.state.hasChunksInIndex())
+            this.loadChunkIndex(offHeapIndex);
+
+        // check the state against the chunks on disk in the background, the peer doesn't wait for it
+        if (Config.getBoolean("peer.reconcile", true))
+            this.workers.submit(new ChunkStoreReconciler(this.fileSystem, this.state));
+
+        this.repairQueue = new RepairQueue(this, Config.getInt("peer.repair.batch", 4),
+                Config.getInt("peer.repair.inprogress", 16), Config.getLong("peer.repair.bandwidth", 1048576));
+        this.drainRepairQueue(Config.getLong("peer.repair.interval", 500));
+
+        this.deleteReplayer = new DeleteReplayer(this, Config.getLong("peer.delete.pace", 20),
+                Config.getInt("peer.delete.burst", 10));
+        long deleteInterval = Config.getLong("peer.delete.interval", 1000);
+        this.scheduler.scheduleAtFixedRate(this.deleteReplayer, deleteInterval, deleteInterval, TimeUnit.MILLISECONDS);
+
+        if (this.version.equals("2.0") && Config.getBoolean("peer.ack.batch", true))
+            this.ackAggregator = new AckAggregator(this, Config.getLong("peer.ack.delay", 50));
+
+        this.chunkScheduler = new ChunkTransmissionScheduler(this, Config.getInt("peer.tree.inflight", 32),
+                Config.getLong("peer.tree.queue", 64 * Chunk.MAX_SIZE));
+        this.operations = new ConcurrentHashMap<>();
+        this.restoreOperations = new ConcurrentHashMap<>();
+        this.nextOperationId = new AtomicInteger(1);
+        this.operationListeners = new CopyOnWriteArrayList<>();
+
+        if (Config.getString("peer.fileid", "metadata").equals("content"))
+            FileIDGenerator.useContentIDs(id);
+
+        this.rangeReader = new RangeReader(this, Config.getLong("peer.read.cache", 64 * Chunk.MAX_SIZE),
+                Config.getInt("peer.read.prefetch", 8), Config.getLong("peer.read.timeout", 5000));
+
+        if (this.version.equals("2.0") && Config.getBoolean("peer.pack", false))
+            this.filePacker = new FilePacker(this, Config.getLong("peer.pack.delay", 1000),
+                    Config.getLong("peer.pack.size", 16 * Chunk.MAX_SIZE));
+
+        this.replicationMonitor = new ReplicationMonitor(this, Config.getLong("peer.monitor.window", 3000),
+                Config.getLong("peer.monitor.pace", 20));
+        long monitorInterval = Config.getLong("peer.monitor.interval", 60000);
+        if (this.version.equals("2.0") && monitorInterval > 0)
+            this.scheduler.scheduleAtFixedRate(this.replicationMonitor, monitorInterval, monitorInterval,
+                    TimeUnit.MILLISECONDS);
+
+        long antiEntropyInterval = Config.getLong("peer.antientropy.interval", 600000);
+        if (this.version.equals("2.0") && Config.getBoolean("peer.antientropy", true) && antiEntropyInterval > 0)
+            this.scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    announceDigest(-1);
+                }
+            }, antiEntropyInterval, antiEntropyInterval, TimeUnit.MILLISECONDS);
+
+        if (this.version.equals("2.0")) {
+            try {
+                this.unicast = new UnicastChannel(Config.getInt("peer.unicast.port", 0));
+                this.unicast.setHandlerFactory(new UnicastHandlerFactory(this));
+            } catch (IOException e) {
+                Log.logError("Unable to open unicast channel, using multicast only");
+            }
+        }
+
         // start listener threads
         new Thread(this.mc).start();
         new Thread(this.mdb).start();
         new Thread(this.mdr).start();
+        if (this.unicast != null) {
+            new Thread(this.unicast).start();
+            this.sendHeartbeats(Config.getLong("peer.heartbeat.interval", 30000));
+        }
 
         // schedule task that saves peer state to disk
         this.writeStateToDisk();
@@ -104,6 +236,23 @@ public class Peer implements PeerInterface {
         }
     }
 
+    /**
+     * @param keep  false to only read the stored chunks from the index
+     */
+    private void loadChunkIndex(boolean keep) {
+        ChunkIndex index = this.fileSystem.loadChunkIndex();
+        if (index == null) {
+            this.state.chunkIndexMissing();
+            return;
+        }
+
+        try {
+            this.state.setChunkIndex(index, keep);
+        } catch (IOException e) {
+            Log.logError("Failed building chunk index");
+        }
+    }
+
     public void sendStartupMessage() {
         if (this.firstTime || !this.version.equals("2.0"))
             return;
@@ -116,27 +265,129 @@ public class Peer implements PeerInterface {
             Log.logError("Unable to send " + msg.getHeader());
         }
 
-        Set<String> undeletedFiles = state.getUndeletedFiles();
-        for (String file : undeletedFiles) {
-            msg = Messages.getEnhancedDeleteMessage(id, file);
-            try {
-                mc.broadcast(msg);
-                Log.logSentMC(msg.getHeader());
-            } catch (IOException e) {
-                Log.logError("Unable to send " + msg.getHeader());
+        if (Config.getBoolean("peer.antientropy", true))
+            this.announceDigest(-1);
+
+        this.deleteReplayer.add(state.getUndeletedFiles(), 1);
+    }
+
+    /**
+     * Serves the digest of the chunks stored by the peer and announces it with a DIGEST message, so that
+     * other peers can bring their view of them in sync
+     * @param targetID  peer that should check the digest, -1 for all peers
+     */
+    public void announceDigest(int targetID) {
+        HoldingsDigest digest = new HoldingsDigest(this.state.getStoredHoldings());
+
+        AntiEntropyServer server;
+        try {
+            server = new AntiEntropyServer(digest);
+        } catch (IOException e) {
+            Log.logError("Unable to open server socket for holdings digest");
+            return;
+        }
+
+        this.workers.submit(server);
+
+        Message msg = Messages.getDigestMessage(this.id, server.getPort(), digest.getRoot(), targetID);
+        try {
+            this.mc.broadcast(msg);
+            Log.logSentMC(msg.getHeader());
+        } catch (IOException e) {
+            Log.logError("Unable to send " + msg.getHeader());
+        }
+    }
+
+    private void sendHeartbeats(long interval) {
+        this.scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Message msg = Messages.getHeartbeatMessage(id, unicast.getPort(), state.getAvailableSpace(), getLoad(),
+                        Messages.CAPABILITY_CODECS | Messages.CAPABILITY_BATCH_ACKS);
+                try {
+                    mc.broadcast(msg);
+                } catch (IOException e) {
+                    Log.logError("Unable to send " + msg.getHeader());
+                }
             }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of worker threads executing tasks
+     */
+    private int getLoad() {
+        if (this.workers instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) this.workers).getActiveCount();
+
+        return 0;
+    }
+
+    /**
+     * Sends a message to a single peer through its unicast channel
+     * @param peerID    destination peer
+     * @param msg       message
+     * @return true if the message was sent, false if the peer's unicast channel isn't known
+     */
+    public boolean sendTo(int peerID, Message msg) {
+        InetAddress address = this.directory.getAddress(peerID);
+        int port = this.directory.getPort(peerID);
+
+        if (this.unicast == null || address == null || port == -1)
+            return false;
+
+        try {
+            this.unicast.send(msg, address, port);
+            Log.log("UC :: Sent to peer " + peerID + " :: " + msg.getHeader());
+            return true;
+        } catch (IOException e) {
+            Log.logError("Unable to send " + msg.getHeader() + " to peer " + peerID);
+            return false;
+        }
+    }
+
+    /**
+     * Sends a message to each of a set of peers through their unicast channels
+     * @param peerIDs   destination peers
+     * @param msg       message
+     * @return true if the message was sent to all the peers, false if the unicast channel of any of them isn't known
+     */
+    public boolean sendTo(Collection<Integer> peerIDs, Message msg) {
+        if (peerIDs == null || peerIDs.isEmpty())
+            return false;
+
+        for (Integer peerID : peerIDs) {
+            if (this.directory.getPort(peerID) == -1 || this.directory.getAddress(peerID) == null)
+                return false;
         }
+
+        boolean sent = true;
+        for (Integer peerID : peerIDs)
+            sent &= this.sendTo(peerID, msg);
+
+        return sent;
     }
 
     public void writeStateToDisk() {
         this.scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
+                // the index is written first, with the generation the state is saved with
+                state.forceChunkIndex();
                 fileSystem.storeState(state);
             }
         }, 0, SAVE_STATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
+    private void drainRepairQueue(long interval) {
+        this.scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                repairQueue.drain();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
     public void submitWorker(Runnable task) {
         this.workers.submit(task);
     }
@@ -145,6 +396,68 @@ public class Peer implements PeerInterface {
         this.scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Encodes a chunk read from a file backed up by this peer with the configured codec, for it to be sent and
+     * stored by the other peers that way. Chunks are only encoded while every alive peer advertises decoding them.
+     * @return the encoded chunk, or the chunk itself if it isn't encoded or encoding it doesn't make it smaller
+     */
+    public Chunk encodeChunk(Chunk chunk) {
+        if (! this.version.equals("2.0") || ! this.directory.allHave(Messages.CAPABILITY_CODECS, null))
+            return chunk;
+
+        Codec codec;
+        try {
+            codec = Codec.valueOf(Config.getString("peer.compression", "deflate").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            codec = Codec.RAW;
+        }
+
+        int level = Math.max(1, Math.min(9, Config.getInt("peer.compression.level", 1)));
+        Chunk encoded = chunk.encode(codec, level);
+
+        if (codec != Codec.RAW) {
+            Metrics.add("compression.bytes.in", chunk.getSize());
+            Metrics.add("compression.bytes.out", encoded.getSize());
+            if (encoded == chunk)
+                Metrics.increment("compression.chunks.raw");
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Prepares a chunk to be sent to other peers, decoding it unless all of them advertised decoding chunks sent with
+     * a codec, since older peers would store or restore the encoded content as if it were raw
+     * @param receivers peers that receive the chunk, null for every alive peer
+     * @return the chunk itself, or decoded
+     * @throws IOException if the chunk can't be decoded
+     */
+    public Chunk prepareChunk(Chunk chunk, Collection<Integer> receivers) throws IOException {
+        if (chunk.getCodec() == Codec.RAW || this.directory.allHave(Messages.CAPABILITY_CODECS, receivers))
+            return chunk;
+
+        Metrics.increment("compression.chunks.decoded");
+        return chunk.decode();
+    }
+
+    /**
+     * Confirms that this peer stores a chunk, through the ack aggregator if there is one, or with a STORED message
+     */
+    public void sendStored(ChunkKey chunkKey) {
+        if (this.ackAggregator != null) {
+            this.ackAggregator.stored(chunkKey);
+            return;
+        }
+
+        Message message = Messages.getStoredMessage(this.id, chunkKey);
+        try {
+            this.mc.broadcast(message);
+            Log.logSentMC(message.getHeader());
+        } catch (IOException e) {
+            Log.logError("Unable to send " + message.getHeader());
+        }
+    }
+
     public int getID() {
         return this.id;
     }
@@ -161,6 +474,10 @@ public class Peer implements PeerInterface {
         return this.state;
     }
 
+    public PeerDirectory getDirectory() {
+        return this.directory;
+    }
+
     public MulticastChannel getMDBChannel() {
         return this.mdb;
     }
@@ -181,28 +498,174 @@ public class Peer implements PeerInterface {
         return this.chunkRestoreSync;
     }
 
+    public ReplicationMonitor getReplicationMonitor() {
+        return replicationMonitor;
+    }
+
+    public DeleteReplayer getDeleteReplayer() {
+        return deleteReplayer;
+    }
+
+    public AckAggregator getAckAggregator() {
+        return ackAggregator;
+    }
+
+    public RepairQueue getRepairQueue() {
+        return repairQueue;
+    }
+
     public SpaceReclaimSynchronizer getSpaceReclaimSync() {
         return this.spaceReclaimSync;
     }
 
     @Override
     public int backup(String path, int replicationDegree) throws RemoteException {
+        Operation operation = new Operation(this.nextOperationId.getAndIncrement(), this, Operation.Type.BACKUP, path);
+        if (this.backupFile(path, replicationDegree, operation, false) != 0)
+            return -1;
+
+        this.addOperation(operation);
+        operation.seal();
+
+        return operation.getId();
+    }
+
+    /**
+     * Backs up a file
+     * @param operation operation the backup is part of, told about the backup of each chunk
+     * @param scheduled true if the chunks are sent through the shared chunk transmission scheduler, as when the file
+     *                  is backed up with many others
+     * @return 0 if the backup started, -1 otherwise
+     */
+    public int backupFile(String path, int replicationDegree, Operation operation, boolean scheduled) {
+        // small files are packed with others instead of being backed up on their own
+        File source = new File(path);
+        if (this.filePacker != null && source.isFile() && source.length() <= PACK_THRESHOLD)
+            return this.backupPacked(source, replicationDegree, operation);
 
         try {
-            FileHandler file = new FileHandler(path);
+            boolean enhanced = this.version.equals("2.0");
+            boolean contentDefined = enhanced && Config.getString("peer.chunking", "fixed").equals("cdc");
+
+            long start = System.nanoTime();
+            FileHandler file = new FileHandler(path, contentDefined);
+            long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
 
-            if (! this.state.insertFileInfo(file.getAbsolutePath(), file.getID(), replicationDegree)) {
+            TreeHash treeHash = file.getTreeHash();
+            if (treeHash != null) {
+                double seconds = Math.max(1, treeHash.getElapsed()) / 1e9;
+                int cores = Runtime.getRuntime().availableProcessors();
+                Metrics.add("fileid.bytes", treeHash.getLength());
+                Metrics.add("fileid.ms", treeHash.getElapsed() / 1000000);
+                Log.log("Hashed " + treeHash.getLength() + " bytes into " + treeHash.getLeaves().length + " leaves in "
+                        + treeHash.getElapsed() / 1000000 + "ms (" + String.format("%.2f", treeHash.getLength() / 1e9 / seconds)
+                        + " GB/s, " + String.format("%.2f", treeHash.getLength() / 1e9 / seconds / cores)
+                        + " GB/s per core on " + cores + " cores)");
+            }
+
+            ChunkManifest manifest = file.getManifest();
+            Metrics.add("chunking.bytes", manifest.getTotalBytes());
+            Metrics.add("chunking.ms", elapsed);
+            Log.log("Split " + manifest.getTotalBytes() + " bytes into " + manifest.getNumChunks()
+                    + (contentDefined ? " content defined" : "") + " chunks in " + elapsed + "ms ("
+                    + String.format("%.1f", manifest.getTotalBytes() / 1000.0 / elapsed) + " MB/s)");
+
+            // chunks with only zeros aren't sent, they are left as holes when the file is restored
+            if (enhanced && Config.getBoolean("peer.backup.holes", true)) {
+                int holes = 0;
+                for (Chunk chunk : file.getChunks()) {
+                    if (chunk.isZero()) {
+                        manifest.markHole(chunk.getNumber());
+                        holes++;
+                    }
+                }
+
+                Metrics.add("backup.chunks.holes", holes);
+                Metrics.add("backup.bytes.holes", manifest.getHoleBytes());
+                if (holes > 0)
+                    Log.log("Skipping " + holes + " chunks of zeros (" + manifest.getHoleBytes() + " bytes)");
+            }
+
+            // chunks with the same content as chunks of files backed up before are not sent again
+            if (enhanced && Config.getBoolean("peer.backup.reuse", true)) {
+                int reused = this.state.reuseChunks(manifest);
+                Metrics.add("backup.chunks.reused", reused);
+                Metrics.add("backup.bytes.reused", manifest.getReusedBytes());
+                if (reused > 0)
+                    Log.log("Reusing " + reused + " of " + manifest.getNumChunks() + " chunks ("
+                            + String.format("%.1f", 100.0 * manifest.getReusedBytes() / Math.max(1, manifest.getTotalBytes()))
+                            + "% of the bytes) already backed up");
+            }
+
+            // versions of the file backed up before from the same path, replaced by this one once it's backed up
+            List<String> previousVersions = new ArrayList<>();
+            if (enhanced && Config.getBoolean("peer.backup.reuse", true)
+                    && Config.getBoolean("peer.backup.incremental", true)) {
+                previousVersions = this.state.getBackupVersions(file.getAbsolutePath());
+                previousVersions.remove(file.getID());
+            }
+
+            if (! this.state.insertFileInfo(file.getAbsolutePath(), file.getID(), replicationDegree, manifest)) {
                 Log.logError("File " + file.getID() + " already backed up");
                 return -1;
             }
 
+            long bytesSent = manifest.getTotalBytes() - manifest.getReusedBytes() - manifest.getHoleBytes();
+            Metrics.add("backup.bytes.full", manifest.getTotalBytes());
+            Metrics.add("backup.bytes.sent", bytesSent);
+
+            VersionRetirer retirer = null;
+            if (! previousVersions.isEmpty()) {
+                List<ChunkManifest> previousManifests = new ArrayList<>();
+                for (String fileID : previousVersions) {
+                    FileInfo info = this.state.getBackupFileInfo(fileID);
+                    if (info != null && info.getManifest() != null)
+                        previousManifests.add(info.getManifest());
+                }
+
+                Log.log("Incremental backup of " + file.getAbsolutePath() + ": "
+                        + manifest.countChangedChunks(previousManifests) + " of " + manifest.getNumChunks()
+                        + " chunks changed, sending " + bytesSent + " of " + manifest.getTotalBytes() + " bytes ("
+                        + String.format("%.1f", 100.0 * bytesSent / Math.max(1, manifest.getTotalBytes()))
+                        + "% of a full backup)");
+
+                // deleting the previous versions loses them for good, so it has to be asked for
+                if (Config.getBoolean("peer.backup.retire", false))
+                    retirer = new VersionRetirer(this, file.getID(), previousVersions,
+                            manifest.getOwnChunks().size());
+            }
 
-            List<Chunk> chunks = file.getChunks();
 
+            List<Chunk> chunks = file.getChunks();
 
+            long rawBytes = 0, encodedBytes = 0;
             for (Chunk chunk : chunks) {
-                this.workers.submit(new ChunkBackupInitiator(this, chunk, replicationDegree, 5, 1000));
+                if (manifest.isReused(chunk.getNumber()) || manifest.isHole(chunk.getNumber()))
+                    continue;
+
+                Chunk encoded = this.encodeChunk(chunk);
+                rawBytes += chunk.getSize();
+                encodedBytes += encoded.getSize();
+
+                ChunkBackupListener listener = operation.track(file.getID(), encoded.getSize(), retirer);
+                if (! scheduled) {
+                    ChunkBackupInitiator initiator = new ChunkBackupInitiator(this, encoded, replicationDegree, 5,
+                            1000, listener);
+                    initiator.setOperation(operation);
+                    this.workers.submit(initiator);
+                    continue;
+                }
+
+                this.chunkScheduler.submit(encoded, replicationDegree, listener, operation);
             }
+
+            if (encodedBytes < rawBytes)
+                Log.log("Compressed " + rawBytes + " bytes of chunks to " + encodedBytes + " ("
+                        + String.format("%.1f", 100.0 * encodedBytes / rawBytes) + "%)");
+
+            // every chunk was already backed up
+            if (retirer != null && manifest.getOwnChunks().isEmpty())
+                this.retireVersions(previousVersions);
         } catch (IOException e) {
             Log.logError("Failed opening file");
             return -1;
@@ -212,6 +675,143 @@ public class Peer implements PeerInterface {
         } catch (NoSuchAlgorithmException e) {
             Log.logError("Failed to generate file ID");
             return -1;
+        } catch (InterruptedException e) {
+            Log.logError("Interrupted while queueing the chunks of " + path);
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public int backupTree(String path, int replicationDegree, String options) throws RemoteException {
+        File root = new File(path);
+        if (! root.isDirectory()) {
+            Log.logError(path + " isn't a directory");
+            return -1;
+        }
+
+        TreeBackup tree = new TreeBackup(this.nextOperationId.getAndIncrement(), this, root, replicationDegree,
+                options);
+        this.addOperation(tree);
+        this.workers.submit(tree);
+
+        return tree.getId();
+    }
+
+    @Override
+    public OperationProgress progress(int operationId) throws RemoteException {
+        Operation operation = this.operations.get(operationId);
+        if (operation == null)
+            return null;
+
+        return operation.getProgress();
+    }
+
+    @Override
+    public int cancel(int operationId) throws RemoteException {
+        Operation operation = this.operations.get(operationId);
+        if (operation == null) {
+            Log.logError("Unknown operation " + operationId);
+            return -1;
+        }
+
+        if (! operation.cancel()) {
+            Log.logError("Operation " + operationId + " has already finished");
+            return -1;
+        }
+
+        int dropped = this.chunkScheduler.cancel(operation);
+
+        // the files whose backup didn't finish are deleted from the peers that already store some of their chunks
+        int deleted = 0;
+        for (String fileID : operation.getUnfinishedFiles()) {
+            if (this.state.isBackupFile(fileID)) {
+                this.deleteBackup(fileID);
+                deleted++;
+            }
+        }
+
+        Log.log("Cancelled operation " + operationId + ", dropped " + dropped + " queued chunks and deleted " + deleted
+                + " partial backups");
+
+        return 0;
+    }
+
+    @Override
+    public void subscribe(OperationListener listener) throws RemoteException {
+        this.operationListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unsubscribe(OperationListener listener) throws RemoteException {
+        this.operationListeners.remove(listener);
+    }
+
+    private void addOperation(Operation operation) {
+        this.operations.put(operation.getId(), operation);
+
+        if (this.operations.size() <= MAX_OPERATIONS)
+            return;
+
+        // ids grow over time, so the first finished ones found in id order are the oldest
+        List<Integer> ids = new ArrayList<>(this.operations.keySet());
+        ids.sort(null);
+        Iterator<Integer> it = ids.iterator();
+        while (this.operations.size() > MAX_OPERATIONS && it.hasNext()) {
+            Integer id = it.next();
+            if (this.operations.get(id).isFinished())
+                this.operations.remove(id);
+        }
+    }
+
+    /**
+     * Called by an operation once it finishes, tells the RMI clients subscribed
+     */
+    public void operationFinished(Operation operation) {
+        Log.log("Operation " + operation.getId() + " (" + operation.getType() + " " + operation.getTarget()
+                + ") finished: " + operation.getStatus());
+        Metrics.increment("operations." + operation.getStatus().toString().toLowerCase());
+
+        if (this.operationListeners.isEmpty())
+            return;
+
+        this.workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                OperationProgress progress = operation.getProgress();
+                for (OperationListener listener : operationListeners) {
+                    try {
+                        listener.operationFinished(progress);
+                    } catch (RemoteException e) {
+                        // the client is gone
+                        operationListeners.remove(listener);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a small file to be packed and backed up with others
+     */
+    private int backupPacked(File file, int replicationDegree, Operation operation) {
+        try {
+            String fileID = FileIDGenerator.generateID(file);
+
+            if (this.state.isBackupFile(fileID) || this.state.isPackedFile(fileID)
+                    || ! this.filePacker.add(fileID, file.getAbsolutePath(), Files.readAllBytes(file.toPath()),
+                            replicationDegree, operation)) {
+                Log.logError("File " + fileID + " already backed up");
+                return -1;
+            }
+        } catch (IOException e) {
+            Log.logError("Failed opening file");
+            return -1;
+        } catch (NoSuchAlgorithmException e) {
+            Log.logError("Failed to generate file ID");
+            return -1;
         }
 
         return 0;
@@ -224,25 +824,227 @@ public class Peer implements PeerInterface {
         String fileID;
         try {
             fileID = FileIDGenerator.generateID(file);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException | IOException e) {
             Log.logError("Failed generating file ID");
             return -1;
         }
 
+        PackIndex.Entry packed = this.state.getPackEntry(fileID);
+        if (packed != null) {
+            if (! this.state.isBackupFile(packed.getPackId())) {
+                Log.logError("Pack " + packed.getPackId() + " of file " + fileID + " is no longer backed up");
+                return -1;
+            }
+
+            Operation operation = this.startRestore(fileID, path, 1);
+            if (operation == null)
+                return -1;
+
+            // only the chunk of the pack with the file is fetched
+            ChunkKey source = new ChunkKey(packed.getPackId(), packed.getChunkNo());
+            this.chunkRestoreSync.restorePackedFile(fileID, source, packed.getOffset(), packed.getLength());
+            this.workers.submit(new ChunkRestoreInitiator(this, source));
+
+            return operation.getId();
+        }
+
         if (!state.isBackupFile(fileID)) {
             Log.logError("This peer didn't request backup of file " + fileID);
             return -1;
         }
 
-        long numChunks = file.length() / Chunk.MAX_SIZE + 1;
+        ChunkManifest manifest = this.state.getBackupFileInfo(fileID).getManifest();
+
+        if (manifest == null) {
+            long numChunks = file.length() / Chunk.MAX_SIZE + 1;
+
+            Operation operation = this.startRestore(fileID, path, (int) numChunks);
+            if (operation == null)
+                return -1;
+
+            this.chunkRestoreSync.restoreFile(fileID);
+
+            for (int i = 0; i < numChunks; i++) {
+                this.workers.submit(new ChunkRestoreInitiator(this, new ChunkKey(fileID, i)));
+            }
+
+            return operation.getId();
+        }
+
+        // reused chunks are fetched from the files that store them, each only once
+        List<ChunkKey> sources = new ArrayList<>();
+        for (int i = 0; i < manifest.getNumChunks(); i++)
+            sources.add(manifest.getSource(fileID, i));
 
-        this.chunkRestoreSync.restoreFile(fileID);
+        LinkedHashSet<ChunkKey> distinctSources = new LinkedHashSet<>(sources);
+        distinctSources.remove(null);
+        Operation operation = this.startRestore(fileID, path, distinctSources.size());
+        if (operation == null)
+            return -1;
 
-        for (int i = 0; i < numChunks; i++) {
-            this.workers.submit(new ChunkRestoreInitiator(this, new ChunkKey(fileID, i)));
+        // a file with only holes has no chunks to fetch
+        if (distinctSources.isEmpty()) {
+            this.restoreFinished(fileID, this.fileSystem.restoreFile(fileID, new ArrayList<>(), manifest) == 0);
+            return operation.getId();
         }
 
-        return 0;
+        this.chunkRestoreSync.restoreFile(fileID, sources);
+
+        for (ChunkKey source : distinctSources) {
+            this.workers.submit(new ChunkRestoreInitiator(this, source));
+        }
+
+        return operation.getId();
+    }
+
+    /**
+     * Creates the operation that tracks the restore of a file
+     * @param numChunks number of distinct chunks to fetch
+     * @return the operation, null if the file is already being restored
+     */
+    private Operation startRestore(String fileID, String path, int numChunks) {
+        Operation operation = new Operation(this.nextOperationId.getAndIncrement(), this, Operation.Type.RESTORE, path);
+        if (this.restoreOperations.putIfAbsent(fileID, operation) != null) {
+            Log.logError("File " + fileID + " is already being restored");
+            return null;
+        }
+
+        operation.expect(numChunks, 0);
+        operation.onCancel(() -> {
+            this.restoreOperations.remove(fileID, operation);
+            this.chunkRestoreSync.finishedRestoreFile(fileID);
+        });
+        this.addOperation(operation);
+        this.watchRestore(fileID, operation, -1);
+
+        return operation;
+    }
+
+    /**
+     * Fails the restore of a file if no chunk of it is received for RESTORE_TIMEOUT ms, since the chunks that no
+     * peer sends are never retried
+     * @param chunksDone    chunks received at the previous check
+     */
+    private void watchRestore(String fileID, Operation operation, int chunksDone) {
+        if (RESTORE_TIMEOUT <= 0)
+            return;
+
+        this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (operation.isFinished() || restoreOperations.get(fileID) != operation)
+                    return;
+
+                int done = operation.getProgress().getChunksDone();
+                if (done != chunksDone) {
+                    watchRestore(fileID, operation, done);
+                    return;
+                }
+
+                if (! restoreOperations.remove(fileID, operation))
+                    return;
+
+                chunkRestoreSync.finishedRestoreFile(fileID);
+                Log.logError("Restore of file " + fileID + " timed out with " + done + " of "
+                        + operation.getProgress().getChunksTotal() + " chunks received");
+                Metrics.increment("restore.timeouts");
+                operation.finish(Operation.Status.FAILED);
+            }
+        }, RESTORE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a new chunk of a file being restored is received
+     */
+    public void restoreChunkReceived(String fileID, int size) {
+        Operation operation = this.restoreOperations.get(fileID);
+        if (operation != null)
+            operation.chunkDone(size);
+    }
+
+    /**
+     * Checks a restored file against the leaf digests kept when its content was hashed, if it was
+     * @return false if any part of the file differs
+     */
+    private boolean verifyRestore(String fileID) {
+        FileInfo info = this.state.getBackupFileInfo(fileID);
+        if (info == null || info.getManifest() == null || info.getManifest().getLeaves() == null)
+            return true;
+
+        try {
+            List<Integer> different = TreeHash.compareLeaves(info.getManifest().getLeaves(),
+                    TreeHash.hashLeaves(this.fileSystem.getRecoveredFile(fileID)));
+            if (different.isEmpty()) {
+                Metrics.increment("restore.verified");
+                return true;
+            }
+
+            Metrics.increment("restore.corrupted");
+            Log.logError("Restored file " + fileID + " differs from the original in " + different.size() + " of "
+                    + info.getManifest().getLeaves().length + " parts of " + TreeHash.LEAF_SIZE + " bytes, first at offset "
+                    + (long) different.get(0) * TreeHash.LEAF_SIZE);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.logError("Unable to verify restored file " + fileID);
+        }
+
+        return false;
+    }
+
+    /**
+     * Called once a file being restored is written
+     * @param restored  false if it couldn't be written
+     */
+    public void restoreFinished(String fileID, boolean restored) {
+        if (restored)
+            restored = this.verifyRestore(fileID);
+
+        Operation operation = this.restoreOperations.remove(fileID);
+        if (operation != null)
+            operation.finish(restored ? Operation.Status.COMPLETED : Operation.Status.FAILED);
+    }
+
+    @Override
+    public byte[] read(String path, long offset, int length) throws RemoteException {
+        File file = new File(path);
+        String fileID;
+        try {
+            fileID = FileIDGenerator.generateID(file);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.logError("Failed generating file ID");
+            return null;
+        }
+
+        try {
+            // a packed file is read from the chunk of its pack with it
+            PackIndex.Entry packed = this.state.getPackEntry(fileID);
+            if (packed != null) {
+                FileInfo pack = this.state.getBackupFileInfo(packed.getPackId());
+                if (pack == null || pack.getManifest() == null || offset < 0 || offset > packed.getLength()) {
+                    Log.logError("Unable to read file " + fileID + " from pack " + packed.getPackId());
+                    return null;
+                }
+
+                long start = pack.getManifest().getOffset(packed.getChunkNo()) + packed.getOffset();
+                return this.rangeReader.read(packed.getPackId(), pack.getManifest(), start + offset,
+                        (int) Math.min(length, packed.getLength() - offset));
+            }
+
+            FileInfo info = this.state.getBackupFileInfo(fileID);
+            if (info == null) {
+                Log.logError("This peer didn't request backup of file " + fileID);
+                return null;
+            }
+
+            if (info.getManifest() == null) {
+                Log.logError("File " + fileID + " was backed up without a manifest, it can only be restored");
+                return null;
+            }
+
+            return this.rangeReader.read(fileID, info.getManifest(), offset, length);
+        } catch (IOException e) {
+            Log.logError(e.getMessage());
+            return null;
+        }
     }
 
     @Override
@@ -251,16 +1053,79 @@ public class Peer implements PeerInterface {
         String fileID;
         try {
             fileID = FileIDGenerator.generateID(file);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException | IOException e) {
             Log.logError("Failed generating file ID");
             return -1;
         }
 
+        // the content of a packed file is deleted with its pack, once no other file is left in it
+        if (this.state.isPackedFile(fileID)) {
+            String packID = this.state.unpackFile(fileID);
+            if (packID != null && this.state.isBackupFile(packID))
+                this.deleteBackup(packID);
+
+            return this.deleted(path);
+        }
+
         if (! state.isBackupFile(fileID)) {
             Log.logError("This peer didn't request backup of file " + fileID);
             return -1;
         }
 
+        // deleting the file would delete the chunks that other files reuse
+        List<String> reusing = this.state.getFilesReusing(fileID);
+        if (! reusing.isEmpty()) {
+            Log.logError("Chunks of file " + fileID + " are reused by " + reusing.size() + " other backed up files");
+            return -1;
+        }
+
+        this.deleteBackup(fileID);
+
+        return this.deleted(path);
+    }
+
+    /**
+     * The DELETE messages are retried in the background with no confirmation, so a delete is done once they are sent
+     * @return id of the operation
+     */
+    private int deleted(String path) {
+        Operation operation = new Operation(this.nextOperationId.getAndIncrement(), this, Operation.Type.DELETE, path);
+        this.addOperation(operation);
+        operation.seal();
+
+        return operation.getId();
+    }
+
+    /**
+     * Retires the previous versions of a file, after a newer version has been backed up from the same path. The ones
+     * whose chunks aren't reused by other files are deleted, the others are kept until they no longer are.
+     * @param fileIDs   ids of the previous versions
+     */
+    public void retireVersions(List<String> fileIDs) {
+        for (String fileID : fileIDs) {
+            if (this.state.setSuperseded(fileID))
+                this.deleteSuperseded(fileID);
+        }
+    }
+
+    private void deleteSuperseded(String fileID) {
+        FileInfo info = this.state.getBackupFileInfo(fileID);
+
+        if (info == null || ! info.isSuperseded() || ! this.state.getFilesReusing(fileID).isEmpty())
+            return;
+
+        Log.log("Deleting superseded version " + fileID + " of " + info.getPath());
+        this.deleteBackup(fileID);
+    }
+
+    /**
+     * Deletes a file backed up by this peer from the other peers, and then the superseded versions whose chunks
+     * it was the last to reuse
+     */
+    private void deleteBackup(String fileID) {
+        FileInfo info = this.state.getBackupFileInfo(fileID);
+        ChunkManifest manifest = info == null ? null : info.getManifest();
+
         Message msg;
         if (this.version.equals("2.0"))
             msg = Messages.getEnhancedDeleteMessage(this.id, fileID);
@@ -269,16 +1134,45 @@ public class Peer implements PeerInterface {
 
 
         this.state.deleteBackupFile(fileID);
+        // the local copy of a pack of small files
+        this.fileSystem.deletePack(fileID);
+        this.rangeReader.forget(fileID);
 
-        this.workers.submit(new DeleteInitiator(this, msg, 3, 1000));
+        // in the enhanced version, the retries are batched with the DELETE messages of other files
+        if (this.version.equals("2.0")) {
+            this.workers.submit(new DeleteInitiator(this, msg, 1, 1000));
+            this.deleteReplayer.add(List.of(fileID), 2);
+        } else {
+            this.workers.submit(new DeleteInitiator(this, msg, 3, 1000));
+        }
 
-        return 0;
+        if (manifest != null) {
+            for (String source : manifest.getSourceFiles())
+                this.deleteSuperseded(source);
+        }
     }
 
-    @Override
-    public int reclaim(int space) throws RemoteException {
-        List<ChunkKey> chunkKeys = this.state.reclaim(space);
+    /**
+     * Frees space for a new chunk by removing over-replicated chunks, announcing their removal
+     * @param size  number of bytes that must be available
+     * @return true if the space is available
+     */
+    public boolean evictForSpace(long size) {
+        List<ChunkKey> chunkKeys = this.state.evictSurplus(size);
+
+        if (! chunkKeys.isEmpty())
+            Log.log("Evicted " + chunkKeys.size() + " over-replicated chunks to free space");
+
+        this.removeChunks(chunkKeys);
 
+        return this.state.getAvailableSpace() >= size;
+    }
+
+    /**
+     * Sends a REMOVED message for each chunk and deletes it from the file system
+     * @param chunkKeys chunks that have already been removed from the peer state
+     */
+    private void removeChunks(List<ChunkKey> chunkKeys) {
         for (ChunkKey chunkKey : chunkKeys) {
             this.workers.submit(new SpaceReclaimInitiator(this, chunkKey));
         }
@@ -286,12 +1180,55 @@ public class Peer implements PeerInterface {
         for (ChunkKey chunkKey : chunkKeys) {
             this.fileSystem.deleteChunk(chunkKey);
         }
+    }
 
-        return 0;
+    @Override
+    public int reclaim(int space) throws RemoteException {
+        List<ChunkReclaim> chunks = this.state.reclaim(space);
+
+        Operation operation = new Operation(this.nextOperationId.getAndIncrement(), this, Operation.Type.RECLAIM,
+                space + " KB");
+        long bytes = 0;
+        for (ChunkReclaim chunk : chunks)
+            bytes += chunk.getSize();
+        operation.expect(chunks.size(), bytes);
+        this.addOperation(operation);
+
+        if (this.version.equals("2.0") && Config.getBoolean("peer.reclaim.handoff", true)) {
+            this.workers.submit(new ReclaimHandoffInitiator(this, chunks, operation));
+            operation.seal();
+            return operation.getId();
+        }
+
+        List<ChunkKey> chunkKeys = new ArrayList<>();
+        for (ChunkReclaim chunk : chunks)
+            chunkKeys.add(new ChunkKey(chunk.getFileId(), chunk.getChunkNo()));
+
+        this.removeChunks(chunkKeys);
+
+        for (ChunkReclaim chunk : chunks)
+            operation.chunkDone(chunk.getSize());
+        operation.seal();
+
+        return operation.getId();
     }
 
     @Override
     public String state() throws RemoteException {
-        return this.state.toString();
+        String statistics = Metrics.report();
+        String result = this.state.toString();
+
+        if (Metrics.get("repair.queued") > 0)
+            result += "\nRepairs : \n" + this.repairQueue;
+
+        if (statistics.isEmpty())
+            return result;
+
+        return result + "\nStatistics : \n" + statistics;
+    }
+
+    @Override
+    public String health(int topN) throws RemoteException {
+        return this.state.getHealthIndex().report(topN);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,181 @@
+package peer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peers known to be part of the service, learned from the messages they send. Besides when each peer was last
+ * heard from, it keeps the address it sends from and, for peers that send heartbeats, the port of its unicast
+ * channel, its free space, its load and its capabilities.
+ */
+public class PeerDirectory {
+
+    private static class PeerInfo {
+        // time at which a message from the peer was last received, in ms
+        private volatile long lastSeen;
+        private volatile InetAddress address;
+        // advertised in heartbeats, -1 while unknown
+        private volatile int port = -1;
+        private volatile long freeSpace = -1;
+        private volatile int load = -1;
+        private volatile int capabilities;
+    }
+
+    private ConcurrentHashMap<Integer, PeerInfo> peers;
+    private long timeout;
+
+    /**
+     * @param timeout   time without receiving messages from a peer after which it is no longer considered alive, in ms
+     */
+    public PeerDirectory(long timeout) {
+        this.peers = new ConcurrentHashMap<>();
+        this.timeout = timeout;
+    }
+
+    /**
+     * Records that a message from a peer was received
+     * @param peerID    peer id
+     * @param address   source address of the message
+     */
+    public void seen(int peerID, InetAddress address) {
+        PeerInfo info = this.peers.computeIfAbsent(peerID, (k) -> new PeerInfo());
+        info.lastSeen = System.currentTimeMillis();
+        info.address = address;
+    }
+
+    /**
+     * Records the information advertised in a heartbeat
+     * @param peerID    peer id
+     * @param port      port of the peer's unicast channel
+     * @param freeSpace free space of the peer, in bytes
+     * @param load      number of tasks the peer is executing
+     * @param capabilities  capability flags of the peer, see Messages.CAPABILITY_CODECS
+     */
+    public void heartbeat(int peerID, int port, long freeSpace, int load, int capabilities) {
+        PeerInfo info = this.peers.computeIfAbsent(peerID, (k) -> new PeerInfo());
+        info.port = port;
+        info.freeSpace = freeSpace;
+        info.load = load;
+        info.capabilities = capabilities;
+    }
+
+    private PeerInfo getAlive(int peerID) {
+        PeerInfo info = this.peers.get(peerID);
+        if (info == null || System.currentTimeMillis() - info.lastSeen > this.timeout)
+            return null;
+
+        return info;
+    }
+
+    public boolean isAlive(int peerID) {
+        return this.getAlive(peerID) != null;
+    }
+
+    /**
+     * @return ids of the peers from which a message was received recently
+     */
+    public Set<Integer> getAlivePeers() {
+        Set<Integer> alive = new HashSet<>();
+        long now = System.currentTimeMillis();
+
+        for (ConcurrentHashMap.Entry<Integer, PeerInfo> entry : this.peers.entrySet()) {
+            if (now - entry.getValue().lastSeen <= this.timeout)
+                alive.add(entry.getKey());
+        }
+
+        return alive;
+    }
+
+    /**
+     * @return address of an alive peer, null if unknown
+     */
+    public InetAddress getAddress(int peerID) {
+        PeerInfo info = this.getAlive(peerID);
+        return info == null ? null : info.address;
+    }
+
+    /**
+     * @return port of the unicast channel of an alive peer, -1 if unknown
+     */
+    public int getPort(int peerID) {
+        PeerInfo info = this.getAlive(peerID);
+        return info == null || info.address == null ? -1 : info.port;
+    }
+
+    /**
+     * @return advertised free space of an alive peer, -1 if unknown
+     */
+    public long getFreeSpace(int peerID) {
+        PeerInfo info = this.getAlive(peerID);
+        return info == null ? -1 : info.freeSpace;
+    }
+
+    /**
+     * Checks if peers advertised a capability in their heartbeats
+     * @param capability    capability flag
+     * @param peerIDs       peers to check, null for every alive peer
+     * @return true if there is at least one peer to check and all of them are alive and advertised the capability
+     */
+    public boolean allHave(int capability, Collection<Integer> peerIDs) {
+        if (peerIDs == null)
+            peerIDs = this.getAlivePeers();
+
+        if (peerIDs.isEmpty())
+            return false;
+
+        for (Integer peerID : peerIDs) {
+            PeerInfo info = this.getAlive(peerID);
+            if (info == null || (info.capabilities & capability) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if some alive peer may have space for a chunk
+     * @param size  chunk size
+     * @return false only if every alive peer advertised its free space and none has enough
+     */
+    public boolean mayHaveSpace(long size) {
+        long now = System.currentTimeMillis();
+
+        for (PeerInfo info : this.peers.values()) {
+            if (now - info.lastSeen > this.timeout)
+                continue;
+
+            if (info.freeSpace == -1 || info.freeSpace >= size)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Chooses peers that can be reached by unicast and have advertised enough free space for a chunk,
+     * the least loaded ones first
+     * @param exclude   peers that can't be chosen
+     * @param size      chunk size
+     * @param n         max number of peers
+     * @return chosen peers
+     */
+    public List<Integer> choosePeers(Collection<Integer> exclude, long size, int n) {
+        List<Integer> candidates = new ArrayList<>();
+
+        for (Integer peerID : this.getAlivePeers()) {
+            if (exclude.contains(peerID) || this.getPort(peerID) == -1 || this.getFreeSpace(peerID) < size)
+                continue;
+
+            candidates.add(peerID);
+        }
+
+        candidates.sort((a, b) -> Integer.compare(this.peers.get(a).load, this.peers.get(b).load));
+
+        return candidates.subList(0, Math.min(n, candidates.size()));
+    }
+}
@@ -3,14 +3,52 @@ package peer;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
+/**
+ * The backup, restore, delete and reclaim operations keep running after the call returns, and return the id of the
+ * operation, to query its progress, cancel it or wait for it to finish, or -1 if it couldn't be started
+ */
 public interface PeerInterface extends Remote {
     int backup(String path, int replicationDegree) throws RemoteException;
 
+    /**
+     * Backs up every file under a directory, in the background
+     * @param options   comma separated options, may be null (threads=n, hidden=true)
+     * @return id of the operation, -1 if the path isn't a directory
+     */
+    int backupTree(String path, int replicationDegree, String options) throws RemoteException;
+
+    /**
+     * @return the progress of an operation, null if the operation is unknown
+     */
+    OperationProgress progress(int operationId) throws RemoteException;
+
+    /**
+     * Cancels an operation. The files whose backup didn't finish are deleted from the other peers.
+     * @return 0 if the operation was cancelled, -1 if it is unknown or has already finished
+     */
+    int cancel(int operationId) throws RemoteException;
+
+    /**
+     * @param listener  exported remote object, told when each operation finishes until it is unsubscribed
+     */
+    void subscribe(OperationListener listener) throws RemoteException;
+
+    void unsubscribe(OperationListener listener) throws RemoteException;
+
     int restore(String path) throws RemoteException;
 
+    /**
+     * Reads part of a backed up file, fetching only the chunks with it
+     * @param length    number of bytes to read, fewer are returned at the end of the file
+     * @return the bytes read, null if the file isn't backed up or the range couldn't be read
+     */
+    byte[] read(String path, long offset, int length) throws RemoteException;
+
     int delete(String path) throws RemoteException;
 
     int reclaim(int space) throws RemoteException;
 
     String state() throws RemoteException;
+
+    String health(int topN) throws RemoteException;
 }
@@ -0,0 +1,106 @@
+package protocol;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import file.ChunkKey;
+import message.Message;
+import message.Messages;
+import peer.Peer;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Coalesces the STORED and REMOVED confirmations sent by this peer. The first confirmation for a file starts a short
+ * delay, after which the confirmations collected meanwhile for the chunks of that file are sent together in
+ * STOREDBATCH or REMOVEDBATCH messages, with the chunk numbers encoded as ranges. While some alive peer hasn't
+ * advertised reading batches, such as a version 1.0 peer, each confirmation is also sent right away in a plain
+ * STORED or REMOVED message.
+ */
+public class AckAggregator {
+
+    private Peer peer;
+    private long delay;
+
+    // chunk numbers waiting to be confirmed, by message type and file id, guarded by this
+    private Map<Message.Type, Map<String, TreeSet<Integer>>> pending;
+
+    /**
+     * @param peer  peer for which the confirmations are sent
+     * @param delay max time, in ms, a confirmation waits for others of the same file
+     */
+    public AckAggregator(Peer peer, long delay) {
+        this.peer = peer;
+        this.delay = delay;
+        this.pending = new HashMap<>();
+        this.pending.put(Message.Type.STOREDBATCH, new HashMap<>());
+        this.pending.put(Message.Type.REMOVEDBATCH, new HashMap<>());
+    }
+
+    public void stored(ChunkKey chunkKey) {
+        this.add(Message.Type.STOREDBATCH, chunkKey);
+    }
+
+    public void removed(ChunkKey chunkKey) {
+        this.add(Message.Type.REMOVEDBATCH, chunkKey);
+    }
+
+    private void add(Message.Type type, ChunkKey chunkKey) {
+        String fileID = chunkKey.getFileID();
+
+        if (! this.peer.getDirectory().allHave(Messages.CAPABILITY_BATCH_ACKS, null)) {
+            Message message = type == Message.Type.STOREDBATCH
+                    ? Messages.getStoredMessage(this.peer.getID(), chunkKey)
+                    : Messages.getRemovedMessage(this.peer.getID(), chunkKey);
+            try {
+                this.peer.getMCChannel().broadcast(message);
+                Log.logSentMC(message.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+            }
+        }
+
+        synchronized (this) {
+            TreeSet<Integer> chunkNos = this.pending.get(type).get(fileID);
+
+            if (chunkNos != null) {
+                chunkNos.add(chunkKey.getNumber());
+                Metrics.increment("acks.coalesced");
+                return;
+            }
+
+            chunkNos = new TreeSet<>();
+            chunkNos.add(chunkKey.getNumber());
+            this.pending.get(type).put(fileID, chunkNos);
+        }
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                flush(type, fileID);
+            }
+        }, this.delay);
+    }
+
+    private void flush(Message.Type type, String fileID) {
+        TreeSet<Integer> chunkNos;
+
+        synchronized (this) {
+            chunkNos = this.pending.get(type).remove(fileID);
+        }
+
+        if (chunkNos == null)
+            return;
+
+        for (Message message : Messages.getChunkBatchMessages(type, this.peer.getID(), fileID, chunkNos)) {
+            try {
+                this.peer.getMCChannel().broadcast(message);
+                Log.logSentMC(message.getHeader() + "(" + chunkNos.size() + " chunks)");
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+            }
+        }
+    }
+}
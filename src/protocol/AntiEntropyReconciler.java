@@ -0,0 +1,183 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import filesystem.PeerState;
+import peer.Peer;
+import util.Hashing;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Brings the peer's view of the chunks stored by another peer in sync with what that peer actually stores.
+ * The digest of the view is compared with the other peer's digest top-down, through its AntiEntropyServer, so that
+ * only the chunk lists of the ranges that differ are transferred. Only the files the peer stores or backed up are
+ * compared, since it keeps no information about other peers' chunks of other files: the other peer's digests of
+ * those files are asked for directly, as its bucket digests also cover files this peer knows nothing about.
+ */
+public class AntiEntropyReconciler implements Runnable {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private Peer peer;
+    private int peerID;
+    private InetAddress address;
+    private int port;
+    private long root;
+
+    private DataInputStream in;
+    private DataOutputStream out;
+    private long bytesReceived;
+    private int corrections;
+
+    /**
+     * @param peer      peer for which the protocol is being executed
+     * @param peerID    peer whose stored chunks are being checked
+     * @param address   address of the peer's server
+     * @param port      port of the peer's server
+     * @param root      root digest announced by the peer
+     */
+    public AntiEntropyReconciler(Peer peer, int peerID, InetAddress address, int port, long root) {
+        this.peer = peer;
+        this.peerID = peerID;
+        this.address = address;
+        this.port = port;
+        this.root = root;
+    }
+
+    @Override
+    public void run() {
+        PeerState state = this.peer.getState();
+        HoldingsDigest view = new HoldingsDigest(state.getStoredChunksOf(this.peerID));
+
+        if (view.getRoot() == this.root) {
+            Metrics.increment("antientropy.insync");
+            return;
+        }
+
+        Map<Long, String> tracked = new HashMap<>();
+        for (String fileId : state.getTrackedFiles())
+            tracked.put(Hashing.hash64(fileId), fileId);
+
+        long start = System.currentTimeMillis();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(this.address, this.port), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            List<Long> fileHashes = new ArrayList<>(tracked.keySet());
+            this.out.writeInt(AntiEntropyServer.OP_FILE_DIGESTS);
+            this.out.writeInt(fileHashes.size());
+            for (Long fileHash : fileHashes)
+                this.out.writeLong(fileHash);
+            this.out.flush();
+
+            for (Long fileHash : fileHashes) {
+                if (this.readLong() != view.getFileDigest(fileHash))
+                    this.reconcileFile(view, fileHash, tracked.get(fileHash));
+            }
+
+            this.request(AntiEntropyServer.OP_END);
+        } catch (IOException e) {
+            Log.logError("Failed reconciling the chunks stored by peer " + this.peerID);
+            return;
+        }
+
+        Metrics.increment("antientropy.sessions");
+        Metrics.add("antientropy.bytes.received", this.bytesReceived);
+        Metrics.add("antientropy.corrections", this.corrections);
+        Log.log("Reconciled the chunks stored by peer " + this.peerID + " in " + (System.currentTimeMillis() - start)
+                + "ms, " + this.corrections + " corrections, " + this.bytesReceived + " bytes received");
+    }
+
+    private void reconcileFile(HoldingsDigest view, long fileHash, String fileId) throws IOException {
+        this.request(AntiEntropyServer.OP_RANGES);
+        this.out.writeLong(fileHash);
+        this.out.flush();
+
+        Map<Integer, Long> ranges = new HashMap<>();
+        int numRanges = this.readInt();
+        for (int i = 0; i < numRanges; i++)
+            ranges.put(this.readInt(), this.readLong());
+
+        Map<Integer, Long> viewRanges = view.getRangeDigests(fileHash);
+
+        Set<Integer> allRanges = new HashSet<>(ranges.keySet());
+        allRanges.addAll(viewRanges.keySet());
+
+        for (Integer range : allRanges) {
+            if (ranges.getOrDefault(range, 0L).longValue() == viewRanges.getOrDefault(range, 0L).longValue())
+                continue;
+
+            this.request(AntiEntropyServer.OP_CHUNKS);
+            this.out.writeLong(fileHash);
+            this.out.writeInt(range);
+            this.out.flush();
+
+            Set<Integer> chunks = new HashSet<>();
+            int numChunks = this.readInt();
+            for (int i = 0; i < numChunks; i++)
+                chunks.add(this.readInt());
+
+            this.apply(fileId, chunks, new HashSet<>(view.getChunks(fileHash, range)));
+        }
+    }
+
+    /**
+     * Updates the view of a range of chunks of a file
+     * @param fileId    file id
+     * @param chunks    chunks the other peer stores in the range
+     * @param viewed    chunks the other peer was thought to store in the range
+     */
+    private void apply(String fileId, Set<Integer> chunks, Set<Integer> viewed) {
+        PeerState state = this.peer.getState();
+
+        for (Integer chunkNo : chunks) {
+            if (viewed.contains(chunkNo))
+                continue;
+
+            state.addFileInfo(fileId, chunkNo, this.peerID);
+            state.addPeerBackingUpStoredChunk(fileId, chunkNo, this.peerID);
+            this.corrections++;
+        }
+
+        for (Integer chunkNo : viewed) {
+            if (chunks.contains(chunkNo))
+                continue;
+
+            state.removeFileInfo(fileId, chunkNo, this.peerID);
+            state.removePeerBackingUpStoredChunk(fileId, chunkNo, this.peerID);
+            this.corrections++;
+        }
+    }
+
+    private void request(int op) throws IOException {
+        this.out.writeInt(op);
+        this.out.flush();
+    }
+
+    private int readInt() throws IOException {
+        this.bytesReceived += 4;
+        return this.in.readInt();
+    }
+
+    private long readLong() throws IOException {
+        this.bytesReceived += 8;
+        return this.in.readLong();
+    }
+}
@@ -0,0 +1,126 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+
+import util.Log;
+import util.Metrics;
+
+/**
+ * Serves the digest of the chunks stored by the peer to the peers that want to check their view of them.
+ * Peers walk the digest tree top-down, asking only for the children of the nodes that differ from their view:
+ * the bucket digests, the file digests in a bucket, the range digests of a file and the chunks in a range.
+ * Peers that only keep information about some files ask for the digests of those files instead of the buckets.
+ */
+public class AntiEntropyServer implements Runnable {
+
+    public static final int OP_END = 0;
+    public static final int OP_BUCKETS = 1;
+    public static final int OP_FILES = 2;
+    public static final int OP_RANGES = 3;
+    public static final int OP_CHUNKS = 4;
+    public static final int OP_FILE_DIGESTS = 5;
+
+    private static final int ACCEPT_TIMEOUT_MS = 5000;
+
+    private ServerSocket serverSocket;
+    private HoldingsDigest digest;
+
+    /**
+     * @param digest    digest of the chunks stored by the peer
+     */
+    public AntiEntropyServer(HoldingsDigest digest) throws IOException {
+        this.digest = digest;
+        this.serverSocket = new ServerSocket(0);
+        this.serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MS);
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        // serves peers until none connects for a while
+        try {
+            while (true) {
+                Socket socket = this.serverSocket.accept();
+                try {
+                    this.serve(socket);
+                } catch (IOException e) {
+                    Log.logError("Failed serving holdings digest");
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // no more peers
+        } catch (IOException e) {
+            Log.logError("Failed accepting connection for holdings digest");
+        } finally {
+            try {
+                this.serverSocket.close();
+            } catch (IOException e) {
+                Log.logError("Failed closing server socket");
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        while (true) {
+            int op = in.readInt();
+
+            switch (op) {
+                case OP_BUCKETS:
+                    for (long bucket : this.digest.getBuckets())
+                        out.writeLong(bucket);
+                    break;
+                case OP_FILES:
+                    Map<Long, Long> files = this.digest.getFileDigests(in.readInt());
+                    out.writeInt(files.size());
+                    for (Map.Entry<Long, Long> entry : files.entrySet()) {
+                        out.writeLong(entry.getKey());
+                        out.writeLong(entry.getValue());
+                    }
+                    break;
+                case OP_RANGES:
+                    Map<Integer, Long> ranges = this.digest.getRangeDigests(in.readLong());
+                    out.writeInt(ranges.size());
+                    for (Map.Entry<Integer, Long> entry : ranges.entrySet()) {
+                        out.writeInt(entry.getKey());
+                        out.writeLong(entry.getValue());
+                    }
+                    break;
+                case OP_FILE_DIGESTS:
+                    int numFiles = in.readInt();
+                    for (int i = 0; i < numFiles; i++)
+                        out.writeLong(this.digest.getFileDigest(in.readLong()));
+                    break;
+                case OP_CHUNKS:
+                    long fileHash = in.readLong();
+                    List<Integer> chunks = this.digest.getChunks(fileHash, in.readInt());
+                    out.writeInt(chunks.size());
+                    for (Integer chunkNo : chunks)
+                        out.writeInt(chunkNo);
+                    break;
+                default:
+                    Metrics.add("antientropy.bytes.sent", out.size());
+                    return;
+            }
+
+            out.flush();
+        }
+    }
+}
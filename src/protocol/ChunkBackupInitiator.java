@@ -1,12 +1,16 @@
 package protocol;
 
 import java.io.IOException;
+import java.util.Collection;
 
 import channel.MulticastChannel;
 import file.Chunk;
 import filesystem.PeerState;
+import peer.Operation;
 import peer.Peer;
+import util.Config;
 import util.Log;
+import util.Metrics;
 import message.Message;
 import message.Messages;
 
@@ -15,11 +19,20 @@ import message.Messages;
  */
 public class ChunkBackupInitiator implements Runnable {
 
+    // time to wait for the peers that already store the chunk's content to confirm storing it after a PUTHASH
+    private static final long PUTHASH_WAIT_MS = Config.getLong("peer.puthash.wait", 300);
+
     private Peer peer;
     private Chunk chunk;
     private int repDegree;
     private long time;
     private int numTries;
+    private ChunkBackupListener listener;
+    private Collection<Integer> targets;
+    private boolean hashAnnounced;
+    private boolean contentSent;
+    private Operation operation;
+    private boolean yieldToOthers;
 
     /**
      * @param peer          peer for which the protocol is being executed
@@ -29,11 +42,54 @@ public class ChunkBackupInitiator implements Runnable {
      * @param time          time to wait before next execution
      */
     public ChunkBackupInitiator(Peer peer, Chunk chunk, int repDegree, int numTries, long time) {
+        this(peer, chunk, repDegree, numTries, time, null);
+    }
+
+    /**
+     * @param peer          peer for which the protocol is being executed
+     * @param chunk         chunk to backup
+     * @param repDegree     desired replication degree
+     * @param numTries      max number of times to try executing the protocol
+     * @param time          time to wait before next execution
+     * @param listener      notified when the protocol finishes, may be null
+     */
+    public ChunkBackupInitiator(Peer peer, Chunk chunk, int repDegree, int numTries, long time, ChunkBackupListener listener) {
         this.peer = peer;
         this.chunk = chunk;
         this.repDegree = repDegree;
         this.time = time;
         this.numTries = numTries;
+        this.listener = listener;
+    }
+
+    /**
+     * Sends the first PUTCHUNK only to the given peers, through their unicast channels. The retries are sent to all
+     * peers. If any of the peers can't be reached by unicast, the first PUTCHUNK is also sent to all peers.
+     * @param targets   peers that should store the chunk
+     */
+    public void setTargets(Collection<Integer> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * @param operation     operation the backup is part of, the protocol stops being retried if it is cancelled
+     */
+    public void setOperation(Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Makes the protocol stop, before the chunk is first sent, once a PUTCHUNK or PUTHASH for the chunk is seen from
+     * another peer, which must be listened for through the space reclaim synchronizer
+     * @param yieldToOthers true if the protocol gives way to another peer backing up the chunk
+     */
+    public void setYieldToOthers(boolean yieldToOthers) {
+        this.yieldToOthers = yieldToOthers;
+    }
+
+    private void finished(int currentRepDegree) {
+        if (this.listener != null)
+            this.listener.backupFinished(this.chunk.getKey(), currentRepDegree, currentRepDegree >= this.repDegree);
     }
 
     @Override
@@ -53,6 +109,18 @@ public class ChunkBackupInitiator implements Runnable {
         // check if it's necessary to retry the protocol
         if (currentRepDegree >= this.repDegree) {
             Log.log("Backed up chunk " + chunk.getNumber() + " of file " + chunk.getFileID() + " with RD " + currentRepDegree);
+            if (this.hashAnnounced && ! this.contentSent) {
+                Metrics.increment("backup.chunks.hashonly");
+                Metrics.add("backup.bytes.hashonly", this.chunk.getSize());
+            }
+            this.finished(currentRepDegree);
+            return;
+        }
+
+        if (this.operation != null && this.operation.isCancelled()) {
+            Log.log("Stopped backup of chunk " + chunk.getNumber() + " of file " + chunk.getFileID()
+                    + ", operation " + this.operation.getId() + " was cancelled");
+            this.finished(currentRepDegree);
             return;
         }
 
@@ -66,24 +134,68 @@ public class ChunkBackupInitiator implements Runnable {
                             + currentRepDegree);
                 }
             }
+            this.finished(currentRepDegree);
+            return;
+        }
+
+        // another peer is repairing the chunk, its STORED messages make up the replication degree
+        if (this.yieldToOthers && ! this.contentSent && this.peer.getSpaceReclaimSync().hasReceivedPutChunkMsg(this.chunk.getKey())) {
+            Log.log("Stopped backup of chunk " + chunk.getNumber() + " of file " + chunk.getFileID()
+                    + ", another peer is backing it up");
+            Metrics.increment("repair.suppressed");
+            this.finished(currentRepDegree);
             return;
         }
 
         MulticastChannel mdbChannel = this.peer.getMDBChannel();
 
-        Message message;
-        if (this.peer.getVersion().equals("2.0"))
-            message = Messages.getEnhancedPutChunkMessage(this.peer.getID(), this.chunk, this.repDegree);
-        else
-            message = Messages.getPutChunkMessage(this.peer.getID(), this.chunk, this.repDegree);
+        // the chunk is first announced by its content, the peers that already store it don't need it to be sent
+        if (! this.hashAnnounced && this.peer.getVersion().equals("2.0")
+                && Config.getBoolean("peer.backup.puthash", false)) {
+            this.hashAnnounced = true;
+
+            Message message = Messages.getPutHashMessage(this.peer.getID(), this.chunk.getKey(), this.repDegree,
+                    this.chunk.getContentHash());
+            try {
+                mdbChannel.broadcast(message);
+                Log.logSentMDB(message.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+            }
+
+            this.peer.scheduleTask(this, PUTHASH_WAIT_MS);
+            return;
+        }
+
+        this.contentSent = true;
 
+        // a stored chunk may have been received encoded, and the PUTCHUNK can reach peers that can't decode it
+        Message message;
         try {
-            mdbChannel.broadcast(message);
-            Log.logSentMDB(message.getHeader());
+            if (this.peer.getVersion().equals("2.0"))
+                message = Messages.getEnhancedPutChunkMessage(this.peer.getID(), this.peer.prepareChunk(this.chunk, null),
+                        this.repDegree);
+            else
+                message = Messages.getPutChunkMessage(this.peer.getID(), this.chunk.decode(), this.repDegree);
         } catch (IOException e) {
-            Log.logError("Unable to send " + message.getHeader());
+            Log.logError("Unable to decode chunk " + chunk.getNumber() + " of file " + chunk.getFileID());
+            this.finished(currentRepDegree);
+            return;
         }
 
+        if (this.targets != null && this.peer.sendTo(this.targets, message)) {
+            Metrics.increment("unicast.putchunk");
+        } else {
+            try {
+                mdbChannel.broadcast(message);
+                Log.logSentMDB(message.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+            }
+        }
+
+        this.targets = null;
+
         long waitTime = this.time;
 
         this.numTries--;
@@ -0,0 +1,15 @@
+package protocol;
+
+import file.ChunkKey;
+
+/**
+ * Notified when a chunk backup initiator stops retrying
+ */
+public interface ChunkBackupListener {
+    /**
+     * @param chunkKey      chunk that was backed up
+     * @param repDegree     perceived replication degree when the protocol finished
+     * @param achieved      true if the desired replication degree was achieved
+     */
+    void backupFinished(ChunkKey chunkKey, int repDegree, boolean achieved);
+}
@@ -1,16 +1,23 @@
 package protocol;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Random;
 
 import channel.MulticastChannel;
 import file.ChunkKey;
 import message.Message;
 import message.Messages;
 import peer.Peer;
+import util.Config;
 import util.Log;
+import util.Metrics;
 
 public class ChunkRestoreInitiator implements Runnable {
 
+    // time to wait for the chunk after a GETCHUNK sent to its holders, before sending it to all peers
+    private static final long UNICAST_FALLBACK_MS = Config.getLong("peer.unicast.fallback", 2000);
+
     private Peer peer;
     private ChunkKey chunkKey;
 
@@ -24,10 +31,41 @@ public class ChunkRestoreInitiator implements Runnable {
         Message message;
 
         if (this.peer.getVersion().equals("2.0"))
-            message = Messages.getEnhancedGetChunkMessage(this.peer.getID(), this.chunkKey);
+            message = Messages.getEnhancedGetChunkMessage(this.peer.getID(), this.chunkKey, new Random().nextInt(Integer.MAX_VALUE));
         else
             message = Messages.getGetChunkMessage(this.peer.getID(), this.chunkKey);
 
+        // ask only the peers known to have the chunk, falling back to multicast if it doesn't arrive in time
+        if (this.peer.getVersion().equals("2.0") && Config.getBoolean("peer.unicast", true)) {
+            List<Integer> holders = this.peer.getState().getBackupChunkPeers(this.chunkKey.getFileID(),
+                    this.chunkKey.getNumber());
+
+            if (this.peer.sendTo(holders, message)) {
+                Metrics.increment("unicast.getchunk");
+                this.scheduleFallback(message);
+                return;
+            }
+        }
+
+        this.broadcast(message);
+    }
+
+    private void scheduleFallback(Message message) {
+        ChunkRestoreSynchronizer chunkRestoreSync = this.peer.getChunkRestoreSync();
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                if (! chunkRestoreSync.isRestoringFile(chunkKey.getFileID()) || chunkRestoreSync.hasReceivedChunk(chunkKey))
+                    return;
+
+                Metrics.increment("unicast.getchunk.fallback");
+                broadcast(message);
+            }
+        }, UNICAST_FALLBACK_MS);
+    }
+
+    private void broadcast(Message message) {
         MulticastChannel mcChannel = this.peer.getMCChannel();
 
         try {
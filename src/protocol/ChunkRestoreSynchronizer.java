@@ -1,14 +1,19 @@
 package protocol;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import file.Chunk;
 import file.ChunkKey;
+import util.Log;
+import util.Metrics;
 
 public class ChunkRestoreSynchronizer {
 
@@ -18,9 +23,25 @@ public class ChunkRestoreSynchronizer {
     // received CHUNKs
     private ConcurrentHashMap<String, Set<Chunk>> receivedChunks;
 
+    // number of chunks of the files being restored, for the ones whose number of chunks is known
+    private ConcurrentHashMap<String, Integer> numChunks;
+
+    // chunks of other files reused by the files being restored, with the chunks they are restored as
+    private ConcurrentHashMap<ChunkKey, List<ChunkKey>> references;
+
+    // offset and length, within the chunk of their pack, of the packed files being restored
+    private ConcurrentHashMap<String, int[]> ranges;
+
+    // chunks fetched on their own, for range reads, completed when received
+    private ConcurrentHashMap<ChunkKey, CompletableFuture<Chunk>> fetching;
+
     public ChunkRestoreSynchronizer() {
         this.receivedChunkMsgs = new ConcurrentHashMap<>();
         this.receivedChunks = new ConcurrentHashMap<>();
+        this.numChunks = new ConcurrentHashMap<>();
+        this.references = new ConcurrentHashMap<>();
+        this.ranges = new ConcurrentHashMap<>();
+        this.fetching = new ConcurrentHashMap<>();
     }
 
     public void listenToChunkMsg(ChunkKey chunkKey) {
@@ -41,14 +62,80 @@ public class ChunkRestoreSynchronizer {
         receivedChunkMsgs.replace(chunkKey, true);
     }
 
-    public void chunkReceived(Chunk chunk) {
+    /**
+     * Records a chunk received for a file being restored
+     * @return false if the chunk had already been received
+     */
+    public boolean chunkReceived(Chunk chunk) {
+        CompletableFuture<Chunk> fetched = this.fetching.remove(chunk.getKey());
+        if (fetched != null)
+            fetched.complete(chunk);
+
+        List<ChunkKey> targets = this.references.get(chunk.getKey());
+        if (targets == null)
+            return this.addChunk(chunk);
+
+        // the file that stores the chunk may also be being restored
+        boolean added = receivedChunks.containsKey(chunk.getFileID()) && this.addChunk(chunk);
+        synchronized (targets) {
+            for (ChunkKey target : targets) {
+                int[] range = this.ranges.get(target.getFileID());
+                if (range == null) {
+                    added |= this.addChunk(new Chunk(target.getFileID(), target.getNumber(), chunk.getContent(),
+                            chunk.getCodec()));
+                    continue;
+                }
+
+                // a packed file is restored from its part of the chunk of its pack
+                try {
+                    byte[] content = chunk.decode().getContent();
+                    added |= this.addChunk(new Chunk(target.getFileID(), target.getNumber(),
+                            Arrays.copyOfRange(content, range[0], range[0] + range[1])));
+                } catch (IOException | IndexOutOfBoundsException e) {
+                    Log.logError("Invalid chunk " + chunk.getNumber() + " of pack " + chunk.getFileID());
+                }
+            }
+        }
+
+        return added;
+    }
+
+    private boolean addChunk(Chunk chunk) {
         // if this peer is the one restoring the file related to this chunk
         Set<Chunk> chunks = receivedChunks.get(chunk.getFileID());
         if (chunks == null)
-            return;
+            return true;
+
+        boolean added;
+        synchronized (chunks) {
+            added = chunks.add(chunk);
+        }
+
+        Metrics.increment("restore.chunks.received");
+        if (! added)
+            Metrics.increment("restore.chunks.duplicate");
+
+        return added;
+    }
+
+    /**
+     * Check if a chunk of a file being restored has already been received
+     */
+    public boolean hasReceivedChunk(ChunkKey chunkKey) {
+        List<ChunkKey> targets = this.references.get(chunkKey);
+        if (targets != null) {
+            synchronized (targets) {
+                if (! targets.isEmpty())
+                    chunkKey = targets.get(0);
+            }
+        }
+
+        Set<Chunk> chunks = receivedChunks.get(chunkKey.getFileID());
+        if (chunks == null)
+            return false;
 
         synchronized (chunks) {
-            chunks.add(chunk);
+            return chunks.contains(new Chunk(chunkKey.getFileID(), chunkKey.getNumber(), null));
         }
     }
 
@@ -56,12 +143,113 @@ public class ChunkRestoreSynchronizer {
         receivedChunks.putIfAbsent(fileID, new HashSet<Chunk>());
     }
 
+    /**
+     * Starts the restore of a file whose chunks may be stored as chunks of other files
+     * @param fileID    file id
+     * @param sources   key under which each chunk of the file is stored, null for the holes, which aren't fetched
+     */
+    public void restoreFile(String fileID, List<ChunkKey> sources) {
+        int expected = 0;
+        for (ChunkKey source : sources)
+            if (source != null)
+                expected++;
+        numChunks.put(fileID, expected);
+
+        for (int chunkNo = 0; chunkNo < sources.size(); chunkNo++) {
+            ChunkKey source = sources.get(chunkNo);
+            if (source == null || source.getFileID().equals(fileID))
+                continue;
+
+            List<ChunkKey> targets = references.computeIfAbsent(source, (k) -> new ArrayList<>());
+            synchronized (targets) {
+                targets.add(new ChunkKey(fileID, chunkNo));
+            }
+        }
+
+        this.restoreFile(fileID);
+    }
+
+    /**
+     * Starts the restore of a small file packed in a chunk of a pack
+     * @param fileID    file id
+     * @param source    chunk of the pack with the file
+     * @param offset    offset of the file in the chunk
+     * @param length    length of the file
+     */
+    public void restorePackedFile(String fileID, ChunkKey source, int offset, int length) {
+        this.ranges.put(fileID, new int[] { offset, length });
+        this.restoreFile(fileID, List.of(source));
+    }
+
+    /**
+     * Waits for a chunk outside the restore of a whole file
+     * @return completed with the chunk, as received, once it is
+     */
+    public CompletableFuture<Chunk> fetchChunk(ChunkKey chunkKey) {
+        return this.fetching.computeIfAbsent(chunkKey, (k) -> new CompletableFuture<>());
+    }
+
+    public void stopFetchingChunk(ChunkKey chunkKey) {
+        this.fetching.remove(chunkKey);
+    }
+
+    /**
+     * @return true if the file is being restored, has chunks reused by a file being restored or being fetched
+     */
     public boolean isRestoringFile(String fileID) {
-        return receivedChunks.containsKey(fileID);
+        if (receivedChunks.containsKey(fileID))
+            return true;
+
+        for (ChunkKey chunkKey : fetching.keySet())
+            if (chunkKey.getFileID().equals(fileID))
+                return true;
+
+        for (ChunkKey source : references.keySet())
+            if (source.getFileID().equals(fileID))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @return ids of the files being restored that include a chunk
+     */
+    public List<String> getRestoringFiles(ChunkKey chunkKey) {
+        List<String> fileIDs = new ArrayList<>();
+
+        if (receivedChunks.containsKey(chunkKey.getFileID()))
+            fileIDs.add(chunkKey.getFileID());
+
+        List<ChunkKey> targets = references.get(chunkKey);
+        if (targets != null) {
+            synchronized (targets) {
+                for (ChunkKey target : targets)
+                    if (! fileIDs.contains(target.getFileID()))
+                        fileIDs.add(target.getFileID());
+            }
+        }
+
+        return fileIDs;
     }
 
     public void finishedRestoreFile(String fileID) {
         receivedChunks.remove(fileID);
+        this.removeReferences(fileID);
+    }
+
+    private void removeReferences(String fileID) {
+        ranges.remove(fileID);
+        if (numChunks.remove(fileID) == null)
+            return;
+
+        for (ChunkKey source : references.keySet()) {
+            references.computeIfPresent(source, (k, targets) -> {
+                synchronized (targets) {
+                    targets.removeIf((target) -> target.getFileID().equals(fileID));
+                    return targets.isEmpty() ? null : targets;
+                }
+            });
+        }
     }
 
     /**
@@ -73,12 +261,24 @@ public class ChunkRestoreSynchronizer {
         if (chunks == null)
             return null;
 
+        Integer expected = numChunks.get(fileID);
+
         synchronized (chunks) {
+            if (expected != null) {
+                // chunks are only added to the set once, so all have been received when the count matches
+                if (chunks.size() < expected)
+                    return null;
+
+                List<Chunk> received = new ArrayList<>(receivedChunks.remove(fileID));
+                this.removeReferences(fileID);
+                return received;
+            }
+
             List<Integer> chunkNumbers = new ArrayList<>();
             for (Chunk c : chunks) {
                 chunkNumbers.add(c.getNumber());
                 if (c.getNumber() == chunks.size() - 1)
-                    if (c.getSize() == Chunk.MAX_SIZE)
+                    if (rawSize(c) == Chunk.MAX_SIZE)
                         return null;
             }
 
@@ -92,6 +292,17 @@ public class ChunkRestoreSynchronizer {
         }
     }
 
+    /**
+     * @return size of a chunk's original content, -1 if it can't be decoded
+     */
+    private static int rawSize(Chunk chunk) {
+        try {
+            return chunk.decode().getSize();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
     public List<Chunk> getChunks(String fileID) {
         Set<Chunk> chunks = receivedChunks.get(fileID);
         if (chunks == null)
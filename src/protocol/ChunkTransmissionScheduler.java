@@ -0,0 +1,154 @@
+package protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import file.Chunk;
+import peer.Operation;
+import peer.Peer;
+
+/**
+ * Sends the chunks of many files being backed up at the same time, with a bounded number of chunk backups in
+ * progress. Files take turns, one chunk at a time, so that a large file doesn't hold back the others. Submitting
+ * blocks while too many bytes are waiting to be sent, which paces the threads reading the files.
+ */
+public class ChunkTransmissionScheduler {
+
+    private static class Pending {
+        private final ChunkBackupInitiator initiator;
+        private final int size;
+        private final Operation operation;
+
+        Pending(ChunkBackupInitiator initiator, int size, Operation operation) {
+            this.initiator = initiator;
+            this.size = size;
+            this.operation = operation;
+        }
+    }
+
+    private Peer peer;
+    private int maxInFlight;
+    private long maxQueuedBytes;
+
+    // chunks waiting to be sent, by file id, in the order the files take turns, guarded by this
+    private LinkedHashMap<String, ArrayDeque<Pending>> queues;
+    private int inFlight;
+    private long queuedBytes;
+
+    /**
+     * @param peer              peer for which the chunks are backed up
+     * @param maxInFlight       max number of chunk backups in progress
+     * @param maxQueuedBytes    max number of bytes of chunks waiting to be sent
+     */
+    public ChunkTransmissionScheduler(Peer peer, int maxInFlight, long maxQueuedBytes) {
+        this.peer = peer;
+        this.maxInFlight = maxInFlight;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.queues = new LinkedHashMap<>();
+    }
+
+    /**
+     * Queues the backup of a chunk, waiting while too many bytes are queued
+     * @param listener  notified when the backup of the chunk finishes, may be null
+     * @param operation operation the backup is part of
+     * @throws InterruptedException if interrupted while waiting, in which case the chunk isn't queued
+     */
+    public void submit(Chunk chunk, int repDegree, ChunkBackupListener listener, Operation operation)
+            throws InterruptedException {
+        ChunkBackupInitiator initiator = new ChunkBackupInitiator(this.peer, chunk, repDegree, 5, 1000,
+                (chunkKey, currentRepDegree, achieved) -> {
+                    this.finished();
+                    if (listener != null)
+                        listener.backupFinished(chunkKey, currentRepDegree, achieved);
+                });
+        initiator.setOperation(operation);
+
+        synchronized (this) {
+            // a chunk is always accepted when nothing is queued, whatever its size
+            while (this.queuedBytes > 0 && this.queuedBytes + chunk.getSize() > this.maxQueuedBytes)
+                this.wait();
+
+            this.queues.computeIfAbsent(chunk.getFileID(), (k) -> new ArrayDeque<>())
+                    .add(new Pending(initiator, chunk.getSize(), operation));
+            this.queuedBytes += chunk.getSize();
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Drops the chunks of a cancelled operation that are still waiting to be sent
+     * @return number of chunks dropped
+     */
+    public int cancel(Operation operation) {
+        int dropped = 0;
+
+        synchronized (this) {
+            Iterator<ArrayDeque<Pending>> it = this.queues.values().iterator();
+            while (it.hasNext()) {
+                ArrayDeque<Pending> queue = it.next();
+                Iterator<Pending> pending = queue.iterator();
+                while (pending.hasNext()) {
+                    Pending next = pending.next();
+                    if (next.operation != operation)
+                        continue;
+
+                    pending.remove();
+                    this.queuedBytes -= next.size;
+                    dropped++;
+                }
+
+                if (queue.isEmpty())
+                    it.remove();
+            }
+
+            this.notifyAll();
+        }
+
+        return dropped;
+    }
+
+    private void finished() {
+        synchronized (this) {
+            this.inFlight--;
+        }
+
+        this.dispatch();
+    }
+
+    private void dispatch() {
+        List<Runnable> ready = new ArrayList<>();
+
+        synchronized (this) {
+            while (this.inFlight < this.maxInFlight && ! this.queues.isEmpty()) {
+                // the file whose turn it is goes to the back of the line, if it has more chunks
+                Iterator<Map.Entry<String, ArrayDeque<Pending>>> it = this.queues.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Pending>> turn = it.next();
+                it.remove();
+
+                Pending next = turn.getValue().poll();
+                if (! turn.getValue().isEmpty())
+                    this.queues.put(turn.getKey(), turn.getValue());
+
+                this.queuedBytes -= next.size;
+                this.inFlight++;
+                ready.add(next.initiator);
+            }
+
+            this.notifyAll();
+        }
+
+        for (Runnable initiator : ready)
+            this.peer.submitWorker(initiator);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.inFlight + " chunks in progress, " + this.queuedBytes + " bytes of " + this.queues.size()
+                + " files waiting";
+    }
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import channel.MulticastChannel;
 import message.Message;
 import peer.Peer;
+import util.Config;
 import util.Log;
+import util.Metrics;
 
 public class DeleteInitiator implements Runnable {
 
@@ -13,6 +15,7 @@ public class DeleteInitiator implements Runnable {
     private Message message;
     private int numTries;
     private long rate;
+    private boolean firstTry = true;
 
     public DeleteInitiator(Peer peer, Message message, int numTries, long rate) {
         this.peer = peer;
@@ -27,17 +30,25 @@ public class DeleteInitiator implements Runnable {
 
         // if using the enhanced version, resend the DELETE only if necessary
         if (peer.getVersion().equals("2.0")) {
-            if (! peer.getState().getUndeletedFiles().contains(message.getFileID()))
+            if (! peer.getState().isUndeletedFile(message.getFileID()))
                 return;
         }
 
-        try {
-            mcChannel.broadcast(message);
-            Log.logSentMC(message.getHeader());
-        } catch (IOException e) {
-            Log.logError("Unable to send " + message.getHeader());
+        // the first DELETE is sent only to the peers known to store the file, the retries to all peers
+        if (this.firstTry && peer.getVersion().equals("2.0") && Config.getBoolean("peer.unicast", true)
+                && this.peer.sendTo(peer.getState().getUndeletedFilePeers(message.getFileID()), message)) {
+            Metrics.increment("unicast.delete");
+        } else {
+            try {
+                mcChannel.broadcast(message);
+                Log.logSentMC(message.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+            }
         }
 
+        this.firstTry = false;
+
         this.numTries--;
         if (this.numTries == 0)
             return;
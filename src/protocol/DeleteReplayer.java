@@ -0,0 +1,96 @@
+package protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import message.Message;
+import message.Messages;
+import peer.Peer;
+import util.Log;
+
+/**
+ * Sends the DELETE messages that have to be repeated, for files that other peers may still store, in batches.
+ * Files added for replay are sent together on the next tick in DELETEBATCH messages, each with as many file ids as
+ * fit in a datagram. The messages of a tick are spaced out and their number is limited, the files that don't fit
+ * are left for the next ticks.
+ */
+public class DeleteReplayer implements Runnable {
+
+    private Peer peer;
+    private long pace;
+    private int maxMessagesPerTick;
+
+    // number of times each file still has to be sent, guarded by this
+    private Map<String, Integer> pending;
+
+    /**
+     * @param peer                  peer for which the protocol is being executed
+     * @param pace                  time, in ms, between the messages of a tick
+     * @param maxMessagesPerTick    max number of messages sent on each tick
+     */
+    public DeleteReplayer(Peer peer, long pace, int maxMessagesPerTick) {
+        this.peer = peer;
+        this.pace = pace;
+        this.maxMessagesPerTick = maxMessagesPerTick;
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Adds files to be sent on the next ticks
+     * @param fileIDs   files deleted by this peer
+     * @param times     number of times to send each file
+     */
+    public synchronized void add(Collection<String> fileIDs, int times) {
+        for (String fileID : fileIDs)
+            this.pending.merge(fileID, times, Math::max);
+    }
+
+    @Override
+    public void run() {
+        List<String> fileIDs = new ArrayList<>();
+
+        synchronized (this) {
+            int maxFiles = this.maxMessagesPerTick * Messages.MAX_BATCH_FILE_IDS;
+
+            for (String fileID : new ArrayList<>(this.pending.keySet())) {
+                if (fileIDs.size() == maxFiles)
+                    break;
+
+                // the peers that stored the file have already deleted it
+                if (! this.peer.getState().isUndeletedFile(fileID)) {
+                    this.pending.remove(fileID);
+                    continue;
+                }
+
+                fileIDs.add(fileID);
+                this.pending.computeIfPresent(fileID, (id, times) -> times == 1 ? null : times - 1);
+            }
+        }
+
+        if (fileIDs.isEmpty())
+            return;
+
+        List<Message> messages = Messages.getDeleteBatchMessages(this.peer.getID(), fileIDs);
+        Log.log("Replaying DELETE for " + fileIDs.size() + " files in " + messages.size() + " messages");
+
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+
+            this.peer.scheduleTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        peer.getMCChannel().broadcast(message);
+                        Log.logSentMC(message.getHeader());
+                    } catch (IOException e) {
+                        Log.logError("Unable to send " + message.getHeader());
+                    }
+                }
+            }, i * this.pace);
+        }
+    }
+}
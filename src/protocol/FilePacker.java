@@ -0,0 +1,245 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import file.Chunk;
+import file.ChunkKey;
+import file.ChunkManifest;
+import file.FileIDGenerator;
+import filesystem.PackIndex;
+import filesystem.PeerState;
+import peer.Operation;
+import peer.Peer;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Packs the small files backed up by this peer into pack files, which are backed up as any other file. Files with
+ * the same desired replication degree wait up to a short delay, or until there are enough of them to fill a pack,
+ * and are then appended to a new pack. A file never spans two chunks of a pack, so it can be restored from a
+ * single chunk.
+ */
+public class FilePacker {
+
+    private static class PendingFile {
+        private final String fileId;
+        private final String path;
+        private final byte[] content;
+        private final Operation operation;
+        // tells the operation when the chunk of the pack with the file is backed up
+        private final ChunkBackupListener listener;
+
+        PendingFile(String fileId, String path, byte[] content, Operation operation) {
+            this.fileId = fileId;
+            this.path = path;
+            this.content = content;
+            this.operation = operation;
+            this.listener = operation.track(fileId, content.length, null);
+        }
+    }
+
+    private Peer peer;
+    private long delay;
+    private long maxPackSize;
+
+    // files waiting to be packed, by desired replication degree, guarded by this
+    private Map<Integer, List<PendingFile>> pending;
+    private Map<Integer, Long> pendingBytes;
+    private Set<String> pendingIds;
+
+    /**
+     * @param peer          peer that backs up the files
+     * @param delay         max time, in ms, a file waits for others to be packed with
+     * @param maxPackSize   size, in bytes, from which the files waiting are packed right away
+     */
+    public FilePacker(Peer peer, long delay, long maxPackSize) {
+        this.peer = peer;
+        this.delay = delay;
+        this.maxPackSize = maxPackSize;
+        this.pending = new HashMap<>();
+        this.pendingBytes = new HashMap<>();
+        this.pendingIds = new HashSet<>();
+    }
+
+    /**
+     * Queues a small file to be packed
+     * @param content   content of the file, at most Chunk.MAX_SIZE bytes
+     * @param operation operation the backup of the file is part of, done once the chunk of the pack with the file is
+     *                  backed up
+     * @return false if the file is already waiting to be packed
+     */
+    public boolean add(String fileId, String path, byte[] content, int repDegree, Operation operation) {
+        boolean first;
+        boolean full;
+
+        synchronized (this) {
+            if (! this.pendingIds.add(fileId))
+                return false;
+
+            List<PendingFile> files = this.pending.computeIfAbsent(repDegree, (k) -> new ArrayList<>());
+            first = files.isEmpty();
+            files.add(new PendingFile(fileId, path, content, operation));
+
+            long bytes = this.pendingBytes.merge(repDegree, (long) content.length, Long::sum);
+            full = bytes >= this.maxPackSize;
+        }
+
+        if (full) {
+            this.peer.submitWorker(new Runnable() {
+                @Override
+                public void run() {
+                    flush(repDegree);
+                }
+            });
+        } else if (first) {
+            this.peer.scheduleTask(new Runnable() {
+                @Override
+                public void run() {
+                    flush(repDegree);
+                }
+            }, this.delay);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if the file is waiting to be packed
+     */
+    public synchronized boolean isPending(String fileId) {
+        return this.pendingIds.contains(fileId);
+    }
+
+    private void flush(int repDegree) {
+        List<PendingFile> files;
+
+        synchronized (this) {
+            files = this.pending.remove(repDegree);
+            this.pendingBytes.remove(repDegree);
+            if (files == null || files.isEmpty())
+                return;
+        }
+
+        // the files of cancelled operations aren't backed up
+        List<PendingFile> cancelled = new ArrayList<>();
+        for (PendingFile file : files)
+            if (file.operation.isCancelled())
+                cancelled.add(file);
+        files.removeAll(cancelled);
+
+        try {
+            if (! files.isEmpty() && ! this.pack(files, repDegree))
+                failed(files);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.logError("Failed packing " + files.size() + " files");
+            failed(files);
+        } finally {
+            files.addAll(cancelled);
+            synchronized (this) {
+                for (PendingFile file : files)
+                    this.pendingIds.remove(file.fileId);
+            }
+        }
+    }
+
+    private static void failed(List<PendingFile> files) {
+        for (PendingFile file : files)
+            file.listener.backupFinished(new ChunkKey(file.fileId, 0), 0, false);
+    }
+
+    /**
+     * @return false if the pack couldn't be backed up
+     */
+    private boolean pack(List<PendingFile> files, int repDegree) throws IOException, NoSuchAlgorithmException {
+        // lay the files out in chunks, starting a new chunk when the next file doesn't fit in the current one
+        List<Integer> chunkSizes = new ArrayList<>();
+        int[] chunkNos = new int[files.size()];
+        int[] offsets = new int[files.size()];
+        int total = 0;
+        int fill = 0;
+
+        for (int i = 0; i < files.size(); i++) {
+            int length = files.get(i).content.length;
+            if (fill > 0 && fill + length > Chunk.MAX_SIZE) {
+                chunkSizes.add(fill);
+                fill = 0;
+            }
+
+            chunkNos[i] = chunkSizes.size();
+            offsets[i] = fill;
+            fill += length;
+            total += length;
+        }
+        chunkSizes.add(fill);
+
+        byte[] content = new byte[total];
+        int position = 0;
+        for (PendingFile file : files) {
+            System.arraycopy(file.content, 0, content, position, file.content.length);
+            position += file.content.length;
+        }
+
+        // packs with the same files are still different backups
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(("pack" + this.peer.getID() + System.nanoTime()).getBytes(StandardCharsets.UTF_8));
+        digest.update(content);
+        String packId = FileIDGenerator.bytesToHex(digest.digest());
+
+        ChunkManifest manifest = new ChunkManifest(false);
+        List<Chunk> chunks = new ArrayList<>();
+        int offset = 0;
+        for (int chunkNo = 0; chunkNo < chunkSizes.size(); chunkNo++) {
+            int size = chunkSizes.get(chunkNo);
+            Chunk chunk = new Chunk(packId, chunkNo, Arrays.copyOfRange(content, offset, offset + size));
+            manifest.add(offset, size, chunk.getContentHash());
+            chunks.add(chunk);
+            offset += size;
+        }
+
+        String path = this.peer.getFileSystem().storePack(packId, content);
+
+        PeerState state = this.peer.getState();
+        if (! state.insertFileInfo(path, packId, repDegree, manifest)) {
+            Log.logError("Pack " + packId + " already backed up");
+            return false;
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            PendingFile file = files.get(i);
+            PackIndex.Entry entry = new PackIndex.Entry(file.path, packId, chunkNos[i], offsets[i], file.content.length);
+            if (! state.packFile(file.fileId, entry))
+                Log.logError("File " + file.fileId + " already packed");
+        }
+
+        Metrics.add("pack.files", files.size());
+        Metrics.add("pack.chunks", chunks.size());
+        Log.log("Packed " + files.size() + " files (" + total + " bytes) into " + chunks.size() + " chunks of pack "
+                + packId);
+
+        // the backup of each file is done once the chunk it is in is
+        Map<Integer, List<PendingFile>> filesByChunk = new HashMap<>();
+        for (int i = 0; i < files.size(); i++)
+            filesByChunk.computeIfAbsent(chunkNos[i], (k) -> new ArrayList<>()).add(files.get(i));
+
+        for (Chunk chunk : chunks) {
+            List<PendingFile> packed = filesByChunk.get(chunk.getNumber());
+            this.peer.submitWorker(new ChunkBackupInitiator(this.peer, this.peer.encodeChunk(chunk), repDegree, 5, 1000,
+                    (ChunkKey chunkKey, int currentRepDegree, boolean achieved) -> {
+                        for (PendingFile file : packed)
+                            file.listener.backupFinished(chunkKey, currentRepDegree, achieved);
+                    }));
+        }
+
+        return true;
+    }
+}
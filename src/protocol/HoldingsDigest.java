@@ -0,0 +1,131 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import file.ChunkKey;
+import util.Hashing;
+
+/**
+ * Merkle digest of a set of chunks held by a peer. The tree has four levels: the root, 256 buckets of files
+ * (chosen by the file id's hash), the files, and ranges of RANGE_SIZE consecutive chunks of each file. The digest of
+ * each node is the sum of its children's, which makes it independent of the order in which chunks are added, so
+ * that two peers can compare their views of the same holdings starting at the root and only descending into the
+ * nodes that differ.
+ */
+public class HoldingsDigest {
+
+    public static final int NUM_BUCKETS = 256;
+    public static final int RANGE_SIZE = 256;
+
+    // chunks of each file, by file hash
+    private Map<Long, TreeMap<Integer, List<Integer>>> ranges;
+    private Map<Long, String> fileIds;
+    private long[] buckets;
+    private long root;
+
+    /**
+     * @param holdings  chunk numbers of each file
+     */
+    public HoldingsDigest(Map<String, List<Integer>> holdings) {
+        this.ranges = new HashMap<>();
+        this.fileIds = new HashMap<>();
+        this.buckets = new long[NUM_BUCKETS];
+
+        for (Map.Entry<String, List<Integer>> entry : holdings.entrySet()) {
+            if (entry.getValue().isEmpty())
+                continue;
+
+            long fileHash = Hashing.hash64(entry.getKey());
+            TreeMap<Integer, List<Integer>> fileRanges = new TreeMap<>();
+
+            for (Integer chunkNo : entry.getValue())
+                fileRanges.computeIfAbsent(chunkNo / RANGE_SIZE, (k) -> new ArrayList<>()).add(chunkNo);
+
+            this.ranges.put(fileHash, fileRanges);
+            this.fileIds.put(fileHash, entry.getKey());
+
+            long digest = fileNodeDigest(fileHash, this.getFileDigest(fileHash));
+            this.buckets[getBucket(fileHash)] += digest;
+            this.root += digest;
+        }
+    }
+
+    public static int getBucket(long fileHash) {
+        return (int) (fileHash >>> 56);
+    }
+
+    private static long fileNodeDigest(long fileHash, long fileDigest) {
+        return Hashing.mix64(fileHash ^ fileDigest);
+    }
+
+    private static long chunkDigest(String fileId, int chunkNo) {
+        return Hashing.mix64(Hashing.hash64(new ChunkKey(fileId, chunkNo)));
+    }
+
+    public long getRoot() {
+        return this.root;
+    }
+
+    public long[] getBuckets() {
+        return this.buckets;
+    }
+
+    /**
+     * @return digest of each file in a bucket, by file hash
+     */
+    public Map<Long, Long> getFileDigests(int bucket) {
+        Map<Long, Long> digests = new HashMap<>();
+        for (Long fileHash : this.ranges.keySet())
+            if (getBucket(fileHash) == bucket)
+                digests.put(fileHash, this.getFileDigest(fileHash));
+
+        return digests;
+    }
+
+    /**
+     * @return digest of a file, 0 if it has no chunks
+     */
+    public long getFileDigest(long fileHash) {
+        long digest = 0;
+        for (Long rangeDigest : this.getRangeDigests(fileHash).values())
+            digest += rangeDigest;
+
+        return digest;
+    }
+
+    /**
+     * @return digest of each range of a file that has chunks
+     */
+    public Map<Integer, Long> getRangeDigests(long fileHash) {
+        Map<Integer, Long> digests = new HashMap<>();
+        TreeMap<Integer, List<Integer>> fileRanges = this.ranges.get(fileHash);
+        if (fileRanges == null)
+            return digests;
+
+        String fileId = this.fileIds.get(fileHash);
+        for (Map.Entry<Integer, List<Integer>> entry : fileRanges.entrySet()) {
+            long digest = 0;
+            for (Integer chunkNo : entry.getValue())
+                digest += chunkDigest(fileId, chunkNo);
+
+            digests.put(entry.getKey(), digest);
+        }
+
+        return digests;
+    }
+
+    /**
+     * @return chunk numbers in a range of a file
+     */
+    public List<Integer> getChunks(long fileHash, int range) {
+        TreeMap<Integer, List<Integer>> fileRanges = this.ranges.get(fileHash);
+        if (fileRanges == null || ! fileRanges.containsKey(range))
+            return new ArrayList<>();
+
+        return fileRanges.get(range);
+    }
+}
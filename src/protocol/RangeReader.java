@@ -0,0 +1,261 @@
+package protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import file.Chunk;
+import file.ChunkKey;
+import file.ChunkManifest;
+import peer.Peer;
+import util.Metrics;
+
+/**
+ * Reads ranges of the files backed up by this peer without restoring them, fetching only the chunks the range
+ * covers. The chunks read are kept, decoded, in a cache of bounded size that drops the least recently used first.
+ * Reads that continue where the previous read of the same file ended are taken as sequential, and the chunks that
+ * follow are fetched ahead, more of them the longer the file keeps being read in order.
+ */
+public class RangeReader {
+
+    // files whose read position is remembered, to detect sequential reads
+    private static final int MAX_STREAMS = 64;
+
+    private static class Stream {
+        private long next;
+        private int window;
+    }
+
+    private Peer peer;
+    private long cacheSize;
+    private int maxPrefetch;
+    private long timeout;
+
+    // decoded content of the chunks read, by the key under which they are stored, in access order, guarded by itself
+    private LinkedHashMap<ChunkKey, byte[]> cache;
+    private long cachedBytes;
+    // chunks being fetched
+    private ConcurrentHashMap<ChunkKey, CompletableFuture<byte[]>> inFlight;
+    // read position of the files read last, guarded by itself
+    private LinkedHashMap<String, Stream> streams;
+
+    /**
+     * @param peer          peer that reads the files
+     * @param cacheSize     max number of bytes of chunks kept
+     * @param maxPrefetch   max number of chunks fetched ahead of a sequential read
+     * @param timeout       time, in ms, to wait for a chunk
+     */
+    public RangeReader(Peer peer, long cacheSize, int maxPrefetch, long timeout) {
+        this.peer = peer;
+        this.cacheSize = cacheSize;
+        this.maxPrefetch = maxPrefetch;
+        this.timeout = timeout;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+            private static final long serialVersionUID = -6084398147120985522L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+                return this.size() > MAX_STREAMS;
+            }
+        };
+    }
+
+    /**
+     * Reads a range of a file
+     * @param fileID    file id
+     * @param manifest  manifest of the file
+     * @param offset    offset of the range in the file
+     * @param length    length of the range, shortened if it goes past the end of the file
+     * @return content of the range
+     * @throws IOException if a chunk couldn't be fetched or decoded
+     */
+    public byte[] read(String fileID, ChunkManifest manifest, long offset, int length) throws IOException {
+        long total = manifest.getTotalBytes();
+        if (offset < 0 || length < 0 || offset > total)
+            throw new IOException("Range " + offset + "+" + length + " outside file " + fileID + " of " + total
+                    + " bytes");
+
+        length = (int) Math.min(length, total - offset);
+        byte[] content = new byte[length];
+        if (length == 0)
+            return content;
+
+        int first = this.findChunk(manifest, offset);
+        int last = this.findChunk(manifest, offset + length - 1);
+
+        // the chunks are all requested before waiting for any of them, holes are read as zeros
+        List<CompletableFuture<byte[]>> chunks = new ArrayList<>();
+        for (int chunkNo = first; chunkNo <= last; chunkNo++) {
+            ChunkKey source = manifest.getSource(fileID, chunkNo);
+            chunks.add(source == null ? CompletableFuture.completedFuture(new byte[manifest.getSize(chunkNo)])
+                    : this.fetch(source));
+        }
+
+        int position = 0;
+        for (int chunkNo = first; chunkNo <= last; chunkNo++) {
+            byte[] chunk = this.await(chunks.get(chunkNo - first), fileID, chunkNo);
+            int start = (int) Math.max(0, offset - manifest.getOffset(chunkNo));
+            int end = (int) Math.min(chunk.length, offset + length - manifest.getOffset(chunkNo));
+            if (end - start > length - position || end < start)
+                throw new IOException("Chunk " + chunkNo + " of file " + fileID + " doesn't match its manifest");
+
+            System.arraycopy(chunk, start, content, position, end - start);
+            position += end - start;
+        }
+
+        if (position < length)
+            throw new IOException("Chunks of file " + fileID + " are shorter than its manifest");
+
+        Metrics.add("read.bytes", length);
+        this.prefetch(fileID, manifest, offset, length, last);
+
+        return content;
+    }
+
+    /**
+     * @return number of the chunk with a byte of the file
+     */
+    private int findChunk(ChunkManifest manifest, long offset) {
+        int low = 0;
+        int high = manifest.getNumChunks() - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (manifest.getOffset(middle) <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        return low;
+    }
+
+    /**
+     * Fetches the chunks after the last one read, if the file is being read in order. The number of chunks fetched
+     * ahead doubles with each sequential read, up to the max, and drops back when the file is read out of order.
+     */
+    private void prefetch(String fileID, ChunkManifest manifest, long offset, int length, int last) {
+        int window;
+        synchronized (this.streams) {
+            Stream stream = this.streams.get(fileID);
+            if (stream == null) {
+                stream = new Stream();
+                this.streams.put(fileID, stream);
+            }
+
+            if (stream.next == offset && offset > 0)
+                stream.window = Math.min(Math.max(1, stream.window * 2), this.maxPrefetch);
+            else
+                stream.window = 0;
+
+            stream.next = offset + length;
+            window = stream.window;
+        }
+
+        for (int chunkNo = last + 1; chunkNo <= last + window && chunkNo < manifest.getNumChunks(); chunkNo++)
+            if (! manifest.isHole(chunkNo))
+                this.fetch(manifest.getSource(fileID, chunkNo));
+    }
+
+    /**
+     * @return completed with the decoded content of a chunk, right away if it is cached
+     */
+    private CompletableFuture<byte[]> fetch(ChunkKey source) {
+        synchronized (this.cache) {
+            byte[] cached = this.cache.get(source);
+            if (cached != null) {
+                Metrics.increment("read.cache.hits");
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        CompletableFuture<byte[]> fetched = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = this.inFlight.putIfAbsent(source, fetched);
+        if (existing != null)
+            return existing;
+
+        Metrics.increment("read.cache.misses");
+        ChunkRestoreSynchronizer chunkRestoreSync = this.peer.getChunkRestoreSync();
+
+        chunkRestoreSync.fetchChunk(source).whenComplete((Chunk chunk, Throwable e) -> {
+            this.inFlight.remove(source, fetched);
+            try {
+                byte[] content = chunk.decode().getContent();
+                this.addToCache(source, content);
+                fetched.complete(content);
+            } catch (IOException ex) {
+                fetched.completeExceptionally(ex);
+            }
+        });
+        this.peer.submitWorker(new ChunkRestoreInitiator(this.peer, source));
+
+        // no peer sent the chunk
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                if (fetched.isDone())
+                    return;
+
+                chunkRestoreSync.stopFetchingChunk(source);
+                inFlight.remove(source, fetched);
+                fetched.completeExceptionally(new TimeoutException());
+            }
+        }, this.timeout);
+
+        return fetched;
+    }
+
+    private byte[] await(CompletableFuture<byte[]> chunk, String fileID, int chunkNo) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading file " + fileID);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                throw new IOException("No peer sent chunk " + chunkNo + " of file " + fileID);
+
+            throw new IOException("Failed decoding chunk " + chunkNo + " of file " + fileID);
+        }
+    }
+
+    private void addToCache(ChunkKey source, byte[] content) {
+        synchronized (this.cache) {
+            if (this.cache.put(source, content) == null)
+                this.cachedBytes += content.length;
+
+            while (this.cachedBytes > this.cacheSize && this.cache.size() > 1) {
+                Map.Entry<ChunkKey, byte[]> eldest = this.cache.entrySet().iterator().next();
+                this.cachedBytes -= eldest.getValue().length;
+                this.cache.remove(eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops the cached chunks of a file, when it is no longer backed up
+     */
+    public void forget(String fileID) {
+        synchronized (this.cache) {
+            this.cache.entrySet().removeIf((entry) -> {
+                if (! entry.getKey().getFileID().equals(fileID))
+                    return false;
+
+                this.cachedBytes -= entry.getValue().length;
+                return true;
+            });
+        }
+
+        synchronized (this.streams) {
+            this.streams.remove(fileID);
+        }
+    }
+}
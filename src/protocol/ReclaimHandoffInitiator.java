@@ -0,0 +1,206 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import file.Chunk;
+import file.ChunkKey;
+import filesystem.ChunkReclaim;
+import message.Message;
+import message.Messages;
+import peer.Operation;
+import peer.Peer;
+import util.Config;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Removes the chunks chosen by a reclaim, offering each one to the other peers first. A HANDOFF message
+ * announces the chunk, a TCP server socket and the peers known to store the chunk, the first other peer with free
+ * space that doesn't store the chunk fetches it and replies with STORED, and only then is the chunk deleted and the REMOVED message sent.
+ * Chunks that no peer takes in time are removed as before, leaving the repair to the REMOVED handling.
+ */
+public class ReclaimHandoffInitiator implements Runnable {
+
+    // time to wait for a peer to fetch the chunk, must exceed the delay of the lowest ranked taker
+    private static final int ACCEPT_TIMEOUT_MS = 2000;
+    private static final int SOCKET_TIMEOUT_MS = 2000;
+    private static final long STORED_TIMEOUT_MS = 1000;
+    private static final long STORED_POLL_MS = 50;
+
+    private Peer peer;
+    private List<ChunkReclaim> chunks;
+    private Operation operation;
+    private Semaphore inProgress;
+
+    /**
+     * @param peer      peer for which the protocol is being executed
+     * @param chunks    chunks that have already been removed from the peer state
+     * @param operation operation told as each chunk is removed, chunks are no longer handed off once it is cancelled
+     */
+    public ReclaimHandoffInitiator(Peer peer, List<ChunkReclaim> chunks, Operation operation) {
+        this.peer = peer;
+        this.chunks = chunks;
+        this.operation = operation;
+        this.inProgress = new Semaphore(Config.getInt("peer.handoff.parallel", 8));
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(this.chunks.size());
+        int[] handedOff = { 0 };
+        long bytes = 0;
+
+        for (ChunkReclaim chunk : this.chunks) {
+            bytes += chunk.getSize();
+
+            try {
+                this.inProgress.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            this.peer.submitWorker(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // the chunks were already removed from the peer state, so they are still deleted
+                        if (! operation.isCancelled() && handOff(chunk)) {
+                            synchronized (handedOff) {
+                                handedOff[0]++;
+                            }
+                        }
+                        remove(new ChunkKey(chunk.getFileId(), chunk.getChunkNo()));
+                        operation.chunkDone(chunk.getSize());
+                    } finally {
+                        inProgress.release();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        Metrics.add("reclaim.bytes", bytes);
+        Log.log("Reclaimed " + this.chunks.size() + " chunks (" + bytes + " bytes) in " + elapsed + "ms, "
+                + String.format("%.1f", bytes / 1024.0 / (elapsed / 1000.0)) + " KB/s, " + handedOff[0] + " handed off");
+    }
+
+    /**
+     * Offers a chunk to the other peers
+     * @return true if another peer confirmed storing the chunk
+     */
+    private boolean handOff(ChunkReclaim reclaimed) {
+        ChunkKey chunkKey = new ChunkKey(reclaimed.getFileId(), reclaimed.getChunkNo());
+
+        // any peer may take the chunk, it is handed off decoded unless all of them can decode it
+        Chunk chunk;
+        try {
+            // the chunk was already removed from the state, its codec was kept when it was reclaimed
+            chunk = this.peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber(),
+                    reclaimed.getCodec());
+            if (chunk != null)
+                chunk = this.peer.prepareChunk(chunk, null);
+        } catch (IOException e) {
+            Log.logError(e.toString());
+            return false;
+        }
+
+        if (chunk == null)
+            return false;
+
+        // every peer advertised not having space for the chunk
+        if (! this.peer.getDirectory().mayHaveSpace(chunk.getSize())) {
+            Metrics.increment("reclaim.handoff.nospace");
+            return false;
+        }
+
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(0);
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        } catch (IOException e) {
+            Log.logError("Unable to open server socket to hand off chunk " + chunkKey.getNumber());
+            return false;
+        }
+
+        ChunkBackupSynchronizer chunkBackupSync = this.peer.getChunkBackupSync();
+        chunkBackupSync.listenToStored(chunkKey);
+
+        try {
+            Message message = Messages.getHandoffMessage(this.peer.getID(), chunkKey, reclaimed.getRepDegree(),
+                    serverSocket.getLocalPort(), chunk.getSize(), chunk.getCodec(), reclaimed.getHolders());
+            try {
+                this.peer.getMCChannel().broadcast(message);
+                Log.logSentMC(message.getHeader());
+            } catch (IOException e) {
+                Log.logError("Unable to send " + message.getHeader());
+                return false;
+            }
+
+            try {
+                Socket connectionSocket = serverSocket.accept();
+                connectionSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
+                OutputStream outStream = connectionSocket.getOutputStream();
+                outStream.write(chunk.getContent());
+                outStream.flush();
+                connectionSocket.close();
+            } catch (SocketTimeoutException e) {
+                Log.log("No peer took chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID());
+                Metrics.increment("reclaim.handoff.failed");
+                return false;
+            } catch (IOException e) {
+                Log.logError("Failed sending chunk " + chunkKey.getNumber() + " to be handed off");
+                Metrics.increment("reclaim.handoff.failed");
+                return false;
+            }
+
+            for (long waited = 0; waited < STORED_TIMEOUT_MS; waited += STORED_POLL_MS) {
+                if (chunkBackupSync.getNumStored(chunkKey) > 0) {
+                    Metrics.increment("reclaim.handoff.succeeded");
+                    return true;
+                }
+
+                try {
+                    Thread.sleep(STORED_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            Metrics.increment("reclaim.handoff.failed");
+            return false;
+        } finally {
+            chunkBackupSync.stopListenToStored(chunkKey);
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.logError("Failed closing server socket");
+            }
+        }
+    }
+
+    /**
+     * Deletes the chunk and sends the REMOVED message
+     */
+    private void remove(ChunkKey chunkKey) {
+        this.peer.getFileSystem().deleteChunk(chunkKey);
+        new SpaceReclaimInitiator(this.peer, chunkKey).run();
+    }
+}
@@ -0,0 +1,272 @@
+package protocol;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import file.Chunk;
+import file.ChunkKey;
+import file.FileHandler;
+import filesystem.FileInfo;
+import filesystem.PeerState;
+import peer.Peer;
+import util.Config;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Queue of chunks this peer has to repair, either stored chunks it was elected to repair after REMOVED messages
+ * dropped them below their desired replication degree, or chunks of its own files found under-replicated by the
+ * replication monitor. Repairs are deduplicated, ordered by how many replicas are missing, and started in small
+ * batches by a periodic drain, with a bound on the number of repairs in progress and on the bytes sent per second,
+ * so that repairs don't flood the MDB channel and delay backups and restores.
+ */
+public class RepairQueue implements ChunkBackupListener {
+
+    private static final long COMPLETION_WINDOW_MS = 60000;
+
+    private static class Repair implements Comparable<Repair> {
+        private final ChunkKey chunkKey;
+        private final int desiredRepDeg;
+        private final int deficit;
+        private final long seq;
+
+        Repair(ChunkKey chunkKey, int desiredRepDeg, int deficit, long seq) {
+            this.chunkKey = chunkKey;
+            this.desiredRepDeg = desiredRepDeg;
+            this.deficit = deficit;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Repair other) {
+            // most missing replicas first, then first come first served
+            if (this.deficit != other.deficit)
+                return Integer.compare(other.deficit, this.deficit);
+
+            return Long.compare(this.seq, other.seq);
+        }
+    }
+
+    private Peer peer;
+    private int batchSize;
+    private int maxInProgress;
+    private long bytesPerSecond;
+
+    // guarded by this
+    private PriorityQueue<Repair> queue;
+    private Set<ChunkKey> pending;
+    private int inProgress;
+    private long seq;
+    private ArrayDeque<Long> completions;
+    // bytes that can be sent, negative while paying for a chunk larger than the budget
+    private double budget;
+    private long lastRefill;
+
+    /**
+     * @param peer          peer for which the repairs are executed
+     * @param batchSize     max number of repairs started by each drain
+     * @param maxInProgress max number of repairs in progress at the same time
+     * @param bytesPerSecond    max number of chunk bytes per second sent by the repairs, 0 for no limit
+     */
+    public RepairQueue(Peer peer, int batchSize, int maxInProgress, long bytesPerSecond) {
+        this.peer = peer;
+        this.batchSize = batchSize;
+        this.maxInProgress = maxInProgress;
+        this.bytesPerSecond = bytesPerSecond;
+        this.budget = bytesPerSecond;
+        this.lastRefill = System.currentTimeMillis();
+        this.queue = new PriorityQueue<>();
+        this.pending = new HashSet<>();
+        this.completions = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues a chunk for repair. The caller must be listening to PUTCHUNK messages for the chunk, so that the
+     * repair is dropped if another peer repairs it first.
+     * @param chunkKey      chunk to repair
+     * @param desiredRepDeg desired replication degree
+     * @param deficit       number of missing replicas
+     * @return false if the chunk is already queued or being repaired
+     */
+    public synchronized boolean submit(ChunkKey chunkKey, int desiredRepDeg, int deficit) {
+        if (! this.pending.add(chunkKey))
+            return false;
+
+        this.queue.add(new Repair(chunkKey, desiredRepDeg, deficit, this.seq++));
+        Metrics.increment("repair.queued");
+        return true;
+    }
+
+    /**
+     * Starts the next batch of repairs, called periodically
+     */
+    public void drain() {
+        List<Repair> batch = new ArrayList<>();
+
+        synchronized (this) {
+            this.refill();
+
+            while (batch.size() < this.batchSize && this.inProgress < this.maxInProgress && ! this.queue.isEmpty()
+                    && (this.bytesPerSecond == 0 || this.budget > 0)) {
+                batch.add(this.queue.poll());
+                this.inProgress++;
+            }
+        }
+
+        for (Repair repair : batch) {
+            boolean started = false;
+            try {
+                started = this.start(repair);
+            } catch (RuntimeException e) {
+                // an exception would cancel the periodic drain, and with it every later repair
+                Log.logError("Failed starting repair of chunk " + repair.chunkKey.getNumber() + " of file "
+                        + repair.chunkKey.getFileID() + ": " + e);
+            } finally {
+                if (! started)
+                    this.done(repair.chunkKey);
+            }
+        }
+    }
+
+    /**
+     * Adds to the budget the bytes allowed since the last refill, up to one second worth of them
+     */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        this.budget = Math.min(this.bytesPerSecond, this.budget + this.bytesPerSecond * (now - this.lastRefill) / 1000.0);
+        this.lastRefill = now;
+    }
+
+    /**
+     * @return true if a backup was started for the repair
+     */
+    private boolean start(Repair repair) {
+        ChunkKey chunkKey = repair.chunkKey;
+        PeerState state = this.peer.getState();
+        SpaceReclaimSynchronizer spaceReclaimSync = this.peer.getSpaceReclaimSync();
+
+        // the listener is kept until the repair is done, so that the backup still gives way to another repairer
+        boolean repairedByOther = spaceReclaimSync.hasReceivedPutChunkMsg(chunkKey);
+        if (! spaceReclaimSync.isListeningToPutChunkMsg(chunkKey))
+            spaceReclaimSync.listenToPutChunkMsg(chunkKey);
+
+        boolean owner = state.isBackupFile(chunkKey.getFileID());
+        int perceivedRepDeg = owner
+                ? state.getBackupChunkPerceivedRepDegree(chunkKey.getFileID(), chunkKey.getNumber())
+                : state.getStoredChunkPerceivedRepDegree(chunkKey.getFileID(), chunkKey.getNumber());
+
+        // the chunk may have been repaired, deleted or reclaimed while waiting in the queue
+        if (repairedByOther
+                || ! (owner || state.isStoredChunk(chunkKey.getFileID(), chunkKey.getNumber()))
+                || perceivedRepDeg >= repair.desiredRepDeg) {
+            Metrics.increment("repair.skipped");
+            return false;
+        }
+
+        FileInfo info = state.getBackupFileInfo(chunkKey.getFileID());
+        if (owner && info == null)
+            return false;
+
+        Chunk chunk;
+        try {
+            // packs get a random id and are kept by this peer as they were backed up, their id can't be checked
+            if (owner)
+                chunk = FileHandler.readChunk(info.getPath(), chunkKey.getFileID(), chunkKey.getNumber(),
+                        info.getManifest(), ! state.isPack(chunkKey.getFileID()));
+            else
+                chunk = this.peer.getFileSystem().loadChunk(chunkKey.getFileID(), chunkKey.getNumber(),
+                        state.getStoredChunkCodec(chunkKey.getFileID(), chunkKey.getNumber()));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.logError("Failed loading chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID());
+            return false;
+        }
+
+        // the file may have changed since it was backed up
+        if (chunk == null) {
+            Log.logError("Unable to read chunk " + chunkKey.getNumber() + " of file " + chunkKey.getFileID()
+                    + " to repair it");
+            return false;
+        }
+
+        // the chunks read from the owner's file are raw, the stored ones are kept as they were received
+        if (owner)
+            chunk = this.peer.encodeChunk(chunk);
+
+        synchronized (this) {
+            this.budget -= chunk.getSize();
+        }
+
+        Metrics.increment("repair.started");
+        Metrics.add("repair.bytes", chunk.getSize());
+
+        ChunkBackupInitiator initiator = new ChunkBackupInitiator(this.peer, chunk, repair.desiredRepDeg, 5, 1000, this);
+        initiator.setYieldToOthers(true);
+
+        // send the chunk straight to peers with space for it, if enough of them are known
+        if (Config.getBoolean("peer.unicast", true)) {
+            List<Integer> holders = owner
+                    ? state.getBackupChunkPeers(chunkKey.getFileID(), chunkKey.getNumber())
+                    : state.getStoredChunkPeers(chunkKey.getFileID(), chunkKey.getNumber());
+            Set<Integer> exclude = new HashSet<>();
+            if (holders != null)
+                exclude.addAll(holders);
+            exclude.add(this.peer.getID());
+
+            int missing = repair.desiredRepDeg - perceivedRepDeg;
+            List<Integer> targets = this.peer.getDirectory().choosePeers(exclude, chunk.getSize(), missing);
+            if (targets.size() == missing)
+                initiator.setTargets(targets);
+        }
+
+        this.peer.submitWorker(initiator);
+        return true;
+    }
+
+    private synchronized void done(ChunkKey chunkKey) {
+        this.pending.remove(chunkKey);
+        this.inProgress--;
+        this.peer.getSpaceReclaimSync().stopListenToPutChunkMsg(chunkKey);
+    }
+
+    @Override
+    public void backupFinished(ChunkKey chunkKey, int repDegree, boolean achieved) {
+        Metrics.increment(achieved ? "repair.completed" : "repair.failed");
+
+        synchronized (this) {
+            this.completions.addLast(System.currentTimeMillis());
+        }
+
+        this.done(chunkKey);
+    }
+
+    /**
+     * @return number of repairs waiting to be started
+     */
+    public synchronized int getBacklog() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return number of repairs finished per minute, over the last minute
+     */
+    public synchronized int getCompletionRate() {
+        long now = System.currentTimeMillis();
+
+        while (! this.completions.isEmpty() && now - this.completions.peekFirst() > COMPLETION_WINDOW_MS)
+            this.completions.pollFirst();
+
+        return this.completions.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "  Backlog : " + this.getBacklog() + "\n  In progress : " + this.inProgress
+                + "\n  Completed in the last minute : " + this.getCompletionRate() + "\n";
+    }
+}
@@ -0,0 +1,37 @@
+package protocol;
+
+import java.util.Collection;
+
+import file.ChunkKey;
+import util.Hashing;
+
+/**
+ * Rendezvous hashing placement of chunk replicas. Peers are ranked by their rendezvous score for a chunk,
+ * so that every peer with the same view of the candidates agrees on which ones should store it.
+ */
+public class ReplicaPlacement {
+
+    /**
+     * Computes a peer's rank among a set of candidates for a chunk. Rank 0 is the peer with the highest score.
+     * @param chunkKey      chunk
+     * @param peerID        peer being ranked, does not need to be in the candidates
+     * @param candidates    the other candidate peers
+     * @param salt          value that changes the ordering
+     * @return number of candidates with a higher score than the peer
+     */
+    public static int rank(ChunkKey chunkKey, int peerID, Collection<Integer> candidates, long salt) {
+        long score = Hashing.rendezvousScore(chunkKey, peerID, salt);
+        int rank = 0;
+
+        for (Integer candidate : candidates) {
+            if (candidate == peerID)
+                continue;
+
+            long candidateScore = Hashing.rendezvousScore(chunkKey, candidate, salt);
+            if (Long.compareUnsigned(candidateScore, score) > 0 || (candidateScore == score && candidate < peerID))
+                rank++;
+        }
+
+        return rank;
+    }
+}
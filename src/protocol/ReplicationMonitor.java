@@ -0,0 +1,160 @@
+package protocol;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import file.ChunkKey;
+import filesystem.FileInfo;
+import filesystem.PeerState;
+import message.Message;
+import message.Messages;
+import peer.Peer;
+import util.Log;
+import util.Metrics;
+
+/**
+ * Periodically checks the replication of the files backed up by the peer. Each round sends a WHOHAS message for
+ * every file, paced so that a large backup doesn't flood the control channel, and collects the HAVE replies for a
+ * while after the last one, after which the peers that replied are added to the ones known to back up each chunk,
+ * and the chunks below their desired replication degree are queued for repair.
+ */
+public class ReplicationMonitor implements Runnable {
+
+    private Peer peer;
+    private long probeWindow;
+    private long pace;
+
+    // peers that replied to the current round, for each chunk of each file
+    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, Set<Integer>>> replies;
+
+    /**
+     * @param peer          peer for which the protocol is being executed
+     * @param probeWindow   time, in ms, to wait for HAVE replies after the last WHOHAS message
+     * @param pace          time, in ms, between consecutive WHOHAS messages
+     */
+    public ReplicationMonitor(Peer peer, long probeWindow, long pace) {
+        this.peer = peer;
+        this.probeWindow = probeWindow;
+        this.pace = pace;
+        this.replies = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void run() {
+        // the previous round hasn't finished yet
+        if (! this.replies.isEmpty())
+            return;
+
+        List<String> fileIds = this.peer.getState().getBackupFileIds();
+        if (fileIds.isEmpty())
+            return;
+
+        int sent = 0;
+
+        for (String fileId : fileIds) {
+            FileInfo info = this.peer.getState().getBackupFileInfo(fileId);
+            if (info == null)
+                continue;
+
+            this.replies.put(fileId, new ConcurrentHashMap<>());
+
+            Message message = Messages.getWhoHasMessage(this.peer.getID(), fileId, info.getDesiredRepDegree());
+
+            this.peer.scheduleTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        peer.getMCChannel().broadcast(message);
+                        Log.logSentMC(message.getHeader());
+                    } catch (IOException e) {
+                        Log.logError("Unable to send " + message.getHeader());
+                        replies.remove(fileId);
+                    }
+                }
+            }, sent * this.pace);
+
+            sent++;
+        }
+
+        if (sent == 0)
+            return;
+
+        this.peer.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                evaluate();
+            }
+        }, (sent - 1) * this.pace + this.probeWindow);
+    }
+
+    /**
+     * Records a HAVE reply
+     * @param fileId    file id
+     * @param peerID    peer that sent the reply
+     * @param chunkNos  chunks of the file stored by the peer
+     */
+    public void haveReceived(String fileId, int peerID, List<Integer> chunkNos) {
+        ConcurrentHashMap<Integer, Set<Integer>> chunks = this.replies.get(fileId);
+        if (chunks == null)
+            return;
+
+        for (Integer chunkNo : chunkNos) {
+            Set<Integer> peers = chunks.computeIfAbsent(chunkNo, (k) -> ConcurrentHashMap.newKeySet());
+            peers.add(peerID);
+        }
+    }
+
+    private void evaluate() {
+        PeerState state = this.peer.getState();
+        RepairQueue repairQueue = this.peer.getRepairQueue();
+        SpaceReclaimSynchronizer spaceReclaimSync = this.peer.getSpaceReclaimSync();
+        int underReplicated = 0;
+
+        for (String fileId : this.replies.keySet()) {
+            ConcurrentHashMap<Integer, Set<Integer>> chunks = this.replies.remove(fileId);
+            FileInfo info = state.getBackupFileInfo(fileId);
+
+            // the file may have been deleted during the round
+            if (info == null)
+                continue;
+
+            // chunks reused from other files are checked as part of those
+            for (int chunkNo : info.getOwnChunks()) {
+                // a HAVE reply may have been lost, so the replies only add to the peers already known
+                Set<Integer> peers = new HashSet<>();
+                List<Integer> known = state.getBackupChunkPeers(fileId, chunkNo);
+                if (known != null)
+                    peers.addAll(known);
+
+                Set<Integer> replied = chunks.get(chunkNo);
+                if (replied != null)
+                    peers.addAll(replied);
+
+                state.setBackupChunkPeers(fileId, chunkNo, peers);
+
+                int deficit = info.getDesiredRepDegree() - peers.size();
+                if (deficit > 0) {
+                    underReplicated++;
+
+                    // a peer reclaiming the chunk may start its own backup, the repair is dropped if so
+                    ChunkKey chunkKey = new ChunkKey(fileId, chunkNo);
+                    boolean listening = spaceReclaimSync.isListeningToPutChunkMsg(chunkKey);
+                    if (! listening)
+                        spaceReclaimSync.listenToPutChunkMsg(chunkKey);
+
+                    if (! repairQueue.submit(chunkKey, info.getDesiredRepDegree(), deficit) && ! listening)
+                        spaceReclaimSync.stopListenToPutChunkMsg(chunkKey);
+                }
+            }
+        }
+
+        Metrics.increment("monitor.rounds");
+        Metrics.add("monitor.underreplicated", underReplicated);
+
+        if (underReplicated > 0)
+            Log.log("Replication check found " + underReplicated + " chunks below their desired RD");
+    }
+}
@@ -21,6 +21,13 @@ public class SpaceReclaimInitiator implements Runnable {
 
     @Override
     public void run() {
+        AckAggregator ackAggregator = this.peer.getAckAggregator();
+
+        if (ackAggregator != null) {
+            ackAggregator.removed(this.chunkKey);
+            return;
+        }
+
         Message message = Messages.getRemovedMessage(this.peer.getID(), this.chunkKey);
         MulticastChannel mcChannel = this.peer.getMCChannel();
 
@@ -9,9 +9,26 @@ public class SpaceReclaimSynchronizer {
      * Chunks for which a PUTCHUNK message has already been sent
      */
     private ConcurrentHashMap<ChunkKey, Boolean> receivedPutChunkMsgs;
+    /**
+     * Time at which stored chunks were seen dropping below their desired replication degree
+     */
+    private ConcurrentHashMap<ChunkKey, Long> underReplicatedSince;
 
     public SpaceReclaimSynchronizer() {
         this.receivedPutChunkMsgs = new ConcurrentHashMap<>();
+        this.underReplicatedSince = new ConcurrentHashMap<>();
+    }
+
+    public void underReplicated(ChunkKey chunkKey) {
+        underReplicatedSince.putIfAbsent(chunkKey, System.currentTimeMillis());
+    }
+
+    /**
+     * @return time in ms the chunk was under-replicated, -1 if it wasn't known to be
+     */
+    public long replicated(ChunkKey chunkKey) {
+        Long since = underReplicatedSince.remove(chunkKey);
+        return since == null ? -1 : System.currentTimeMillis() - since;
     }
 
     public void listenToPutChunkMsg(ChunkKey chunkKey) {
@@ -23,7 +40,11 @@ public class SpaceReclaimSynchronizer {
     }
 
     public boolean hasReceivedPutChunkMsg(ChunkKey chunkKey) {
-        return receivedPutChunkMsgs.get(chunkKey);
+        return Boolean.TRUE.equals(receivedPutChunkMsgs.get(chunkKey));
+    }
+
+    public boolean isListeningToPutChunkMsg(ChunkKey chunkKey) {
+        return receivedPutChunkMsgs.containsKey(chunkKey);
     }
 
     public void putChunkReceived(ChunkKey chunkKey) {
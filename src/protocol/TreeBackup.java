@@ -0,0 +1,186 @@
+package protocol;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import peer.Operation;
+import peer.Peer;
+import util.Log;
+
+/**
+ * Backs up every file under a directory. The directory is walked in parallel, fork/join style, and the files found
+ * are hashed and chunked on a bounded pool, whose threads block on the peer's chunk transmission scheduler when
+ * too many chunks are waiting to be sent. The operation is sealed by the last file to be hashed once the walk is
+ * over, and finishes when the backup of every chunk found has. A file counts as finished once the backup of all its
+ * chunks, or of the chunk of the pack it was put in, has.
+ */
+public class TreeBackup extends Operation implements Runnable {
+
+    private Peer peer;
+    private File root;
+    private int repDegree;
+    private int threads;
+    private boolean hidden;
+
+    private ThreadPoolExecutor hashers;
+
+    private final AtomicInteger filesFound = new AtomicInteger();
+    private final AtomicInteger filesStarted = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private volatile boolean walked;
+
+    // files not hashed yet, plus one until the walk is over
+    private final AtomicInteger toHash = new AtomicInteger(1);
+
+    /**
+     * @param id        id of the operation
+     * @param peer      peer that backs up the files
+     * @param root      directory to back up
+     * @param repDegree desired replication degree of the files
+     * @param options   comma separated options, may be null: threads=n, the number of files hashed at the same time
+     *                  (default 4), and hidden=true, to also back up hidden files and directories
+     */
+    public TreeBackup(int id, Peer peer, File root, int repDegree, String options) {
+        super(id, peer, Type.BACKUPTREE, root.getPath());
+        this.peer = peer;
+        this.root = root;
+        this.repDegree = repDegree;
+        this.threads = 4;
+
+        if (options != null && ! options.isBlank()) {
+            for (String option : options.split(",")) {
+                String[] pair = option.trim().split("=", 2);
+                String value = pair.length > 1 ? pair[1].trim() : "true";
+
+                try {
+                    switch (pair[0].trim()) {
+                        case "threads":
+                            this.threads = Math.max(1, Integer.parseInt(value));
+                            break;
+                        case "hidden":
+                            this.hidden = Boolean.parseBoolean(value);
+                            break;
+                        default:
+                            Log.logError("Unknown tree backup option " + pair[0]);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.logError("Invalid value for tree backup option " + pair[0]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        // the queue is short so that the walker runs the hashing itself, instead of listing ever more files, when
+        // all the hashers are busy
+        this.hashers = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        ForkJoinPool walkers = new ForkJoinPool(this.threads);
+
+        Log.log("Backing up tree " + this.root + " (operation " + this.getId() + ")");
+
+        try {
+            walkers.invoke(new DirectoryWalker(this.root));
+        } finally {
+            walkers.shutdown();
+            this.hashers.shutdown();
+            this.hashed();
+        }
+    }
+
+    /**
+     * Called once the walk is over and after each file is hashed, the last call seals the operation, so that no
+     * thread has to wait for the hashers to finish
+     */
+    private void hashed() {
+        if (this.toHash.decrementAndGet() > 0)
+            return;
+
+        this.walked = true;
+        Log.log("Found " + this.filesFound.get() + " files under " + this.root + ", " + this.filesFailed.get()
+                + " couldn't be backed up");
+
+        this.seal();
+    }
+
+    private class DirectoryWalker extends RecursiveAction {
+
+        private static final long serialVersionUID = 4426182063218190316L;
+
+        private final File directory;
+
+        DirectoryWalker(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled())
+                return;
+
+            File[] entries = this.directory.listFiles();
+            if (entries == null) {
+                Log.logError("Unable to list " + this.directory);
+                return;
+            }
+
+            List<DirectoryWalker> subdirectories = new ArrayList<>();
+            for (File entry : entries) {
+                // links aren't followed, they could lead back up the tree
+                if ((entry.isHidden() && ! hidden) || Files.isSymbolicLink(entry.toPath()))
+                    continue;
+
+                if (entry.isDirectory()) {
+                    subdirectories.add(new DirectoryWalker(entry));
+                } else if (entry.isFile()) {
+                    filesFound.incrementAndGet();
+                    toHash.incrementAndGet();
+                    try {
+                        hashers.execute(() -> {
+                            try {
+                                backupFile(entry);
+                            } finally {
+                                hashed();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        filesFailed.incrementAndGet();
+                        hashed();
+                    }
+                }
+            }
+
+            invokeAll(subdirectories);
+        }
+    }
+
+    private void backupFile(File file) {
+        if (this.isCancelled())
+            return;
+
+        if (this.peer.backupFile(file.getPath(), this.repDegree, this, true) == 0)
+            this.filesStarted.incrementAndGet();
+        else
+            this.filesFailed.incrementAndGet();
+    }
+
+    @Override
+    protected String getDetails() {
+        // a file may finish before it is counted as started
+        int inProgress = this.countUnfinishedFiles();
+        int finished = Math.max(0, this.filesStarted.get() - inProgress);
+
+        return "  Files : " + finished + " of " + this.filesFound.get() + " found finished, " + inProgress
+                + " in progress, " + this.filesFailed.get() + " failed" + (this.walked ? "" : ", still walking") + "\n";
+    }
+}
@@ -0,0 +1,53 @@
+package protocol;
+
+import java.util.List;
+
+import file.ChunkKey;
+import peer.Peer;
+import util.Log;
+
+/**
+ * Waits for the backup of a new version of a file to finish, and then retires the previous versions backed up from
+ * the same path (see Peer.retireVersions). Unless every chunk of the new version reached its desired replication
+ * degree, they are kept.
+ */
+public class VersionRetirer implements ChunkBackupListener {
+
+    private Peer peer;
+    private String fileId;
+    private List<String> previousVersions;
+    private int pending;
+    private boolean failed;
+
+    /**
+     * @param peer              peer for which the protocol is being executed
+     * @param fileId            id of the new version
+     * @param previousVersions  ids of the previous versions
+     * @param numChunks         number of chunks of the new version being backed up
+     */
+    public VersionRetirer(Peer peer, String fileId, List<String> previousVersions, int numChunks) {
+        this.peer = peer;
+        this.fileId = fileId;
+        this.previousVersions = previousVersions;
+        this.pending = numChunks;
+    }
+
+    @Override
+    public void backupFinished(ChunkKey chunkKey, int repDegree, boolean achieved) {
+        synchronized (this) {
+            if (! achieved)
+                this.failed = true;
+
+            if (--this.pending > 0)
+                return;
+        }
+
+        if (this.failed || ! this.peer.getState().isBackupFile(this.fileId)) {
+            Log.log("Keeping the previous versions of file " + this.fileId
+                    + ", its backup didn't reach the desired replication degree");
+            return;
+        }
+
+        this.peer.retireVersions(this.previousVersions);
+    }
+}
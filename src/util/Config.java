@@ -0,0 +1,42 @@
+package util;
+
+/**
+ * Peer configuration options, read from system properties (e.g. java -Dpeer.reclaim.policy=SIZE PeerApp ...)
+ */
+public class Config {
+
+    public static String getString(String name, String defaultValue) {
+        return System.getProperty(name, defaultValue);
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.logError("Invalid value for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.logError("Invalid value for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
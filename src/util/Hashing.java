@@ -0,0 +1,45 @@
+package util;
+
+import file.ChunkKey;
+
+/**
+ * Fast non-cryptographic hashing, used for rendezvous hashing and digests
+ */
+public class Hashing {
+
+    /**
+     * Final mixing step of SplitMix64, spreads the bits of a 64 bit value
+     */
+    public static long mix64(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a string
+     */
+    public static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    public static long hash64(ChunkKey chunkKey) {
+        return mix64(hash64(chunkKey.getFileID()) + chunkKey.getNumber());
+    }
+
+    /**
+     * Rendezvous (highest random weight) score of a peer for a chunk. Every peer computes the same score
+     * for the same (chunk, peer, salt), so they agree on an ordering of the peers without communicating.
+     * @param chunkKey  chunk
+     * @param peerID    peer id
+     * @param salt      value that changes the ordering, e.g. a request nonce
+     */
+    public static long rendezvousScore(ChunkKey chunkKey, int peerID, long salt) {
+        return mix64(hash64(chunkKey) ^ mix64(((long) peerID << 32) ^ salt));
+    }
+}
@@ -0,0 +1,44 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters about the peer's activity, shown in its state
+ */
+public class Metrics {
+    private static ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long value) {
+        counters.computeIfAbsent(name, (k) -> new LongAdder()).add(value);
+    }
+
+    public static long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * @return percentage that a counter represents of another, 0 if the latter is 0
+     */
+    public static double ratio(String name, String totalName) {
+        long total = get(totalName);
+        return total == 0 ? 0 : 100.0 * get(name) / total;
+    }
+
+    public static String report() {
+        String ret = "";
+
+        Map<String, LongAdder> sorted = new TreeMap<>(counters);
+        for (Map.Entry<String, LongAdder> entry : sorted.entrySet())
+            ret += "  " + entry.getKey() + " : " + entry.getValue().sum() + "\n";
+
+        return ret;
+    }
+}